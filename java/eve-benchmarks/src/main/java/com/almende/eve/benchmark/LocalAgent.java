@@ -0,0 +1,21 @@
+package com.almende.eve.benchmark;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.annotation.ThreadSafe;
+import com.almende.eve.rpc.annotation.Access;
+import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Name;
+
+/**
+ * Trivial agent, called by the local call benchmarks. It is thread safe, so
+ * the host keeps a single instance and the benchmarks measure the call
+ * itself rather than loading the agent.
+ */
+@ThreadSafe(true)
+@Access(AccessType.PUBLIC)
+public class LocalAgent extends Agent implements LocalAgentInterface {
+	@Override
+	public int add(@Name("a") int a, @Name("b") int b) {
+		return a + b;
+	}
+}
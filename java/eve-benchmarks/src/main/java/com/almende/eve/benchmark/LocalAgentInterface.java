@@ -0,0 +1,8 @@
+package com.almende.eve.benchmark;
+
+import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.rpc.annotation.Name;
+
+public interface LocalAgentInterface extends AgentInterface {
+	int add(@Name("a") int a, @Name("b") int b);
+}
@@ -0,0 +1,96 @@
+package com.almende.eve.benchmark;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.MemoryStateFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Calls between two agents of the same host. Run with the gc profiler to see
+ * the bytes allocated per call:
+ * 
+ * java -jar target/benchmarks.jar LocalCall -prof gc
+ * 
+ * The allocation budgets of send and proxy are pinned by
+ * TestLocalCallAllocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LocalCallBenchmark {
+	private AgentHost			host;
+	private LocalAgent			caller;
+	private URI					receiver;
+	private Map<String, Object>	params;
+	private ObjectNode			jsonParams;
+	private LocalAgentInterface	proxy;
+	
+	@Setup
+	public void setup() throws Exception {
+		host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		caller = host.createAgent(LocalAgent.class, "benchmarkCaller");
+		host.createAgent(LocalAgent.class, "benchmarkReceiver");
+		receiver = URI.create("local:benchmarkReceiver");
+		
+		params = new HashMap<String, Object>();
+		params.put("a", 2);
+		params.put("b", 3);
+		jsonParams = JOM.createObjectNode();
+		jsonParams.put("a", 2);
+		jsonParams.put("b", 3);
+		proxy = caller.createAgentProxy(receiver, LocalAgentInterface.class);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		host.deleteAgent("benchmarkCaller");
+		host.deleteAgent("benchmarkReceiver");
+	}
+	
+	/**
+	 * The local fast path: java params in, java result out
+	 */
+	@Benchmark
+	public Integer send() throws Exception {
+		return caller.send(receiver, "add", params, Integer.class);
+	}
+	
+	/**
+	 * A call through an agent proxy, which takes the same fast path
+	 */
+	@Benchmark
+	public int proxy() {
+		return proxy.add(2, 3);
+	}
+	
+	/**
+	 * A JSON-RPC request handled locally, for comparison
+	 */
+	@Benchmark
+	public JSONResponse sendRequest() throws Exception {
+		return host.send(caller, receiver, new JSONRequest("add", jsonParams));
+	}
+}
@@ -0,0 +1,88 @@
+package com.almende.test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.benchmark.LocalAgent;
+import com.almende.eve.benchmark.LocalAgentInterface;
+import com.almende.eve.state.MemoryStateFactory;
+
+/**
+ * Pins the bytes allocated per local call, the numbers LocalCallBenchmark
+ * reports with -prof gc. The budgets leave room for JVMs without compressed
+ * pointers; a call going through JSON again allocates far more.
+ */
+public class TestLocalCallAllocation extends TestCase {
+	private static final long	SEND_BUDGET		= 128;
+	private static final long	PROXY_BUDGET	= 512;
+	private static final int	CALLS			= 100000;
+	
+	@Test
+	public void testAllocation() throws Exception {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			// no allocation counters on this JVM
+			return;
+		}
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) bean;
+		
+		AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new MemoryStateFactory());
+		final LocalAgent caller = host.createAgent(LocalAgent.class,
+				"allocationCaller");
+		host.createAgent(LocalAgent.class, "allocationReceiver");
+		final URI receiver = URI.create("local:allocationReceiver");
+		final Map<String, Object> params = new HashMap<String, Object>();
+		params.put("a", 2);
+		params.put("b", 3);
+		final LocalAgentInterface proxy = caller.createAgentProxy(receiver,
+				LocalAgentInterface.class);
+		try {
+			long send = measure(mx, new Call() {
+				@Override
+				public void call() throws Exception {
+					caller.send(receiver, "add", params, Integer.class);
+				}
+			});
+			long proxied = measure(mx, new Call() {
+				@Override
+				public void call() throws Exception {
+					proxy.add(2, 3);
+				}
+			});
+			assertTrue("send allocates " + send + " bytes per call",
+					send <= SEND_BUDGET);
+			assertTrue("proxy allocates " + proxied + " bytes per call",
+					proxied <= PROXY_BUDGET);
+		} finally {
+			host.deleteAgent("allocationCaller");
+			host.deleteAgent("allocationReceiver");
+		}
+	}
+	
+	private interface Call {
+		void call() throws Exception;
+	}
+	
+	private static long measure(com.sun.management.ThreadMXBean mx, Call call)
+			throws Exception {
+		long thread = Thread.currentThread().getId();
+		// warm up, so the JIT has removed what it can
+		for (int i = 0; i < CALLS; i++) {
+			call.call();
+		}
+		long before = mx.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < CALLS; i++) {
+			call.call();
+		}
+		return (mx.getThreadAllocatedBytes(thread) - before) / CALLS;
+	}
+}
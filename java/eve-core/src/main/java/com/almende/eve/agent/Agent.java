@@ -53,13 +53,14 @@ import com.almende.eve.rpc.annotation.AccessType;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.RequestId;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.state.State;
 import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncFuture;
 import com.almende.eve.transport.TransportService;
 import com.almende.util.TypeUtil;
-import com.eaio.uuid.UUID;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -125,6 +126,8 @@ public abstract class Agent implements AgentInterface {
 			create();
 		} else if ("init".equals(event.getEvent())) {
 			init();
+		} else if ("destroy".equals(event.getEvent())) {
+			destroy();
 		} else if ("delete".equals(event.getEvent())) {
 			delete();
 		} else if ("setSchedulerFactory".equals(event.getEvent())) {
@@ -159,8 +162,9 @@ public abstract class Agent implements AgentInterface {
 	}
 	
 	/**
-	 * This method is called by the finalize method (GC) upon unloading of the
-	 * agent from memory.
+	 * This method is called upon unloading of the agent from memory: when the
+	 * agent is deleted or evicted from the agent cache, and by the finalize
+	 * method (GC).
 	 */
 	@Access(AccessType.UNAVAILABLE)
 	protected void destroy() {
@@ -266,102 +270,105 @@ public abstract class Agent implements AgentInterface {
 		return getAgentHost().getMethods(this);
 	}
 	
-	//TODO: only allow ObjectNode as params?
-	private JSONResponse locSend(URI url, String method, Object params)
-			throws ProtocolException, JSONRPCException {
-		// TODO: implement support for adding custom http headers (for
-		// authorization for example)
-		
-		ObjectNode jsonParams;
-		if (params instanceof ObjectNode) {
-			jsonParams = (ObjectNode) params;
-		} else {
-			jsonParams = JOM.getInstance().valueToTree(params);
-		}
-		
-		// invoke the other agent via the AgentHost, allowing the factory
-		// to route the request internally or externally
-		String id = new UUID().toString();
-//		String id = "hi there!";
-		JSONRequest request = new JSONRequest(id, method, jsonParams);
-		JSONResponse response = getAgentHost().send(this, url, request);
-		JSONRPCException err = response.getError();
-		if (err != null) {
-			throw err;
-		}
-		return response;
-	}
-	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public final <T> T send(URI url, String method, Object params, Class<T> type)
 			throws ProtocolException, JSONRPCException {
-		return TypeUtil.inject(locSend(url, method, params).getResult(),type);
+		return getAgentHost().send(this, url, method, params,
+				JOM.getTypeFactory().constructType(type));
 	}
 	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public final <T> T send(URI url, String method, Object params, Type type)
 			throws ProtocolException, JSONRPCException {
-		return TypeUtil.inject( locSend(url, method, params).getResult(),type);
+		return getAgentHost().send(this, url, method, params,
+				JOM.getTypeFactory().constructType(type));
 	}
 	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public final <T> T send(URI url, String method, Object params,
 			TypeUtil<T> type) throws ProtocolException, JSONRPCException {
-		return type.inject(locSend(url, method, params).getResult());
+		return getAgentHost().send(this, url, method, params,
+				JOM.getTypeFactory().constructType(type.getType()));
 	}
 	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public final <T> T send(URI url, String method, Object params, JavaType type)
 			throws ProtocolException, JSONRPCException {
-		return TypeUtil.inject(locSend(url, method, params).getResult(),type);
+		return getAgentHost().send(this, url, method, params, type);
 	}
 	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public final <T> T send(URI url, String method, Type type)
 			throws ProtocolException, JSONRPCException {
-		return TypeUtil.inject(locSend(url, method, null).getResult(),type);
+		return send(url, method, null, type);
 	}
 	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public final <T> T send(URI url, String method, JavaType type)
 			throws ProtocolException, JSONRPCException {
-		return TypeUtil.inject(locSend(url, method, null).getResult(),type);
+		return send(url, method, null, type);
 	}
 	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public final <T> T send(URI url, String method, Class<T> type)
 			throws ProtocolException, JSONRPCException {
-		
-		return TypeUtil.inject(locSend(url, method, null).getResult(),type);
+		return send(url, method, null, type);
 	}
 	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public final <T> T send(URI url, String method, TypeUtil<T> type)
 			throws ProtocolException, JSONRPCException {
-		
-		return type.inject(locSend(url, method, null).getResult());
+		return send(url, method, null, type);
 	}
 	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public final void send(URI url, String method, Object params)
 			throws ProtocolException, JSONRPCException {
-		locSend(url, method, params);
+		getAgentHost().send(this, url, method, params, JOM.getVoid());
 	}
 	
 	@Override
 	@Access(AccessType.UNAVAILABLE)
 	public final void send(URI url, String method) throws ProtocolException,
 			JSONRPCException {
-		locSend(url, method, null);
+		send(url, method, (Object) null);
+	}
+	
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	public final void sendNotification(URI url, String method, Object params)
+			throws ProtocolException, JSONRPCException {
+		ObjectNode jsonParams;
+		if (params instanceof ObjectNode) {
+			jsonParams = (ObjectNode) params;
+		} else {
+			jsonParams = JOM.getInstance().valueToTree(params);
+		}
+		JSONRequest request = new JSONRequest(method, jsonParams);
+		request.setNotification();
+		getAgentHost().sendNotification(this, url, request);
+	}
+	
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	public final List<JSONResponse> sendBatch(URI url,
+			List<JSONRequest> requests) throws ProtocolException,
+			JSONRPCException {
+		for (JSONRequest request : requests) {
+			if (request.getId() == null) {
+				request.setId(RequestId.next());
+			}
+		}
+		return getAgentHost().sendBatch(this, url, requests);
 	}
 	
 	@Override
@@ -382,7 +389,7 @@ public abstract class Agent implements AgentInterface {
 	public final <T> void sendAsync(URI url, String method, ObjectNode params,
 			final AsyncCallback<T> callback, Class<T> type)
 			throws ProtocolException, JSONRPCException {
-		String id = new UUID().toString();
+		String id = RequestId.next();
 		JSONRequest request = new JSONRequest(id, method, params);
 		sendAsync(url, request, callback, JOM.getTypeFactory()
 				.uncheckedSimpleType(type));
@@ -393,7 +400,7 @@ public abstract class Agent implements AgentInterface {
 	public final <T> void sendAsync(URI url, String method, ObjectNode params,
 			final AsyncCallback<T> callback, final Type type)
 			throws ProtocolException, JSONRPCException {
-		String id = new UUID().toString();
+		String id = RequestId.next();
 		JSONRequest request = new JSONRequest(id, method, params);
 		sendAsync(url, request, callback,
 				JOM.getTypeFactory().constructType(type));
@@ -404,7 +411,7 @@ public abstract class Agent implements AgentInterface {
 	public final <T> void sendAsync(URI url, String method, ObjectNode params,
 			final AsyncCallback<T> callback, final JavaType type)
 			throws ProtocolException, JSONRPCException {
-		String id = new UUID().toString();
+		String id = RequestId.next();
 		JSONRequest request = new JSONRequest(id, method, params);
 		sendAsync(url, request, callback, type);
 	}
@@ -449,8 +456,7 @@ public abstract class Agent implements AgentInterface {
 					Exception err = response.getError();
 					if (err != null) {
 						callback.onFailure(err);
-					}
-					if (type != null && !type.hasRawClass(Void.class)) {
+					} else if (type != null && !type.hasRawClass(Void.class)) {
 						callback.onSuccess((T) TypeUtil.inject(response.getResult(),type));
 					} else {
 						callback.onSuccess(null);
@@ -472,6 +478,42 @@ public abstract class Agent implements AgentInterface {
 		getAgentHost().sendAsync(this, url, request, responseCallback);
 	}
 	
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	public final <T> AsyncFuture<T> sendAsync(URI url, String method,
+			Object params, Class<T> type) throws ProtocolException,
+			JSONRPCException {
+		return sendAsync(url, method, params, JOM.getTypeFactory()
+				.uncheckedSimpleType(type));
+	}
+	
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	public final <T> AsyncFuture<T> sendAsync(URI url, String method,
+			Object params, Type type) throws ProtocolException,
+			JSONRPCException {
+		return sendAsync(url, method, params, JOM.getTypeFactory()
+				.constructType(type));
+	}
+	
+	@Override
+	@Access(AccessType.UNAVAILABLE)
+	public final <T> AsyncFuture<T> sendAsync(URI url, String method,
+			Object params, JavaType type) throws ProtocolException,
+			JSONRPCException {
+		ObjectNode jsonParams;
+		if (params instanceof ObjectNode) {
+			jsonParams = (ObjectNode) params;
+		} else {
+			jsonParams = JOM.getInstance().valueToTree(params);
+		}
+		JSONRequest request = new JSONRequest(RequestId.next(), method,
+				jsonParams);
+		AsyncFuture<T> future = new AsyncFuture<T>();
+		sendAsync(url, request, future, type);
+		return future;
+	}
+	
 	@Override
 	@Access(AccessType.PUBLIC)
 	public List<String> getUrls() {
@@ -1,6 +1,7 @@
 package com.almende.eve.agent;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -10,11 +11,24 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,22 +36,35 @@ import com.almende.eve.agent.annotation.ThreadSafe;
 import com.almende.eve.agent.log.EventLogger;
 import com.almende.eve.agent.proxy.AsyncProxy;
 import com.almende.eve.config.Config;
+import com.almende.eve.executor.BoundedExecutorFactory;
+import com.almende.eve.executor.ExecutorFactory;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.annotation.Sender;
+import com.almende.eve.rpc.jsonrpc.Description;
+import com.almende.eve.rpc.jsonrpc.DispatchTable;
 import com.almende.eve.rpc.jsonrpc.JSONRPC;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.RequestId;
+import com.almende.eve.rpc.jsonrpc.RequestTemplate;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.scheduler.SchedulerFactory;
 import com.almende.eve.state.State;
 import com.almende.eve.state.StateFactory;
 import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncFuture;
 import com.almende.eve.transport.TransportService;
 import com.almende.eve.transport.http.HttpService;
+import com.almende.util.AnnotationUtil;
 import com.almende.util.ClassUtil;
+import com.almende.util.NamespaceUtil;
 import com.almende.util.ObjectCache;
 import com.almende.util.TypeUtil;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public final class AgentHost implements AgentHostInterface {
 	
@@ -51,6 +78,32 @@ public final class AgentHost implements AgentHostInterface {
 	private EventLogger									eventLogger			= new EventLogger(
 																					this);
 	private boolean										doesShortcut		= true;
+	private CopyPolicy									copyPolicy			= CopyPolicy.IMMUTABLE;
+	private ExecutorFactory								executorFactory		= new BoundedExecutorFactory(
+																					this,
+																					null);
+	private ExecutorService								executorService		= executorFactory
+																					.createExecutorService();
+	private boolean										mailboxMode			= false;
+	private final ConcurrentHashMap<String, Mailbox>	mailboxes			= new ConcurrentHashMap<String, Mailbox>();
+	/** Per agent the number of calls in progress, outside mailbox mode */
+	private final ConcurrentHashMap<String, AtomicInteger>	calls				= new ConcurrentHashMap<String, AtomicInteger>();
+	private int											signalParallelism	= Runtime
+																					.getRuntime()
+																					.availableProcessors();
+	private boolean										lazySignals			= false;
+	/** Lazy signals not yet received by all agents, from signalBase on */
+	private final List<PendingSignal>					pendingSignals		= new ArrayList<PendingSignal>();
+	private int											signalBase			= 0;
+	/** Number of lazy signals recorded */
+	private volatile int								signalCount			= 0;
+	/** Per agent the number of the next lazy signal to deliver */
+	private final ConcurrentHashMap<String, AtomicInteger>	signalled			= new ConcurrentHashMap<String, AtomicInteger>();
+	private final ConcurrentHashMap<Class<?>, Boolean>	preparedTypes		= new ConcurrentHashMap<Class<?>, Boolean>();
+	/** Synchronous proxies, by sender, receiver and interface */
+	private final ProxyCache												proxies		= new ProxyCache();
+	/** Read only request params of local calls, by url scheme and sender id */
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, RequestParams>>	localParams	= new ConcurrentHashMap<String, ConcurrentHashMap<String, RequestParams>>();
 	
 	/*
 	 * Several classname maps for configuration conveniency:
@@ -58,12 +111,19 @@ public final class AgentHost implements AgentHostInterface {
 	private static final Map<String, String>			STATE_FACTORIES		= new HashMap<String, String>();
 	private static final Map<String, String>			SCHEDULERS			= new HashMap<String, String>();
 	private static final Map<String, String>			TRANSPORT_SERVICES	= new HashMap<String, String>();
-	private static final RequestParams					EVEREQUESTPARAMS	= new RequestParams();
+	private static final Map<String, String>			EXECUTOR_FACTORIES	= new HashMap<String, String>();
+	private static final RequestParams					EVEREQUESTPARAMS;
+	/** Maximum number of senders of which local request params are kept */
+	private static final int							MAX_LOCAL_PARAMS	= 1000;
 	static {
 		STATE_FACTORIES.put("FileStateFactory",
 				"com.almende.eve.state.FileStateFactory");
 		STATE_FACTORIES.put("JsonFileStateFactory",
 				"com.almende.eve.state.JsonFileStateFactory");
+		STATE_FACTORIES.put("EmbeddedStateFactory",
+				"com.almende.eve.state.EmbeddedStateFactory");
+		STATE_FACTORIES.put("LogStateFactory",
+				"com.almende.eve.state.LogStateFactory");
 		STATE_FACTORIES.put("MemoryStateFactory",
 				"com.almende.eve.state.MemoryStateFactory");
 		STATE_FACTORIES.put("DatastoreStateFactory",
@@ -84,11 +144,59 @@ public final class AgentHost implements AgentHostInterface {
 				"com.almende.eve.transport.http.HttpService");
 	}
 	static {
-		EVEREQUESTPARAMS.put(Sender.class, null);
+		EXECUTOR_FACTORIES.put("BoundedExecutorFactory",
+				"com.almende.eve.executor.BoundedExecutorFactory");
+		EXECUTOR_FACTORIES.put("LoomExecutorFactory",
+				"com.almende.eve.executor.loom.LoomExecutorFactory");
+	}
+	static {
+		RequestParams params = new RequestParams();
+		params.put(Sender.class, null);
+		EVEREQUESTPARAMS = params.unmodifiable();
 	}
 	
 	private AgentHost() {
 		this.addTransportService(new HttpService());
+		ObjectCache.setEvictionListener(new ObjectCache.EvictionListener() {
+			@Override
+			public void onEvict(final String key, Object value) {
+				if (value instanceof Agent) {
+					final Agent agent = (Agent) value;
+					if (mailboxMode) {
+						// destroyed after the calls queued before, the
+						// mailbox retires once it is idle
+						getMailbox(key).close(new Callable<Void>() {
+							@Override
+							public Void call() {
+								destroyAgent(key, agent);
+								return null;
+							}
+						});
+					} else if (!isBusy(key)) {
+						// a busy agent is only dropped from the cache: other
+						// threads may still use it, and its state
+						destroyAgent(key, agent);
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Destroy an agent evicted from the cache
+	 */
+	private void destroyAgent(String agentId, Agent agent) {
+		try {
+			agent.signalAgent(new AgentSignal<Void>("destroy"));
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "Failed to destroy evicted agent '"
+					+ agentId + "'", e);
+		}
+		// the state may keep changes in memory while it is active
+		State state = agent.getState();
+		if (state != null) {
+			state.destroy();
+		}
 	}
 	
 	/**
@@ -106,6 +214,23 @@ public final class AgentHost implements AgentHostInterface {
 		HOST.setConfig(config);
 		if (config != null) {
 			ObjectCache.configCache(config);
+			HOST.setExecutorFactory(config);
+			Boolean mailbox = config.get("mailbox", "enabled");
+			if (mailbox != null) {
+				HOST.setMailboxMode(mailbox);
+			}
+			Integer parallelism = config.get("signals", "parallelism");
+			if (parallelism != null) {
+				HOST.setSignalParallelism(parallelism);
+			}
+			Boolean lazy = config.get("signals", "lazy");
+			if (lazy != null) {
+				HOST.setLazySignals(lazy);
+			}
+			String copy = config.get("local", "copy");
+			if (copy != null) {
+				HOST.setCopyPolicy(CopyPolicy.get(copy));
+			}
 			// initialize all factories for state, transport, and scheduler
 			// important to initialize in the correct order: cache first,
 			// then the state and transport services, and lastly scheduler.
@@ -118,19 +243,240 @@ public final class AgentHost implements AgentHostInterface {
 	
 	@Override
 	public void signalAgents(AgentSignal<?> event) {
-		if (stateFactory != null) {
-			Iterator<String> iter = stateFactory.getAllAgentIds();
+		if (lazySignals) {
+			recordSignal(event);
+			return;
+		}
+		if (stateFactory == null) {
+			return;
+		}
+		final Iterator<String> iter = stateFactory.getAllAgentIds();
+		if (iter == null) {
+			return;
+		}
+		long start = System.currentTimeMillis();
+		final AgentSignal<?> signal = event;
+		final AtomicInteger count = new AtomicInteger();
+		int workers = Math.max(signalParallelism, 1);
+		final CountDownLatch done = new CountDownLatch(workers);
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					String agentId;
+					while ((agentId = nextAgentId(iter)) != null) {
+						enter(agentId);
+						try {
+							Agent agent = getAgent(agentId);
+							if (agent != null) {
+								deliver(agentId, agent, signal);
+								count.incrementAndGet();
+							}
+						} catch (Exception e) {
+							LOG.log(Level.WARNING, "Failed to signal '"
+									+ signal.getEvent() + "' to agent '"
+									+ agentId + "'", e);
+						} finally {
+							leave(agentId);
+						}
+					}
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		for (int i = 0; i < workers; i++) {
+			try {
+				executorService.execute(worker);
+			} catch (RejectedExecutionException e) {
+				worker.run();
+			}
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			LOG.warning("Interrupted while signalling '" + event.getEvent()
+					+ "'");
+		}
+		LOG.info("Signal '" + event.getEvent() + "' delivered to "
+				+ count.get() + " agents in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+	
+	/**
+	 * Signal an agent, through its mailbox in mailbox mode
+	 */
+	private void deliver(String agentId, final Agent agent,
+			final AgentSignal<?> signal) throws JSONRPCException, IOException {
+		if (!mailboxMode) {
+			agent.signalAgent(signal);
+			return;
+		}
+		callMailbox(agentId, new Callable<Void>() {
+			@Override
+			public Void call() throws JSONRPCException, IOException {
+				agent.signalAgent(signal);
+				return null;
+			}
+		});
+	}
+	
+	private static String nextAgentId(Iterator<String> iter) {
+		synchronized (iter) {
+			return iter.hasNext() ? iter.next() : null;
+		}
+	}
+	
+	/**
+	 * Record a signal for lazy delivery. The signal is kept until each of the
+	 * current agents has received it.
+	 */
+	private void recordSignal(AgentSignal<?> event) {
+		PendingSignal pending = new PendingSignal(event);
+		synchronized (pendingSignals) {
+			pendingSignals.add(pending);
+			signalCount++;
+			// agents created from now on do not need the signal
+			Iterator<String> iter = stateFactory != null ? stateFactory
+					.getAllAgentIds() : null;
+			int agents = 0;
 			if (iter != null) {
 				while (iter.hasNext()) {
+					iter.next();
+					agents++;
+				}
+			}
+			pending.remaining.addAndGet(agents);
+		}
+		release(pending);
+		LOG.fine("Signal '" + event.getEvent() + "' recorded for lazy delivery");
+	}
+	
+	/**
+	 * Get a recorded signal by its number
+	 * 
+	 * @return signal, or null when it was received by all agents
+	 */
+	private PendingSignal getPendingSignal(int number) {
+		synchronized (pendingSignals) {
+			if (number < signalBase) {
+				return null;
+			}
+			return pendingSignals.get(number - signalBase);
+		}
+	}
+	
+	/**
+	 * Count down the agents still to receive a signal, dropping the signals
+	 * received by all agents
+	 */
+	private void release(PendingSignal pending) {
+		if (pending.remaining.decrementAndGet() > 0) {
+			return;
+		}
+		synchronized (pendingSignals) {
+			while (!pendingSignals.isEmpty()
+					&& pendingSignals.get(0).remaining.get() <= 0) {
+				pendingSignals.remove(0);
+				signalBase++;
+			}
+		}
+	}
+	
+	/**
+	 * Deliver the signals recorded in lazy mode, which the agent has not
+	 * received yet. A signal counts as received once it is delivered
+	 * without error; on an error delivery stops, and is retried on the next
+	 * activation of the agent.
+	 */
+	private void deliverPendingSignals(final String agentId, final Agent agent) {
+		if (signalCount == 0) {
+			return;
+		}
+		AtomicInteger next = signalled.get(agentId);
+		if (next == null) {
+			next = new AtomicInteger();
+			AtomicInteger other = signalled.putIfAbsent(agentId, next);
+			if (other != null) {
+				next = other;
+			}
+		}
+		if (next.get() >= signalCount) {
+			return;
+		}
+		// callers wait for the delivery, so they get an up to date agent
+		if (mailboxMode) {
+			final AtomicInteger position = next;
+			try {
+				getMailbox(agentId).call(new Callable<Void>() {
+					@Override
+					public Void call() {
+						deliverPendingSignals(agentId, agent, position);
+						return null;
+					}
+				});
+			} catch (ExecutionException e) {
+				LOG.log(Level.WARNING, "Failed to signal agent '" + agentId
+						+ "'", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} else {
+			deliverPendingSignals(agentId, agent, next);
+		}
+	}
+	
+	private void deliverPendingSignals(String agentId, Agent agent,
+			AtomicInteger next) {
+		synchronized (next) {
+			int number;
+			while ((number = next.get()) < signalCount) {
+				PendingSignal pending = getPendingSignal(number);
+				if (pending != null) {
+					AgentSignal<?> signal = pending.signal;
+					long start = System.currentTimeMillis();
 					try {
-						Agent agent = getAgent(iter.next());
-						if (agent != null) {
-							agent.signalAgent(event);
-						}
+						agent.signalAgent(signal);
 					} catch (Exception e) {
+						LOG.log(Level.WARNING, "Failed to signal '"
+								+ signal.getEvent() + "' to agent '" + agentId
+								+ "'", e);
+						return;
 					}
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine("Signal '" + signal.getEvent()
+								+ "' delivered to agent '" + agentId + "' in "
+								+ (System.currentTimeMillis() - start) + " ms");
+					}
+					release(pending);
+				}
+				next.set(number + 1);
+			}
+		}
+	}
+	
+	/**
+	 * Release the signals a deleted agent did not receive
+	 */
+	private void forgetSignals(String agentId) {
+		AtomicInteger next = signalled.remove(agentId);
+		if (next == null) {
+			// never activated: it was counted for every signal
+			next = new AtomicInteger();
+		}
+		synchronized (next) {
+			int count;
+			synchronized (pendingSignals) {
+				count = signalCount;
+			}
+			for (int number = next.get(); number < count; number++) {
+				PendingSignal pending = getPendingSignal(number);
+				if (pending != null) {
+					release(pending);
 				}
 			}
+			next.set(count);
 		}
 	}
 	
@@ -147,6 +493,7 @@ public final class AgentHost implements AgentHostInterface {
 		// Check if agent is instantiated already, returning if it is:
 		Agent agent = ObjectCache.get(agentId, Agent.class);
 		if (agent != null) {
+			deliverPendingSignals(agentId, agent);
 			return agent;
 		}
 		// No agent found, normal initialization:
@@ -176,10 +523,14 @@ public final class AgentHost implements AgentHostInterface {
 		agent.constr(this, state);
 		agent.signalAgent(new AgentSignal<Void>("init"));
 		
-		if (agentType.isAnnotationPresent(ThreadSafe.class)
-				&& agentType.getAnnotation(ThreadSafe.class).value()) {
+		// In mailbox mode an agent never runs on two threads at once,
+		// so any agent can be shared.
+		if (mailboxMode
+				|| (agentType.isAnnotationPresent(ThreadSafe.class) && agentType
+						.getAnnotation(ThreadSafe.class).value())) {
 			ObjectCache.put(agentId, agent);
 		}
+		deliverPendingSignals(agentId, agent);
 		
 		return agent;
 	}
@@ -198,13 +549,16 @@ public final class AgentHost implements AgentHostInterface {
 			throw new IllegalArgumentException("agentInterface must extend "
 					+ AgentInterface.class.getName());
 		}
-		T proxy = ObjectCache.get(
-				"proxy_" + (sender != null ? sender.getId() + "_" : "")
-						+ agentInterface, agentInterface);
+		// the proxy is bound to its sender, receiver and interface
+		T proxy = proxies.get(sender, receiverUrl, agentInterface);
 		if (proxy != null) {
 			return proxy;
 		}
 		
+		// the proxy holds its sender weakly, for the cache does too
+		final WeakReference<AgentInterface> senderRef = sender != null ? new WeakReference<AgentInterface>(
+				sender) : null;
+		final String senderId = sender != null ? sender.getId() : null;
 		// http://docs.oracle.com/javase/1.4.2/docs/guide/reflection/proxy.html
 		proxy = (T) Proxy.newProxyInstance(agentInterface.getClassLoader(),
 				new Class[] { agentInterface }, new InvocationHandler() {
@@ -215,30 +569,46 @@ public final class AgentHost implements AgentHostInterface {
 						// TODO: if method calls for Namespace getter, return
 						// new proxy for subtype. All calls to that proxy need
 						// to add namespace to method name for JSON-RPC.
-						JSONRequest request = JSONRPC.createRequest(method,
-								args);
-						JSONResponse response = send(sender, receiverUrl,
-								request);
-						
-						JSONRPCException err = response.getError();
-						if (err != null) {
-							throw err;
-						} else if (response.getResult() != null
-								&& !method.getReturnType().equals(Void.TYPE)) {
-							return TypeUtil.inject(response.getResult(),
-									method.getGenericReturnType());
-						} else {
-							return null;
-						}
+						// the arguments stay java objects on calls between
+						// local agents
+						RequestTemplate template = RequestTemplate.get(method);
+						return send(getSender(senderRef, senderId), receiverUrl,
+								template.getMethodName(),
+								template.createParams(args),
+								template.getReturnType());
 					}
 				});
 		
-		ObjectCache.put("proxy_" + (sender != null ? sender.getId() + "_" : "")
-				+ agentInterface.getCanonicalName(), proxy);
+		proxies.put(sender, receiverUrl, agentInterface, proxy);
 		
 		return proxy;
 	}
 	
+	/**
+	 * Get the sender of a proxy, loading the agent again when the instance
+	 * the proxy was created for is gone
+	 */
+	private AgentInterface getSender(WeakReference<AgentInterface> senderRef,
+			String senderId) throws JSONRPCException {
+		if (senderRef == null) {
+			return null;
+		}
+		AgentInterface sender = senderRef.get();
+		if (sender == null) {
+			try {
+				sender = getAgent(senderId);
+			} catch (Exception e) {
+				throw new JSONRPCException("Couldn't instantiate agent for id '"
+						+ senderId + "'", e);
+			}
+			if (sender == null) {
+				throw new JSONRPCException("Agent with id '" + senderId
+						+ "' not found");
+			}
+		}
+		return sender;
+	}
+	
 	@Deprecated
 	@Override
 	public <T> AsyncProxy<T> createAsyncAgentProxy(final URI receiverUrl,
@@ -249,8 +619,11 @@ public final class AgentHost implements AgentHostInterface {
 	@Override
 	public <T> AsyncProxy<T> createAsyncAgentProxy(final AgentInterface sender,
 			final URI receiverUrl, Class<T> agentInterface) {
-		return new AsyncProxy<T>(createAgentProxy(sender, receiverUrl,
-				agentInterface));
+		if (!ClassUtil.hasInterface(agentInterface, AgentInterface.class)) {
+			throw new IllegalArgumentException("agentInterface must extend "
+					+ AgentInterface.class.getName());
+		}
+		return new AsyncProxy<T>(this, sender, receiverUrl, agentInterface);
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -272,15 +645,19 @@ public final class AgentHost implements AgentHostInterface {
 			return (T) createAspectAgent(agentType, agentId);
 		}
 		
-		// validate the Eve agent and output as warnings
-		List<String> errors = JSONRPC.validate(agentType, EVEREQUESTPARAMS);
-		for (String error : errors) {
-			LOG.warning("Validation error class: " + agentType.getName()
-					+ ", message: " + error);
-		}
+		// validate the Eve agent (once per type) and output as warnings
+		prepareType(agentType);
 		
-		// create the state
-		State state = getStateFactory().create(agentId);
+		// create the state. Like in eager mode, a new agent does not receive
+		// earlier signals: its position is set before recordSignal can
+		// count it.
+		State state;
+		synchronized (pendingSignals) {
+			state = getStateFactory().create(agentId);
+			if (signalCount > 0) {
+				signalled.put(agentId, new AtomicInteger(signalCount));
+			}
+		}
 		state.setAgentType(agentType);
 		state.init();
 		
@@ -294,7 +671,6 @@ public final class AgentHost implements AgentHostInterface {
 				&& agentType.getAnnotation(ThreadSafe.class).value()) {
 			ObjectCache.put(agentId, agent);
 		}
-		
 		return agent;
 	}
 	
@@ -326,9 +702,15 @@ public final class AgentHost implements AgentHostInterface {
 			}
 			try {
 				// get the agent and execute the delete method
-				agent.signalAgent(new AgentSignal<Void>("destroy"));
-				agent.signalAgent(new AgentSignal<Void>("delete"));
+				deliver(agentId, agent, new AgentSignal<Void>("destroy"));
+				deliver(agentId, agent, new AgentSignal<Void>("delete"));
 				ObjectCache.delete(agentId);
+				mailboxes.remove(agentId);
+				forgetSignals(agentId);
+				for (Map<String, RequestParams> byScheme : localParams
+						.values()) {
+					byScheme.remove(agentId);
+				}
 				agent = null;
 			} catch (Exception e) {
 				LOG.log(Level.WARNING, "Error deleting agent:" + agentId, e);
@@ -350,8 +732,44 @@ public final class AgentHost implements AgentHostInterface {
 	}
 	
 	@Override
-	public JSONResponse receive(String receiverId, JSONRequest request,
+	public JSONResponse receive(final String receiverId,
+			final JSONRequest request, final RequestParams requestParams)
+			throws JSONRPCException {
+		if (mailboxMode) {
+			return callMailbox(receiverId, new Callable<JSONResponse>() {
+				@Override
+				public JSONResponse call() throws JSONRPCException {
+					return invoke(receiverId, request, requestParams);
+				}
+			});
+		}
+		return invoke(receiverId, request, requestParams);
+	}
+	
+	@Override
+	public Future<JSONResponse> receiveAsync(final String receiverId,
+			final JSONRequest request, final RequestParams requestParams) {
+		Callable<JSONResponse> call = new Callable<JSONResponse>() {
+			@Override
+			public JSONResponse call() throws JSONRPCException {
+				return invoke(receiverId, request, requestParams);
+			}
+		};
+		if (mailboxMode) {
+			return getMailbox(receiverId).submit(call);
+		}
+		FutureTask<JSONResponse> task = new FutureTask<JSONResponse>(call);
+		try {
+			executorService.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+		return task;
+	}
+	
+	private JSONResponse invoke(String receiverId, JSONRequest request,
 			RequestParams requestParams) throws JSONRPCException {
+		enter(receiverId);
 		try {
 			Agent receiver = getAgent(receiverId);
 			if (receiver != null) {
@@ -362,11 +780,132 @@ public final class AgentHost implements AgentHostInterface {
 		} catch (Exception e) {
 			throw new JSONRPCException("Couldn't instantiate agent for id '"
 					+ receiverId + "'", e);
+		} finally {
+			leave(receiverId);
 		}
 		throw new JSONRPCException("Agent with id '" + receiverId
 				+ "' not found");
 	}
 	
+	/**
+	 * Count a call to an agent as in progress, outside mailbox mode. An
+	 * agent is only destroyed on eviction when no calls are in progress.
+	 */
+	private void enter(String agentId) {
+		if (mailboxMode) {
+			return;
+		}
+		while (true) {
+			AtomicInteger count = calls.get(agentId);
+			if (count == null) {
+				count = new AtomicInteger();
+				AtomicInteger other = calls.putIfAbsent(agentId, count);
+				if (other != null) {
+					count = other;
+				}
+			}
+			count.incrementAndGet();
+			if (calls.get(agentId) == count) {
+				return;
+			}
+			// dropped by leave meanwhile
+			count.decrementAndGet();
+		}
+	}
+	
+	private void leave(String agentId) {
+		if (mailboxMode) {
+			return;
+		}
+		AtomicInteger count = calls.get(agentId);
+		if (count != null && count.decrementAndGet() <= 0) {
+			calls.remove(agentId, count);
+		}
+	}
+	
+	private boolean isBusy(String agentId) {
+		AtomicInteger count = calls.get(agentId);
+		return count != null && count.get() > 0;
+	}
+	
+	@Override
+	public void receiveNotification(final String receiverId,
+			final JSONRequest request, final RequestParams requestParams) {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					JSONResponse response = receive(receiverId, request,
+							requestParams);
+					JSONRPCException err = response.getError();
+					if (err != null) {
+						LOG.warning("Notification '" + request.getMethod()
+								+ "' to agent '" + receiverId + "' failed:"
+								+ err.getLocalizedMessage());
+					}
+				} catch (Exception e) {
+					LOG.log(Level.WARNING, "Notification '"
+							+ request.getMethod() + "' to agent '"
+							+ receiverId + "' failed", e);
+				}
+			}
+		};
+		if (mailboxMode) {
+			getMailbox(receiverId).submit(Executors.callable(task));
+			return;
+		}
+		try {
+			executorService.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.run();
+		}
+	}
+	
+	@Override
+	public ArrayNode receive(final String receiverId, final ArrayNode batch,
+			final RequestParams requestParams) throws JSONRPCException {
+		if (mailboxMode) {
+			// the batch is handled as a single message, serially
+			return callMailbox(receiverId, new Callable<ArrayNode>() {
+				@Override
+				public ArrayNode call() throws JSONRPCException {
+					return invokeBatch(receiverId, batch,
+							requestParams);
+				}
+			});
+		}
+		return invokeBatch(receiverId, batch, requestParams);
+	}
+	
+	private ArrayNode invokeBatch(String receiverId, ArrayNode batch,
+			RequestParams requestParams) throws JSONRPCException {
+		enter(receiverId);
+		try {
+			Agent receiver = null;
+			try {
+				receiver = getAgent(receiverId);
+			} catch (Exception e) {
+				throw new JSONRPCException(
+						"Couldn't instantiate agent for id '" + receiverId
+								+ "'", e);
+			}
+			if (receiver == null) {
+				throw new JSONRPCException("Agent with id '" + receiverId
+						+ "' not found");
+			}
+			// Only agents which may be shared between threads can handle
+			// the entries of the batch in parallel.
+			Class<?> agentType = receiver.getClass();
+			boolean threadSafe = !mailboxMode
+					&& agentType.isAnnotationPresent(ThreadSafe.class)
+					&& agentType.getAnnotation(ThreadSafe.class).value();
+			return JSONRPC.invoke(receiver, batch, requestParams, receiver,
+					threadSafe ? executorService : null);
+		} finally {
+			leave(receiverId);
+		}
+	}
+	
 	@Deprecated
 	@Override
 	public JSONResponse send(URI receiverUrl, JSONRequest request)
@@ -377,6 +916,189 @@ public final class AgentHost implements AgentHostInterface {
 	@Override
 	public JSONResponse send(AgentInterface sender, URI receiverUrl,
 			JSONRequest request) throws ProtocolException, JSONRPCException {
+		String receiverId = getLocalAgentId(receiverUrl);
+		if (receiverId != null) {
+			// local shortcut
+			return receive(receiverId, request,
+					getLocalParams(sender, receiverUrl));
+		} else {
+			String protocol = receiverUrl.getScheme();
+			String senderUrl = null;
+			if (sender != null) {
+				senderUrl = getSenderUrl(sender.getId(),
+						receiverUrl.toASCIIString());
+			}
+			
+			TransportService service = null;
+			service = getTransportService(protocol);
+			
+			if (service != null) {
+				JSONResponse response = service.send(senderUrl,
+						receiverUrl.toASCIIString(), request);
+				return response;
+			} else {
+				throw new ProtocolException(
+						"No transport service configured for protocol '"
+								+ protocol + "'.");
+			}
+		}
+	}
+	
+	@Override
+	public <T> T send(AgentInterface sender, URI receiverUrl,
+			final String method, Object params, JavaType type)
+			throws ProtocolException, JSONRPCException {
+		final String receiverId = getLocalAgentId(receiverUrl);
+		if (receiverId != null && (params == null || params instanceof Map)) {
+			// local call: pass the java objects, applying the copy policy
+			final Map<String, Object> args = getLocalArgs((Map<?, ?>) params);
+			final RequestParams requestParams = getLocalParams(sender,
+					receiverUrl);
+			Object result;
+			if (mailboxMode) {
+				result = callMailbox(receiverId, new Callable<Object>() {
+					@Override
+					public Object call() throws JSONRPCException {
+						return invokeLocal(receiverId, method, args,
+								requestParams);
+					}
+				});
+			} else {
+				result = invokeLocal(receiverId, method, args, requestParams);
+			}
+			return TypeUtil.inject(copyPolicy.copy(result), type);
+		}
+		
+		ObjectNode jsonParams;
+		if (params instanceof ObjectNode) {
+			jsonParams = (ObjectNode) params;
+		} else {
+			jsonParams = JOM.getInstance().valueToTree(params);
+		}
+		JSONRequest request = new JSONRequest(RequestId.next(), method,
+				jsonParams);
+		JSONResponse response = send(sender, receiverUrl, request);
+		JSONRPCException err = response.getError();
+		if (err != null) {
+			throw err;
+		}
+		return TypeUtil.inject(response.getResult(), type);
+	}
+	
+	/**
+	 * Get the id of the receiver of a call which can be handled locally,
+	 * without parsing "local:" urls through a regex.
+	 * 
+	 * @param receiverUrl
+	 * @return agentId, or null when the call goes through a transport
+	 */
+	private String getLocalAgentId(URI receiverUrl) {
+		if ("local".equals(receiverUrl.getScheme())) {
+			String agentId = receiverUrl.getRawSchemeSpecificPart();
+			int start = 0;
+			while (start < 2 && start < agentId.length()
+					&& agentId.charAt(start) == '/') {
+				start++;
+			}
+			return (start > 0) ? agentId.substring(start) : agentId;
+		}
+		return doesShortcut ? getAgentId(receiverUrl.toASCIIString()) : null;
+	}
+	
+	/**
+	 * Apply the copy policy to the params of a local call. The map itself is
+	 * never handed to the receiving agent, so it is only copied when one of
+	 * its values is.
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> getLocalArgs(Map<?, ?> params) {
+		if (params == null || params.isEmpty()) {
+			return null;
+		}
+		Map<String, Object> args = null;
+		for (Entry<?, ?> entry : params.entrySet()) {
+			Object value = entry.getValue();
+			Object copy = copyPolicy.copy(value);
+			if (args == null && (copy != value || !(entry.getKey() instanceof String))) {
+				args = new HashMap<String, Object>(params.size() * 2);
+				for (Entry<?, ?> done : params.entrySet()) {
+					if (done == entry) {
+						break;
+					}
+					args.put(String.valueOf(done.getKey()), done.getValue());
+				}
+			}
+			if (args != null) {
+				args.put(String.valueOf(entry.getKey()), copy);
+			}
+		}
+		return (args != null) ? args : (Map<String, Object>) params;
+	}
+	
+	/**
+	 * Get the request params of a local call. They only hold the sender url,
+	 * and are shared read only by all calls of the sender through the same
+	 * scheme. The params of at most MAX_LOCAL_PARAMS senders are kept per
+	 * scheme.
+	 */
+	private RequestParams getLocalParams(AgentInterface sender, URI receiverUrl) {
+		if (sender == null) {
+			return EVEREQUESTPARAMS;
+		}
+		String scheme = receiverUrl.getScheme();
+		ConcurrentHashMap<String, RequestParams> byScheme = localParams
+				.get(scheme);
+		if (byScheme == null) {
+			byScheme = new ConcurrentHashMap<String, RequestParams>();
+			ConcurrentHashMap<String, RequestParams> old = localParams
+					.putIfAbsent(scheme, byScheme);
+			if (old != null) {
+				byScheme = old;
+			}
+		}
+		String senderId = sender.getId();
+		RequestParams requestParams = byScheme.get(senderId);
+		if (requestParams == null) {
+			requestParams = new RequestParams();
+			requestParams.put(Sender.class,
+					getSenderUrl(senderId, receiverUrl.toASCIIString()));
+			requestParams = requestParams.unmodifiable();
+			if (byScheme.size() >= MAX_LOCAL_PARAMS) {
+				// cheap to rebuild
+				byScheme.clear();
+			}
+			byScheme.put(senderId, requestParams);
+		}
+		return requestParams;
+	}
+	
+	private Object invokeLocal(String receiverId, String method,
+			Map<String, Object> params, RequestParams requestParams)
+			throws JSONRPCException {
+		enter(receiverId);
+		try {
+			Agent receiver = null;
+			try {
+				receiver = getAgent(receiverId);
+			} catch (Exception e) {
+				throw new JSONRPCException(
+						"Couldn't instantiate agent for id '" + receiverId
+								+ "'", e);
+			}
+			if (receiver == null) {
+				throw new JSONRPCException("Agent with id '" + receiverId
+						+ "' not found");
+			}
+			return JSONRPC.invoke(receiver, method, params, requestParams,
+					receiver);
+		} finally {
+			leave(receiverId);
+		}
+	}
+	
+	@Override
+	public void sendNotification(AgentInterface sender, URI receiverUrl,
+			JSONRequest request) throws ProtocolException, JSONRPCException {
 		String receiverId = getAgentId(receiverUrl.toASCIIString());
 		String protocol = receiverUrl.getScheme();
 		String senderUrl = null;
@@ -384,20 +1106,53 @@ public final class AgentHost implements AgentHostInterface {
 			senderUrl = getSenderUrl(sender.getId(),
 					receiverUrl.toASCIIString());
 		}
+		request.setNotification();
 		
 		if ("local".equals(protocol) || (doesShortcut && receiverId != null)) {
 			// local shortcut
 			RequestParams requestParams = new RequestParams();
 			requestParams.put(Sender.class, senderUrl);
-			return receive(receiverId, request, requestParams);
+			receiveNotification(receiverId, request, requestParams);
 		} else {
-			TransportService service = null;
-			service = getTransportService(protocol);
-			
+			TransportService service = getTransportService(protocol);
 			if (service != null) {
-				JSONResponse response = service.send(senderUrl,
+				service.sendNotification(senderUrl,
 						receiverUrl.toASCIIString(), request);
-				return response;
+			} else {
+				throw new ProtocolException(
+						"No transport service configured for protocol '"
+								+ protocol + "'.");
+			}
+		}
+	}
+	
+	@Override
+	public List<JSONResponse> sendBatch(AgentInterface sender,
+			URI receiverUrl, List<JSONRequest> requests)
+			throws ProtocolException, JSONRPCException {
+		String receiverId = getAgentId(receiverUrl.toASCIIString());
+		String protocol = receiverUrl.getScheme();
+		String senderUrl = null;
+		if (sender != null) {
+			senderUrl = getSenderUrl(sender.getId(),
+					receiverUrl.toASCIIString());
+		}
+		
+		if ("local".equals(protocol) || (doesShortcut && receiverId != null)) {
+			// local shortcut
+			ArrayNode batch = JOM.createArrayNode();
+			for (JSONRequest request : requests) {
+				batch.add(request.getObjectNode());
+			}
+			RequestParams requestParams = new RequestParams();
+			requestParams.put(Sender.class, senderUrl);
+			return JSONRPC.matchBatch(requests,
+					receive(receiverId, batch, requestParams));
+		} else {
+			TransportService service = getTransportService(protocol);
+			if (service != null) {
+				return service.sendBatch(senderUrl,
+						receiverUrl.toASCIIString(), requests);
 			} else {
 				throw new ProtocolException(
 						"No transport service configured for protocol '"
@@ -422,25 +1177,30 @@ public final class AgentHost implements AgentHostInterface {
 		final String receiverId = getAgentId(receiverUrl.toASCIIString());
 		if (doesShortcut && receiverId != null) {
 			// local shortcut
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					JSONResponse response;
-					try {
-						String senderUrl = null;
-						if (sender != null) {
-							senderUrl = getSenderUrl(sender.getId(),
-									receiverUrl.toASCIIString());
+			try {
+				executorService.execute(new Runnable() {
+					@Override
+					public void run() {
+						JSONResponse response;
+						try {
+							String senderUrl = null;
+							if (sender != null) {
+								senderUrl = getSenderUrl(sender.getId(),
+										receiverUrl.toASCIIString());
+							}
+							RequestParams requestParams = new RequestParams();
+							requestParams.put(Sender.class, senderUrl);
+							response = receive(receiverId, request,
+									requestParams);
+							callback.onSuccess(response);
+						} catch (Exception e) {
+							callback.onFailure(e);
 						}
-						RequestParams requestParams = new RequestParams();
-						requestParams.put(Sender.class, senderUrl);
-						response = receive(receiverId, request, requestParams);
-						callback.onSuccess(response);
-					} catch (Exception e) {
-						callback.onFailure(e);
 					}
-				}
-			}).start();
+				});
+			} catch (RejectedExecutionException e) {
+				callback.onFailure(e);
+			}
 		} else {
 			TransportService service = null;
 			String protocol = null;
@@ -462,6 +1222,15 @@ public final class AgentHost implements AgentHostInterface {
 		}
 	}
 	
+	@Override
+	public AsyncFuture<JSONResponse> sendAsync(final AgentInterface sender,
+			final URI receiverUrl, final JSONRequest request)
+			throws JSONRPCException, ProtocolException {
+		AsyncFuture<JSONResponse> future = new AsyncFuture<JSONResponse>();
+		sendAsync(sender, receiverUrl, request, future);
+		return future;
+	}
+	
 	@Override
 	public String getAgentId(String agentUrl) {
 		if (agentUrl.startsWith("local:")) {
@@ -585,23 +1354,144 @@ public final class AgentHost implements AgentHostInterface {
 	@Override
 	public void addAgents(Config config) {
 		Map<String, String> agents = config.get("bootstrap", "agents");
-		if (agents != null) {
-			for (Entry<String, String> entry : agents.entrySet()) {
-				String agentId = entry.getKey();
-				String agentType = entry.getValue();
-				try {
-					Agent agent = getAgent(agentId);
-					if (agent == null) {
-						// agent does not yet exist. create it
-						agent = createAgent(agentType, agentId);
-						LOG.info("Bootstrap created agent id=" + agentId
-								+ ", type=" + agentType);
+		if (agents == null) {
+			return;
+		}
+		
+		// phase 1: build the reflection metadata of all agent types
+		long start = System.currentTimeMillis();
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (final String agentType : new HashSet<String>(agents.values())) {
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Class<?> type = Class.forName(agentType);
+						if (ClassUtil.hasSuperClass(type, Agent.class)) {
+							prepareType(type);
+						} else {
+							// an aspect, wrapped in an AspectAgent
+							AnnotationUtil.get(type);
+							prepareType(AspectAgent.class);
+						}
+					} catch (Exception e) {
+						LOG.log(Level.WARNING, "Failed to prepare agent type "
+								+ agentType, e);
+					}
+				}
+			});
+		}
+		runAll(tasks);
+		LOG.info("Bootstrap: prepared " + tasks.size() + " agent types in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		
+		// phase 2: load or create the agents
+		start = System.currentTimeMillis();
+		tasks.clear();
+		final Queue<Agent> loaded = new ConcurrentLinkedQueue<Agent>();
+		for (Entry<String, String> entry : agents.entrySet()) {
+			final String agentId = entry.getKey();
+			final String agentType = entry.getValue();
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Agent agent = getAgent(agentId);
+						if (agent == null) {
+							// agent does not yet exist. create it
+							agent = createAgent(agentType, agentId);
+							LOG.info("Bootstrap created agent id=" + agentId
+									+ ", type=" + agentType);
+						}
+						NamespaceUtil.prepare(agent);
+						loaded.add(agent);
+					} catch (Exception e) {
+						LOG.log(Level.WARNING, "", e);
+					}
+				}
+			});
+		}
+		runAll(tasks);
+		LOG.info("Bootstrap: loaded " + loaded.size() + " agents in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		
+		// phase 3: optionally warm up the dispatch path with local calls
+		Integer warmup = config.get("bootstrap", "warmup");
+		if (warmup == null || warmup <= 0 || loaded.isEmpty()) {
+			return;
+		}
+		start = System.currentTimeMillis();
+		tasks.clear();
+		final int rounds = warmup;
+		for (Agent agent : loaded) {
+			final String agentId = agent.getId();
+			tasks.add(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < rounds; i++) {
+							receive(agentId, new JSONRequest("warmup", "getId",
+									JOM.createObjectNode()), EVEREQUESTPARAMS);
+							receive(agentId, new JSONRequest("warmup",
+									"getMethods", JOM.createObjectNode()),
+									EVEREQUESTPARAMS);
+						}
+					} catch (Exception e) {
+						LOG.log(Level.WARNING, "Warmup of agent " + agentId
+								+ " failed", e);
 					}
-				} catch (Exception e) {
-					LOG.log(Level.WARNING, "", e);
 				}
+			});
+		}
+		runAll(tasks);
+		LOG.info("Bootstrap: warmed up " + loaded.size() + " agents with "
+				+ (rounds * 2) + " calls each in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+	
+	/**
+	 * Build and cache the reflection metadata of an agent type, and validate
+	 * it. Validation errors are logged once per type.
+	 */
+	private void prepareType(Class<?> agentType) {
+		if (preparedTypes.putIfAbsent(agentType, Boolean.TRUE) != null) {
+			return;
+		}
+		DispatchTable.get(agentType);
+		List<String> errors = JSONRPC.validate(agentType, EVEREQUESTPARAMS);
+		for (String error : errors) {
+			LOG.warning("Validation error class: " + agentType.getName()
+					+ ", message: " + error);
+		}
+	}
+	
+	/**
+	 * Run the tasks on the executor service, and wait until all are done
+	 */
+	private void runAll(List<Runnable> tasks) {
+		final CountDownLatch done = new CountDownLatch(tasks.size());
+		for (final Runnable task : tasks) {
+			Runnable counted = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						done.countDown();
+					}
+				}
+			};
+			try {
+				executorService.execute(counted);
+			} catch (RejectedExecutionException e) {
+				counted.run();
 			}
 		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
 	}
 	
 	@Override
@@ -766,6 +1656,7 @@ public final class AgentHost implements AgentHostInterface {
 	public void addTransportService(TransportService transportService) {
 		if (!transportServices.contains(transportService.getKey())) {
 			transportServices.put(transportService.getKey(), transportService);
+			localParams.clear();
 			LOG.info("Registered transport service: "
 					+ transportService.toString());
 			if (HOST != null) {
@@ -780,6 +1671,7 @@ public final class AgentHost implements AgentHostInterface {
 	@Override
 	public void removeTransportService(TransportService transportService) {
 		transportServices.remove(transportService);
+		localParams.clear();
 		LOG.info("Unregistered transport service "
 				+ transportService.toString());
 		HOST.signalAgents(new AgentSignal<TransportService>(
@@ -817,11 +1709,167 @@ public final class AgentHost implements AgentHostInterface {
 		return null;
 	}
 	
+	@Override
+	public ExecutorService getExecutorService() {
+		return executorService;
+	}
+	
+	@Override
+	public void setExecutorService(ExecutorService executorService) {
+		ExecutorService old = this.executorService;
+		this.executorService = executorService;
+		if (old != null && old != executorService) {
+			// running and queued tasks are still completed
+			old.shutdown();
+		}
+	}
+	
+	@Override
+	public void setExecutorFactory(ExecutorFactory executorFactory) {
+		this.executorFactory = executorFactory;
+		setExecutorService(executorFactory.createExecutorService());
+	}
+	
+	@Override
+	public ExecutorFactory getExecutorFactory() {
+		return executorFactory;
+	}
+	
+	@Override
+	public void setExecutorFactory(Config config) {
+		// read all executor params (will be fed to the executor factory
+		// on construction)
+		Map<String, Object> params = config.get("executor");
+		if (params == null) {
+			return;
+		}
+		String className = (String) params.get("class");
+		if (className == null) {
+			className = "BoundedExecutorFactory";
+		}
+		
+		// Recognize known classes by their short name,
+		// and replace the short name for the full class path
+		for (String name : EXECUTOR_FACTORIES.keySet()) {
+			if (className.equalsIgnoreCase(name)) {
+				className = EXECUTOR_FACTORIES.get(name);
+				break;
+			}
+		}
+		
+		try {
+			// get the class
+			Class<?> executorClass = Class.forName(className);
+			if (!ClassUtil.hasInterface(executorClass, ExecutorFactory.class)) {
+				throw new IllegalArgumentException("Executor class "
+						+ executorClass.getName() + " must implement "
+						+ ExecutorFactory.class.getName());
+			}
+			
+			// initialize the executor factory
+			ExecutorFactory ef = (ExecutorFactory) executorClass
+					.getConstructor(AgentHost.class, Map.class).newInstance(
+							this, params);
+			
+			setExecutorFactory(ef);
+			
+			LOG.info("Initialized executor factory: "
+					+ ef.getClass().getName());
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+	}
+	
+	@Override
+	public void setMailboxMode(boolean mailboxMode) {
+		this.mailboxMode = mailboxMode;
+	}
+	
+	@Override
+	public boolean isMailboxMode() {
+		return mailboxMode;
+	}
+	
+	@Override
+	public void setSignalParallelism(int parallelism) {
+		this.signalParallelism = parallelism;
+	}
+	
+	@Override
+	public void setLazySignals(boolean lazySignals) {
+		this.lazySignals = lazySignals;
+	}
+	
+	@Override
+	public boolean isLazySignals() {
+		return lazySignals;
+	}
+	
+	@Override
+	public void setCopyPolicy(CopyPolicy copyPolicy) {
+		this.copyPolicy = copyPolicy;
+	}
+	
+	@Override
+	public CopyPolicy getCopyPolicy() {
+		return copyPolicy;
+	}
+	
+	Mailbox getMailbox(String agentId) {
+		Mailbox mailbox = mailboxes.get(agentId);
+		if (mailbox == null) {
+			mailbox = new Mailbox(this, agentId);
+			Mailbox other = mailboxes.putIfAbsent(agentId, mailbox);
+			if (other != null) {
+				mailbox = other;
+			}
+		}
+		return mailbox;
+	}
+	
+	/**
+	 * Queue a call in the mailbox of an agent and wait for its result,
+	 * unwrapping its exception.
+	 * 
+	 * @param agentId
+	 * @param call
+	 * @return result
+	 * @throws JSONRPCException
+	 */
+	/**
+	 * Forget a retired mailbox
+	 */
+	void removeMailbox(String agentId, Mailbox mailbox) {
+		mailboxes.remove(agentId, mailbox);
+	}
+	
+	private <T> T callMailbox(String agentId, Callable<T> call)
+			throws JSONRPCException {
+		try {
+			return getMailbox(agentId).call(call);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof JSONRPCException) {
+				throw (JSONRPCException) e.getCause();
+			}
+			throw new JSONRPCException(JSONRPCException.CODE.INTERNAL_ERROR,
+					e.getCause().getMessage(), e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JSONRPCException(JSONRPCException.CODE.INTERNAL_ERROR,
+					"Interrupted while waiting for the agent", e);
+		}
+	}
+	
 	@Override
 	public List<Object> getMethods(Agent agent) {
 		return JSONRPC.describe(agent, EVEREQUESTPARAMS);
 	}
 	
+	@Override
+	public Description getDescription(Agent agent) {
+		return JSONRPC.getDescription(agent, EVEREQUESTPARAMS);
+	}
+	
 	@Override
 	public void setSchedulerFactory(SchedulerFactory schedulerFactory) {
 		if (this.schedulerFactory != null) {
@@ -840,4 +1888,17 @@ public final class AgentHost implements AgentHostInterface {
 		return schedulerFactory.getScheduler(agent);
 	}
 	
+	/**
+	 * A signal recorded in lazy mode, with the number of agents which still
+	 * have to receive it
+	 */
+	private static final class PendingSignal {
+		private final AgentSignal<?>	signal;
+		/** one extra while the agents are being counted */
+		private final AtomicInteger		remaining	= new AtomicInteger(1);
+		
+		private PendingSignal(AgentSignal<?> signal) {
+			this.signal = signal;
+		}
+	}
 }
@@ -5,11 +5,15 @@ import java.lang.reflect.InvocationTargetException;
 import java.net.ProtocolException;
 import java.net.URI;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.almende.eve.agent.log.EventLogger;
 import com.almende.eve.agent.proxy.AsyncProxy;
 import com.almende.eve.config.Config;
+import com.almende.eve.executor.ExecutorFactory;
 import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.jsonrpc.Description;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
@@ -17,7 +21,10 @@ import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.scheduler.SchedulerFactory;
 import com.almende.eve.state.StateFactory;
 import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncFuture;
 import com.almende.eve.transport.TransportService;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 
 /**
  * The AgentHost is a factory to instantiate and invoke Eve Agents within the
@@ -65,7 +72,9 @@ interface AgentHostInterface {
 
 	
 		/**
-		 * Signal all agents about AgentHost event.
+		 * Signal all agents about AgentHost event. Agents are signalled in
+		 * parallel on the executor service, or lazily on their next
+		 * activation in lazy mode.
 		 * @param event
 		 */
 		void signalAgents(AgentSignal<?> event);	
@@ -259,6 +268,48 @@ interface AgentHostInterface {
 		JSONResponse receive(String receiverId, JSONRequest request,
 				RequestParams requestParams) throws JSONRPCException;
 		
+		/**
+		 * Invoke a JSON-RPC request on a local agent without waiting for the
+		 * result. In mailbox mode the request is queued in the agent's
+		 * mailbox, otherwise it is executed on the executor service.
+		 * 
+		 * @param receiverId
+		 *            Id of the receiver agent
+		 * @param request
+		 * @param requestParams
+		 * @return future response
+		 */
+		Future<JSONResponse> receiveAsync(String receiverId,
+				JSONRequest request, RequestParams requestParams);
+		
+		/**
+		 * Invoke a notification on a local agent. The notification is handled
+		 * asynchronously, no response is generated.
+		 * 
+		 * @param receiverId
+		 *            Id of the receiver agent
+		 * @param request
+		 *            A JSON-RPC request without id
+		 * @param requestParams
+		 */
+		void receiveNotification(String receiverId, JSONRequest request,
+				RequestParams requestParams);
+		
+		/**
+		 * Invoke a JSON-RPC 2.0 batch on a local agent. Independent entries are
+		 * executed in parallel when the agent is thread safe.
+		 * 
+		 * @param receiverId
+		 *            Id of the receiver agent
+		 * @param batch
+		 *            An array of JSON-RPC requests
+		 * @param requestParams
+		 * @return responses An array of JSON-RPC responses
+		 * @throws JSONRPCException
+		 */
+		ArrayNode receive(String receiverId, ArrayNode batch,
+				RequestParams requestParams) throws JSONRPCException;
+		
 		/**
 		 * Invoke a local or remote agent. In case of an local agent, the agent is
 		 * invoked immediately. In case of an remote agent, an HTTP Request is sent
@@ -295,6 +346,29 @@ interface AgentHostInterface {
 		JSONResponse send(AgentInterface sender, URI receiverUrl,
 				JSONRequest request) throws ProtocolException, JSONRPCException;
 		
+		/**
+		 * Invoke a method of a local or remote agent. The parameters and
+		 * result of a call to an agent of this host are passed as java
+		 * objects, subject to the copy policy, when the params are a Map
+		 * (or null). They are only serialized when the call leaves the
+		 * host.
+		 * 
+		 * @param sender
+		 *            Sending agent, may be null
+		 * @param receiverUrl
+		 * @param method
+		 * @param params
+		 *            parameters by name
+		 * @param type
+		 *            expected type of the result
+		 * @return result
+		 * @throws ProtocolException
+		 * @throws JSONRPCException
+		 */
+		<T> T send(AgentInterface sender, URI receiverUrl, String method,
+				Object params, JavaType type) throws ProtocolException,
+				JSONRPCException;
+		
 		/**
 		 * Asynchronously invoke a request on an agent.
 		 * 
@@ -330,6 +404,58 @@ interface AgentHostInterface {
 				final AsyncCallback<JSONResponse> callback)
 				throws JSONRPCException, ProtocolException;
 		
+		/**
+		 * Asynchronously invoke a request on an agent.
+		 * 
+		 * @param sender
+		 *            Internal id of the sender agent. Not required for all
+		 *            transport services (for example not for outgoing HTTP
+		 *            requests)
+		 * @param receiverUrl
+		 * @param request
+		 * @return future response, which can be waited on with a timeout,
+		 *         or cancelled
+		 * @throws JSONRPCException
+		 * @throws ProtocolException
+		 */
+		AsyncFuture<JSONResponse> sendAsync(final AgentInterface sender,
+				final URI receiverUrl, final JSONRequest request)
+				throws JSONRPCException, ProtocolException;
+		
+		/**
+		 * Send a notification to a local or remote agent: a request without
+		 * id, to which the receiver will not reply.
+		 * 
+		 * @param sender
+		 *            Sending agent. Not required for all
+		 *            transport services (for example not for outgoing HTTP
+		 *            requests), in which cases a "null" value may be passed.
+		 * @param receiverUrl
+		 * @param request
+		 * @throws JSONRPCException
+		 * @throws ProtocolException
+		 */
+		void sendNotification(AgentInterface sender, URI receiverUrl,
+				JSONRequest request) throws ProtocolException, JSONRPCException;
+		
+		/**
+		 * Invoke a JSON-RPC 2.0 batch of requests on a local or remote agent. The
+		 * whole batch is sent in a single message.
+		 * 
+		 * @param sender
+		 *            Sending agent. Not required for all
+		 *            transport services (for example not for outgoing HTTP
+		 *            requests), in which cases a "null" value may be passed.
+		 * @param receiverUrl
+		 * @param requests
+		 * @return responses, in the same order as the requests
+		 * @throws JSONRPCException
+		 * @throws ProtocolException
+		 */
+		List<JSONResponse> sendBatch(AgentInterface sender, URI receiverUrl,
+				List<JSONRequest> requests) throws ProtocolException,
+				JSONRPCException;
+		
 		/**
 		 * Get the agentId from given agentUrl. The url can be any protocol. If the
 		 * url matches any of the registered transport services, an agentId is
@@ -470,6 +596,117 @@ interface AgentHostInterface {
 		 */
 		TransportService getTransportService(String protocol);
 		
+		/**
+		 * Get the executor service of this host, on which all asynchronous
+		 * work (asynchronous sends, notifications, batch entries, mailboxes
+		 * and incoming XMPP requests) is executed. By default this is a
+		 * {@link com.almende.eve.executor.BoundedExecutorService}, which
+		 * exposes queue depth and rejection counters.
+		 * 
+		 * @return executorService
+		 */
+		ExecutorService getExecutorService();
+		
+		/**
+		 * Replace the executor service of this host. The previous executor
+		 * is shut down after completing its pending tasks.
+		 * 
+		 * @param executorService
+		 */
+		void setExecutorService(ExecutorService executorService);
+		
+		/**
+		 * Set the executor factory, and replace the executor service of this
+		 * host by one created by the factory.
+		 * 
+		 * @param executorFactory
+		 */
+		void setExecutorFactory(ExecutorFactory executorFactory);
+		
+		/**
+		 * Get the executor factory of this host. Schedulers create their
+		 * timers with it.
+		 * 
+		 * @return executorFactory
+		 */
+		ExecutorFactory getExecutorFactory();
+		
+		/**
+		 * Configure the executor factory from the "executor" section of the
+		 * config. The section's "class" selects the factory (by default
+		 * BoundedExecutorFactory, with parameters coreThreads, maxThreads,
+		 * queueSize, keepAlive and rejection). Without such section the
+		 * current executor is kept.
+		 * 
+		 * @param config
+		 */
+		void setExecutorFactory(Config config);
+		
+		/**
+		 * Enable or disable mailbox mode. In mailbox mode every agent gets
+		 * a serial mailbox: calls to an agent are queued and executed one at
+		 * a time by the executor service. Agents then never run concurrently,
+		 * and all agents are cached, whether they are @ThreadSafe or not.
+		 * A synchronous call to a local agent is handled on the thread of the
+		 * caller when possible, so calls between agents do not hold extra
+		 * threads of the executor; synchronous calls to remote agents do
+		 * hold a thread while they wait, so size the executor for them.
+		 * Configured by "mailbox"."enabled" in eve.yaml.
+		 * 
+		 * @param mailboxMode
+		 */
+		void setMailboxMode(boolean mailboxMode);
+		
+		/**
+		 * Check whether mailbox mode is enabled.
+		 * 
+		 * @return mailboxMode
+		 */
+		boolean isMailboxMode();
+		
+		/**
+		 * Set the number of threads used to deliver a signal to all agents.
+		 * Configured by "signals"."parallelism" in eve.yaml, defaults to the
+		 * number of processors.
+		 * 
+		 * @param parallelism
+		 */
+		void setSignalParallelism(int parallelism);
+		
+		/**
+		 * Enable or disable lazy signalling. In lazy mode, signals to all
+		 * agents are recorded instead of delivered, and each agent receives
+		 * the signals it missed the next time it is activated. Agents which
+		 * are never used are then not loaded at startup; on the other hand
+		 * they do not reconnect to new transport services until activated.
+		 * Configured by "signals"."lazy" in eve.yaml.
+		 * 
+		 * @param lazySignals
+		 */
+		void setLazySignals(boolean lazySignals);
+		
+		/**
+		 * Check whether lazy signalling is enabled.
+		 * 
+		 * @return lazySignals
+		 */
+		boolean isLazySignals();
+		
+		/**
+		 * Set the policy for the parameters and results of calls between
+		 * agents of this host. Configured by "local"."copy" in eve.yaml.
+		 * 
+		 * @param copyPolicy
+		 */
+		void setCopyPolicy(CopyPolicy copyPolicy);
+		
+		/**
+		 * Get the policy for calls between agents of this host.
+		 * 
+		 * @return copyPolicy
+		 */
+		CopyPolicy getCopyPolicy();
+		
 		/**
 		 * Describes the RPC methods the given agent provides
 		 * @param agent
@@ -477,6 +714,14 @@ interface AgentHostInterface {
 		 */
 		List<Object> getMethods(Agent agent);
 		
+		/**
+		 * Get the cached description of the RPC methods the given agent
+		 * provides, with its ETag
+		 * @param agent
+		 * @return
+		 */
+		Description getDescription(Agent agent);
+		
 		/**
 		 * Set a scheduler factory. The scheduler factory is used to
 		 * get/create/delete an agents scheduler.
@@ -13,9 +13,11 @@ import com.almende.eve.monitor.ResultMonitorFactoryInterface;
 import com.almende.eve.rpc.jsonrpc.JSONAuthorizor;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.scheduler.Scheduler;
 import com.almende.eve.state.State;
 import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncFuture;
 import com.almende.util.TypeUtil;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -247,6 +249,32 @@ public interface AgentInterface extends JSONAuthorizor {
 	void send(URI url, String method) throws ProtocolException,
 			JSONRPCException;
 	
+	/**
+	 * Send a batch of requests to another agent in a single JSON-RPC 2.0
+	 * batch call. Requests without id get a generated one.
+	 * 
+	 * @param url
+	 * @param requests
+	 * @return responses, in the same order as the requests
+	 * @throws Exception
+	 */
+	List<JSONResponse> sendBatch(URI url, List<JSONRequest> requests)
+			throws ProtocolException, JSONRPCException;
+	
+	/**
+	 * Send a notification to another agent: the method is invoked on the
+	 * receiver, but no response is sent back and the call returns without
+	 * waiting for the receiver. Errors on the receiving side are not reported.
+	 * 
+	 * @param url
+	 * @param method
+	 * @param params
+	 * @throws ProtocolException
+	 * @throws JSONRPCException
+	 */
+	void sendNotification(URI url, String method, Object params)
+			throws ProtocolException, JSONRPCException;
+	
 	/**
 	 * Do an asynchronous RPC call to another agent.
 	 * 
@@ -329,6 +357,53 @@ public interface AgentInterface extends JSONAuthorizor {
 			final AsyncCallback<T> callback, final JavaType type)
 			throws ProtocolException, JSONRPCException;
 	
+	/**
+	 * Do an asynchronous RPC call to another agent, returning a future
+	 * result. The future can be waited on (with a timeout), cancelled, or
+	 * given callbacks. Issue several calls before waiting on any of them to
+	 * execute them concurrently.
+	 * 
+	 * @param url
+	 * @param method
+	 * @param params
+	 * @param type
+	 * @return future result
+	 * @throws ProtocolException
+	 * @throws JSONRPCException
+	 */
+	<T> AsyncFuture<T> sendAsync(URI url, String method, Object params,
+			Class<T> type) throws ProtocolException, JSONRPCException;
+	
+	/**
+	 * Do an asynchronous RPC call to another agent, returning a future
+	 * result.
+	 * 
+	 * @param url
+	 * @param method
+	 * @param params
+	 * @param type
+	 * @return future result
+	 * @throws ProtocolException
+	 * @throws JSONRPCException
+	 */
+	<T> AsyncFuture<T> sendAsync(URI url, String method, Object params,
+			Type type) throws ProtocolException, JSONRPCException;
+	
+	/**
+	 * Do an asynchronous RPC call to another agent, returning a future
+	 * result.
+	 * 
+	 * @param url
+	 * @param method
+	 * @param params
+	 * @param type
+	 * @return future result
+	 * @throws ProtocolException
+	 * @throws JSONRPCException
+	 */
+	<T> AsyncFuture<T> sendAsync(URI url, String method, Object params,
+			JavaType type) throws ProtocolException, JSONRPCException;
+	
 	/**
 	 * Create a proxy to an other agent. Invoked methods will be send to the
 	 * actual agent via the AgentHost.
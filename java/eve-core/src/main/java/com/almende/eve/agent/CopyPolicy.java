@@ -0,0 +1,70 @@
+package com.almende.eve.agent;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.util.UUID;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Policy for the parameters and results of calls between agents of the same
+ * host, which are passed as java objects instead of being serialized.
+ * Configured by "local"."copy" in eve.yaml: none, immutable (the default) or
+ * deep.
+ */
+public enum CopyPolicy {
+	/**
+	 * Pass all objects by reference: caller and callee share them
+	 */
+	NONE,
+	/**
+	 * Pass immutable values (strings, numbers, enums, ...) by reference, and
+	 * copy all other objects
+	 */
+	IMMUTABLE,
+	/**
+	 * Copy all values, which gives exactly the semantics of a remote call
+	 */
+	DEEP;
+
+	/**
+	 * Apply this policy to a value. A copied value is returned as a JSON
+	 * tree, which is converted to the expected type by the receiving side.
+	 *
+	 * @param value
+	 * @return value or its copy
+	 */
+	public Object copy(Object value) {
+		if (value == null || this == NONE
+				|| (this == IMMUTABLE && isImmutable(value))) {
+			return value;
+		}
+		if (value instanceof JsonNode) {
+			return ((JsonNode) value).deepCopy();
+		}
+		return JOM.getInstance().valueToTree(value);
+	}
+
+	/**
+	 * Get the policy with the given name, case insensitive
+	 *
+	 * @param name
+	 * @return policy
+	 */
+	public static CopyPolicy get(String name) {
+		return valueOf(name.toUpperCase());
+	}
+
+	private static boolean isImmutable(Object value) {
+		Class<?> type = value.getClass();
+		return type == String.class || type == Integer.class
+				|| type == Long.class || type == Double.class
+				|| type == Boolean.class || type == Float.class
+				|| type == Short.class || type == Byte.class
+				|| type == Character.class || type == BigInteger.class
+				|| type == BigDecimal.class || type == URI.class
+				|| type == UUID.class || value instanceof Enum;
+	}
+}
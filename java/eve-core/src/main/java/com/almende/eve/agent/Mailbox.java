@@ -0,0 +1,294 @@
+package com.almende.eve.agent;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serial mailbox of a single agent. Calls are queued and executed one at a
+ * time, in arrival order, by the executor service of the host: an agent
+ * never runs on two threads at once, while all agents share the threads of
+ * the executor.
+ *
+ * A synchronous caller blocks anyway, so it handles the queued calls on its
+ * own thread when the mailbox is not being handled yet, instead of waiting
+ * for a thread of the executor. A caller only waits while another thread
+ * handles the mailbox; that thread then makes progress, so a chain of
+ * synchronous calls between agents occupies a single thread, and cannot
+ * exhaust the executor by itself.
+ *
+ * A synchronous call which (indirectly) calls back into an agent which is
+ * waiting for it, is executed directly instead of being queued, as queuing
+ * it would deadlock. This also holds for agents calling each other at the
+ * same time from different threads: the waits are tracked per mailbox, and
+ * a call closing a cycle of waits is executed directly. Such a call runs
+ * while the agent it calls is halfway a call of its own.
+ *
+ * Calls which block on something else than an agent of this host, like a
+ * synchronous call to a remote agent, still hold a thread of the executor
+ * while they wait.
+ */
+final class Mailbox {
+	/** The message handled by this thread */
+	private static final ThreadLocal<Message>	CURRENT		= new ThreadLocal<Message>();
+	/** Maximum number of messages handled per turn, for fairness */
+	private static final int					THROUGHPUT	= 16;
+	/** Maximum length of a cycle of waits which is detected */
+	private static final int					MAX_CYCLE	= 64;
+	private static final int					IDLE		= 0;
+	private static final int					QUEUED		= 1;
+	private static final int					RUNNING		= 2;
+	private static final int					RETIRED		= 3;
+
+	private final AgentHost						host;
+	private final String						agentId;
+	private final Queue<Message>				queue		= new ConcurrentLinkedQueue<Message>();
+	private final AtomicInteger					state		= new AtomicInteger(
+																	IDLE);
+	/** Number of synchronous callers waiting for a call to this mailbox */
+	private final AtomicInteger					waiters		= new AtomicInteger();
+	/** Retire once idle, after the last call is handled */
+	private volatile boolean					closing		= false;
+	/** The mailbox the handler of this mailbox is waiting for, if any */
+	private volatile Mailbox					waitingFor	= null;
+	private final Runnable						drainer		= new Runnable() {
+																	@Override
+																	public void run() {
+																		if (state.compareAndSet(
+																				QUEUED,
+																				RUNNING)) {
+																			drain(null);
+																		}
+																	}
+																};
+
+	Mailbox(AgentHost host, String agentId) {
+		this.host = host;
+		this.agentId = agentId;
+	}
+
+	/**
+	 * Queue a call for this mailbox, without waiting for it.
+	 *
+	 * @param call
+	 * @return future result
+	 */
+	<T> Future<T> submit(Callable<T> call) {
+		FutureTask<T> task = new FutureTask<T>(call);
+		Set<Mailbox> chain = Collections.singleton(this);
+		if (!enqueue(new Message(this, task, chain))) {
+			return host.getMailbox(agentId).submit(call);
+		}
+		schedule();
+		return task;
+	}
+
+	/**
+	 * Queue a call for this mailbox and wait for its result. The mailboxes
+	 * of the caller's call chain are passed on, to allow reentrant calls.
+	 *
+	 * @param call
+	 * @return result
+	 * @throws ExecutionException
+	 * @throws InterruptedException
+	 */
+	<T> T call(Callable<T> call) throws ExecutionException,
+			InterruptedException {
+		FutureTask<T> task = new FutureTask<T>(call);
+		Message current = CURRENT.get();
+		Set<Mailbox> chain = new HashSet<Mailbox>(2);
+		if (current != null) {
+			chain.addAll(current.chain);
+		}
+		chain.add(this);
+		Message message = new Message(this, task,
+				Collections.unmodifiableSet(chain));
+		if (current != null && current.chain.contains(this)) {
+			// reentrant call: the owner of this mailbox is waiting on us.
+			handle(message);
+			return task.get();
+		}
+		if (!enqueue(message)) {
+			return host.getMailbox(agentId).call(call);
+		}
+		waiters.incrementAndGet();
+		Mailbox waiting = null;
+		if (current != null) {
+			waiting = current.mailbox.waitingFor;
+			current.mailbox.waitingFor = this;
+		}
+		try {
+			while (!task.isDone()) {
+				if (state.compareAndSet(IDLE, RUNNING)
+						|| state.compareAndSet(QUEUED, RUNNING)) {
+					drain(task);
+				} else if (current != null && isCycle(current.chain)) {
+					// the handler of this mailbox waits for us
+					handle(message);
+				} else {
+					synchronized (this) {
+						while (!task.isDone() && state.get() == RUNNING) {
+							wait();
+						}
+					}
+				}
+			}
+		} finally {
+			if (current != null) {
+				current.mailbox.waitingFor = waiting;
+			}
+			waiters.decrementAndGet();
+		}
+		return task.get();
+	}
+
+	/**
+	 * Retire this mailbox if it is idle. Calls which still reach a retired
+	 * mailbox are passed on to the current mailbox of the agent.
+	 *
+	 * @return retired
+	 */
+	boolean retire() {
+		if (!queue.isEmpty() || !state.compareAndSet(IDLE, RETIRED)) {
+			return false;
+		}
+		if (!queue.isEmpty()) {
+			// a call arrived meanwhile
+			state.set(IDLE);
+			schedule();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Queue a last call, e.g. destroying the agent when it is evicted from
+	 * the cache. The mailbox retires once it is idle after this call.
+	 *
+	 * @param last
+	 * @return future result
+	 */
+	<T> Future<T> close(Callable<T> last) {
+		if (state.get() == RETIRED) {
+			return host.getMailbox(agentId).close(last);
+		}
+		Future<T> result = submit(last);
+		closing = true;
+		retireIfClosing();
+		return result;
+	}
+
+	private void retireIfClosing() {
+		if (closing && retire()) {
+			host.removeMailbox(agentId, this);
+		}
+	}
+
+	private boolean enqueue(Message message) {
+		queue.offer(message);
+		if (state.get() == RETIRED && queue.remove(message)) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether the handler of this mailbox (indirectly) waits for one
+	 * of the given mailboxes
+	 */
+	private boolean isCycle(Set<Mailbox> chain) {
+		Mailbox mailbox = waitingFor;
+		for (int i = 0; mailbox != null && i < MAX_CYCLE; i++) {
+			if (chain.contains(mailbox)) {
+				return true;
+			}
+			mailbox = mailbox.waitingFor;
+		}
+		return false;
+	}
+
+	private void schedule() {
+		if (state.compareAndSet(IDLE, QUEUED)) {
+			try {
+				host.getExecutorService().execute(drainer);
+			} catch (RejectedExecutionException e) {
+				if (state.compareAndSet(QUEUED, RUNNING)) {
+					drain(null);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Handle queued messages, holding the mailbox.
+	 *
+	 * @param until
+	 *            stop once this call is done, instead of after a turn
+	 */
+	private void drain(Future<?> until) {
+		try {
+			for (int i = 0; until != null ? !until.isDone() : i < THROUGHPUT; i++) {
+				Message message = queue.poll();
+				if (message == null) {
+					break;
+				}
+				handle(message);
+				if (waiters.get() > 0) {
+					wake();
+				}
+			}
+		} finally {
+			state.set(IDLE);
+			wake();
+		}
+		if (!queue.isEmpty()) {
+			schedule();
+		} else {
+			retireIfClosing();
+		}
+	}
+
+	private synchronized void wake() {
+		notifyAll();
+	}
+
+	/**
+	 * Run a message on this thread. The mailboxes held further up the stack
+	 * of this thread are added to its chain.
+	 */
+	private static void handle(Message message) {
+		Message previous = CURRENT.get();
+		if (previous != null && !message.chain.containsAll(previous.chain)) {
+			Set<Mailbox> chain = new HashSet<Mailbox>(message.chain);
+			chain.addAll(previous.chain);
+			message = new Message(message.mailbox, message.task,
+					Collections.unmodifiableSet(chain));
+		}
+		CURRENT.set(message);
+		try {
+			message.task.run();
+		} finally {
+			CURRENT.set(previous);
+		}
+	}
+
+	private static final class Message {
+		private final Mailbox		mailbox;
+		private final Runnable		task;
+		private final Set<Mailbox>	chain;
+
+		private Message(Mailbox mailbox, Runnable task, Set<Mailbox> chain) {
+			this.mailbox = mailbox;
+			this.task = task;
+			this.chain = chain;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.almende.eve.agent;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Cache of the synchronous proxies created by an AgentHost, separate from
+ * the agent cache, so proxies do not compete with agents for its slots.
+ * Proxies are cached per sender, and the senders are held weakly: a cached
+ * proxy does not keep its sender agent alive. The proxies of a sender are
+ * bounded, least recently used first out.
+ */
+final class ProxyCache {
+	/** Maximum number of proxies kept per sender */
+	private static final int					MAX_PER_SENDER	= 64;
+	/** Stands in for calls without a sender */
+	private static final Object					NO_SENDER		= new Object();
+
+	private final Map<Object, Map<Key, Object>>	proxies			= new WeakHashMap<Object, Map<Key, Object>>();
+
+	/**
+	 * Get a cached proxy
+	 *
+	 * @param sender
+	 *            may be null
+	 * @param receiverUrl
+	 * @param type
+	 * @return proxy, or null when not cached
+	 */
+	synchronized <T> T get(AgentInterface sender, URI receiverUrl,
+			Class<T> type) {
+		Map<Key, Object> bySender = proxies.get(sender != null ? sender
+				: NO_SENDER);
+		if (bySender == null) {
+			return null;
+		}
+		return type.cast(bySender.get(new Key(receiverUrl, type)));
+	}
+
+	/**
+	 * Cache a proxy
+	 *
+	 * @param sender
+	 *            may be null
+	 * @param receiverUrl
+	 * @param type
+	 * @param proxy
+	 */
+	synchronized <T> void put(AgentInterface sender, URI receiverUrl,
+			Class<T> type, T proxy) {
+		Object owner = sender != null ? sender : NO_SENDER;
+		Map<Key, Object> bySender = proxies.get(owner);
+		if (bySender == null) {
+			bySender = new LinkedHashMap<Key, Object>(4, 0.75f, true) {
+				private static final long	serialVersionUID	= 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+					return size() > MAX_PER_SENDER;
+				}
+			};
+			proxies.put(owner, bySender);
+		}
+		bySender.put(new Key(receiverUrl, type), proxy);
+	}
+
+	private static final class Key {
+		private final URI		receiverUrl;
+		private final Class<?>	type;
+
+		private Key(URI receiverUrl, Class<?> type) {
+			this.receiverUrl = receiverUrl;
+			this.type = type;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return type == other.type
+					&& (receiverUrl == null ? other.receiverUrl == null
+							: receiverUrl.equals(other.receiverUrl));
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * type.hashCode()
+					+ (receiverUrl != null ? receiverUrl.hashCode() : 0);
+		}
+	}
+}
@@ -1,90 +1,164 @@
 package com.almende.eve.agent.proxy;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.FutureTask;
 
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.AgentInterface;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.RequestTemplate;
+import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncFuture;
+import com.almende.util.ClassCache;
 import com.almende.util.ClassUtil;
 
 /**
- * Asynchronous proxy wrapper, which can be used to decorate a generated proxy.
+ * Asynchronous proxy to an agent. Calls are sent with the asynchronous send
+ * of the AgentHost, and the returned futures are completed directly from the
+ * response callback: no threads are kept or blocked by the proxy.
  * @author ludo
  *
  * @param <T>
  */
 public class AsyncProxy<T> {
-	private ScheduledExecutorService pool = Executors
-			.newScheduledThreadPool(50);
-	private T proxy;
-	
+	private static final ClassCache<Map<String, Method[]>>	METHODS	= new ClassCache<Map<String, Method[]>>();
+
+	private final AgentHost										host;
+	private final AgentInterface								sender;
+	private final URI											receiverUrl;
+	private final Class<?>										type;
+	private final T												proxy;
+
+	/**
+	 * Create an asynchronous proxy to an agent
+	 *
+	 * @param host
+	 * @param sender
+	 *            sending agent, may be null
+	 * @param receiverUrl
+	 * @param agentInterface
+	 */
+	public AsyncProxy(AgentHost host, AgentInterface sender, URI receiverUrl,
+			Class<T> agentInterface) {
+		this.host = host;
+		this.sender = sender;
+		this.receiverUrl = receiverUrl;
+		this.type = agentInterface;
+		this.proxy = null;
+	}
+
+	/**
+	 * Decorate a synchronous proxy. Calls are executed on the executor
+	 * service of the AgentHost, each blocking a thread while waiting for
+	 * the response.
+	 *
+	 * @param proxy
+	 * @deprecated use
+	 *             {@link AgentHost#createAsyncAgentProxy(AgentInterface, URI, Class)}
+	 */
+	@Deprecated
 	public AsyncProxy(T proxy) {
+		this.host = AgentHost.getInstance();
+		this.sender = null;
+		this.receiverUrl = null;
+		this.type = proxy.getClass();
 		this.proxy = proxy;
 	}
-	
+
 	/**
 	 * Call the given method on the wrapped proxy, returning a Future which can be used to wait for the result and/or cancel the task.
-	 * 
+	 *
 	 * @param functionName
 	 * @param args
 	 * @return Future<?>
-	 * @throws SecurityException
 	 * @throws NoSuchMethodException
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	public Future<?> call(String functionName, final Object... args) throws NoSuchMethodException{
-		ArrayList<Class> classes = new ArrayList<Class>(args.length);
-		for (Object obj : args){
-			classes.add(obj.getClass());
-		}
-		final Method method = ClassUtil.searchForMethod(proxy.getClass(), functionName, classes.toArray(new Class[0]));
-		
-		return new DecoratedFuture(pool.submit(new Callable<Object>(){
-			@Override
-			public Object call() throws IllegalAccessException, InvocationTargetException {
-				return method.invoke(proxy, args);
-			}
-		}),ClassUtil.wrap(method.getReturnType()));
-	}
-	class DecoratedFuture<V> implements Future<V>{
-		private Future<?> future;
-		private Class<V> myType;
-		
-		DecoratedFuture(Future<?> future, Class<V> type){
-			this.future=future;
-			this.myType=type;
-		}
-		
-		@Override
-		public boolean cancel(boolean mayInterruptIfRunning) {
-			return future.cancel(mayInterruptIfRunning);
+	public Future<?> call(String functionName, final Object... args)
+			throws NoSuchMethodException {
+		final Method method = getMethod(type, functionName, args);
+		if (proxy != null) {
+			FutureTask<Object> task = new FutureTask<Object>(
+					new Callable<Object>() {
+						@Override
+						public Object call() throws Exception {
+							return method.invoke(proxy, args);
+						}
+					});
+			host.getExecutorService().execute(task);
+			return task;
 		}
 
-		@Override
-		public boolean isCancelled() {
-			return future.isCancelled();
-		}
+		final AsyncFuture<Object> future = new AsyncFuture<Object>();
+		try {
+			final RequestTemplate template = RequestTemplate.get(method);
+			host.sendAsync(sender, receiverUrl, template.createRequest(args),
+					new AsyncCallback<JSONResponse>() {
+						@Override
+						public void onSuccess(JSONResponse response) {
+							try {
+								future.onSuccess(template.getResult(response));
+							} catch (Exception e) {
+								future.onFailure(e);
+							}
+						}
 
-		@Override
-		public boolean isDone() {
-			return future.isDone();
+						@Override
+						public void onFailure(Exception exception) {
+							future.onFailure(exception);
+						}
+					});
+		} catch (Exception e) {
+			future.onFailure(e);
 		}
+		return future;
+	}
 
-		@Override
-		public V get() throws InterruptedException, ExecutionException {
-			return myType.cast(future.get());
+	/**
+	 * Find the method with given name which accepts the given arguments.
+	 * The methods of each class are indexed by name once.
+	 */
+	private static Method getMethod(Class<?> clazz, String name, Object[] args)
+			throws NoSuchMethodException {
+		Map<String, Method[]> methods = METHODS.get(clazz);
+		if (methods == null) {
+			Map<String, List<Method>> lists = new HashMap<String, List<Method>>();
+			for (Method method : clazz.getMethods()) {
+				List<Method> list = lists.get(method.getName());
+				if (list == null) {
+					list = new ArrayList<Method>(1);
+					lists.put(method.getName(), list);
+				}
+				list.add(method);
+			}
+			methods = new HashMap<String, Method[]>(lists.size() * 2);
+			for (Map.Entry<String, List<Method>> entry : lists.entrySet()) {
+				methods.put(entry.getKey(), entry.getValue().toArray(
+						new Method[entry.getValue().size()]));
+			}
+			METHODS.put(clazz, methods);
 		}
 
-		@Override
-		public V get(long timeout, TimeUnit unit) throws InterruptedException,
-				ExecutionException, TimeoutException {
-			return myType.cast(future.get(timeout, unit));
+		Method[] candidates = methods.get(name);
+		if (candidates != null) {
+			Class<?>[] classes = new Class<?>[args.length];
+			for (int i = 0; i < args.length; i++) {
+				classes[i] = (args[i] != null) ? args[i].getClass() : null;
+			}
+			for (Method method : candidates) {
+				if (ClassUtil.areTypesCompatible(method.getParameterTypes(),
+						classes)) {
+					return method;
+				}
+			}
 		}
+		throw new NoSuchMethodException("Method '" + name
+				+ "' not found in " + clazz.getName());
 	}
 }
@@ -348,9 +348,8 @@ public class EventsFactory implements EventsInterface {
 	public final void doTrigger(@Name("url") String url,
 			@Name("method") String method, @Name("params") ObjectNode params)
 			throws ProtocolException, JSONRPCException {
-		// TODO: send the trigger as a JSON-RPC 2.0 Notification
-		//myAgent.sendAsync(URI.create(url), new JSONRequest(method, params),null,void.class);
-		myAgent.send(URI.create(url), method, params);
+		// the trigger is sent as a JSON-RPC 2.0 Notification: no response
+		myAgent.sendNotification(URI.create(url), method, params);
 	}
 	
 	@Access(AccessType.SELF)
@@ -0,0 +1,41 @@
+package com.almende.eve.executor;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.almende.eve.agent.AgentHost;
+
+/**
+ * Default ExecutorFactory, creating a {@link BoundedExecutorService} from the
+ * parameters of the "executor" section of eve.yaml.
+ */
+public class BoundedExecutorFactory implements ExecutorFactory {
+	private Map<String, Object>	params	= null;
+	
+	/**
+	 * This constructor is called when constructed by the AgentHost
+	 * 
+	 * @param agentHost
+	 * @param params
+	 *            Available parameters: {Integer} coreThreads, {Integer}
+	 *            maxThreads, {Integer} queueSize, {Integer} keepAlive,
+	 *            {String} rejection
+	 */
+	public BoundedExecutorFactory(AgentHost agentHost,
+			Map<String, Object> params) {
+		this.params = params;
+	}
+	
+	@Override
+	public ExecutorService createExecutorService() {
+		return new BoundedExecutorService(params);
+	}
+	
+	@Override
+	public ScheduledExecutorService createScheduledExecutorService(
+			int poolSize) {
+		return Executors.newScheduledThreadPool(poolSize);
+	}
+}
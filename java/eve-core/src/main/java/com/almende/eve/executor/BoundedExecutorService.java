@@ -0,0 +1,167 @@
+package com.almende.eve.executor;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Bounded thread pool on which the AgentHost executes all asynchronous work:
+ * asynchronous sends, incoming XMPP requests, notifications, batches and
+ * mailboxes.
+ *
+ * Configured in eve.yaml:
+ *
+ * <pre>
+ * executor:
+ *   class: BoundedExecutorFactory  # the default
+ *   coreThreads: 8      # threads kept alive when idle
+ *   maxThreads: 256     # upper bound on the number of threads
+ *   queueSize: 0        # 0: hand tasks directly to a thread
+ *   keepAlive: 60       # seconds before an idle extra thread stops
+ *   rejection: callerRuns  # callerRuns or abort
+ * </pre>
+ *
+ * The default queue size of 0 lets the pool grow up to maxThreads before
+ * rejecting. A bounded queue only starts extra threads once it is full, so
+ * tasks which block on other tasks (synchronous calls) can then starve.
+ *
+ * When the pool is exhausted, "callerRuns" executes the task on the
+ * submitting thread, which slows down the producer. With "abort" the
+ * submitter gets a RejectedExecutionException: asynchronous sends then fail
+ * through their callback. Discarding policies are not offered, as silently
+ * dropping a message (or a mailbox turn) would lose it for good.
+ */
+public class BoundedExecutorService extends ThreadPoolExecutor {
+	private static final Logger	LOG					= Logger.getLogger(BoundedExecutorService.class
+															.getCanonicalName());
+	private static final int	DEFAULT_CORE		= 8;
+	private static final int	DEFAULT_MAX			= 256;
+	private static final int	DEFAULT_QUEUE		= 0;
+	private static final int	DEFAULT_KEEPALIVE	= 60;
+
+	private final AtomicLong	rejected			= new AtomicLong();
+
+	/**
+	 * Create an executor with the default settings
+	 */
+	public BoundedExecutorService() {
+		this(null);
+	}
+
+	/**
+	 * This constructor is called when constructed by the AgentHost
+	 *
+	 * @param params
+	 *            Available parameters: {Integer} coreThreads, {Integer}
+	 *            maxThreads, {Integer} queueSize, {Integer} keepAlive,
+	 *            {String} rejection
+	 */
+	public BoundedExecutorService(Map<String, Object> params) {
+		this(getInt(params, "coreThreads", DEFAULT_CORE), getInt(params,
+				"maxThreads", DEFAULT_MAX), getInt(params, "queueSize",
+				DEFAULT_QUEUE), getInt(params, "keepAlive", DEFAULT_KEEPALIVE),
+				getPolicy(params));
+	}
+
+	/**
+	 * Create an executor
+	 *
+	 * @param coreThreads
+	 * @param maxThreads
+	 * @param queueSize
+	 *            0 for direct hand-off
+	 * @param keepAlive
+	 *            in seconds
+	 * @param policy
+	 *            handler for rejected tasks
+	 */
+	public BoundedExecutorService(int coreThreads, int maxThreads,
+			int queueSize, int keepAlive, RejectedExecutionHandler policy) {
+		super(Math.max(coreThreads, 0), Math.max(maxThreads,
+				Math.max(coreThreads, 1)), keepAlive, TimeUnit.SECONDS,
+				createQueue(queueSize), new DaemonThreadFactory(), policy);
+		setRejectedExecutionHandler(new CountingHandler(policy));
+	}
+
+	/**
+	 * Get the number of tasks waiting in the queue
+	 *
+	 * @return queueDepth
+	 */
+	public int getQueueDepth() {
+		return getQueue().size();
+	}
+
+	/**
+	 * Get the number of tasks rejected since creation. Tasks executed by the
+	 * caller under the "callerRuns" policy are counted as well.
+	 *
+	 * @return rejected
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	private static BlockingQueue<Runnable> createQueue(int queueSize) {
+		if (queueSize <= 0) {
+			return new SynchronousQueue<Runnable>();
+		}
+		return new ArrayBlockingQueue<Runnable>(queueSize);
+	}
+
+	private static int getInt(Map<String, Object> params, String key,
+			int defaultValue) {
+		if (params != null && params.get(key) instanceof Number) {
+			return ((Number) params.get(key)).intValue();
+		}
+		return defaultValue;
+	}
+
+	private static RejectedExecutionHandler getPolicy(
+			Map<String, Object> params) {
+		String policy = (params != null) ? (String) params.get("rejection")
+				: null;
+		if (policy == null || "callerRuns".equalsIgnoreCase(policy)) {
+			return new ThreadPoolExecutor.CallerRunsPolicy();
+		} else if ("abort".equalsIgnoreCase(policy)) {
+			return new ThreadPoolExecutor.AbortPolicy();
+		}
+		LOG.warning("Unknown rejection policy '" + policy
+				+ "', using callerRuns.");
+		return new ThreadPoolExecutor.CallerRunsPolicy();
+	}
+
+	private class CountingHandler implements RejectedExecutionHandler {
+		private final RejectedExecutionHandler	policy;
+
+		public CountingHandler(RejectedExecutionHandler policy) {
+			this.policy = policy;
+		}
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			rejected.incrementAndGet();
+			policy.rejectedExecution(r, executor);
+		}
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final AtomicInteger	count	= new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "eve-executor-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package com.almende.eve.executor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Service provider for the threads of an AgentHost. The AgentHost creates its
+ * executor service through this factory, and schedulers create their timers
+ * with it.
+ *
+ * An ExecutorFactory is configured in the "executor" section of eve.yaml:
+ *
+ * <pre>
+ * executor:
+ *   class: BoundedExecutorFactory
+ * </pre>
+ *
+ * All parameters of the section are passed to the constructor
+ * ExecutorFactory(AgentHost agentHost, Map&lt;String, Object&gt; params).
+ */
+public interface ExecutorFactory {
+	/**
+	 * Create the executor service on which the AgentHost executes all
+	 * asynchronous work: asynchronous sends, notifications, batches,
+	 * mailboxes, incoming XMPP requests and scheduled tasks.
+	 * 
+	 * @return executorService
+	 */
+	ExecutorService createExecutorService();
+	
+	/**
+	 * Create an executor for delayed execution. Schedulers only use it to
+	 * wait for tasks to become due, the tasks themselves are handed over to
+	 * the executor service of the host.
+	 * 
+	 * @param poolSize
+	 *            number of threads to keep in the pool
+	 * @return scheduledExecutorService
+	 */
+	ScheduledExecutorService createScheduledExecutorService(int poolSize);
+}
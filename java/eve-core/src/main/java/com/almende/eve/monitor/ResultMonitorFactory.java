@@ -211,8 +211,9 @@ public class ResultMonitorFactory implements ResultMonitorFactoryInterface {
 			if (pushParams.has("callback")) {
 				callbackMethod = pushParams.get("callback").textValue();
 			}
-			myAgent.sendAsync(URI.create(pushParams.get("url").textValue()),
-					callbackMethod, parms, null, Void.class);
+			myAgent.sendNotification(
+					URI.create(pushParams.get("url").textValue()),
+					callbackMethod, parms);
 			// TODO: If callback reports "old", unregisterPush();
 		}
 	}
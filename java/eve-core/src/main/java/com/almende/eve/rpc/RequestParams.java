@@ -1,19 +1,49 @@
 package com.almende.eve.rpc;
 
 import java.lang.annotation.Annotation;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 // TODO: rework the RequestParams class to something more generic
 public class RequestParams {
 	// map with full class path of an annotation type as key,
 	// and an arbitrary object as value
 	private Map<String, Object> params = new HashMap<String, Object>();
+	private final boolean readOnly;
 
 	public RequestParams() {
+		this.readOnly = false;
 	}
 	
+	private RequestParams(Map<String, Object> params) {
+		this.params = Collections.unmodifiableMap(params);
+		this.readOnly = true;
+	}
+	
+	/**
+	 * Get a read only copy of these params, which can be shared by calls
+	 * 
+	 * @return params
+	 */
+	public RequestParams unmodifiable() {
+		if (readOnly) {
+			return this;
+		}
+		return new RequestParams(new HashMap<String, Object>(params));
+	}
+	
+	/**
+	 * @param annotationType
+	 * @param value
+	 * @throws UnsupportedOperationException
+	 *             when these params are read only
+	 */
 	public void put(Class<?> annotationType, Object value) {
+		if (readOnly) {
+			throw new UnsupportedOperationException("Request params are read only");
+		}
 		params.put(annotationType.getName(), value);
 	}
 	
@@ -33,4 +63,13 @@ public class RequestParams {
 		return has(annotation.annotationType());
 	}
 	
+	/**
+	 * Get the full class paths of the annotation types of all parameters
+	 * 
+	 * @return keys
+	 */
+	public Set<String> keySet() {
+		return params.keySet();
+	}
+	
 }
@@ -0,0 +1,52 @@
+package com.almende.eve.rpc.jsonrpc;
+
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+
+/**
+ * Description of the JSON-RPC methods of a class, as built by
+ * {@link JSONRPC#getDescription(Object, com.almende.eve.rpc.RequestParams)}.
+ * Descriptions are cached and shared, so they are immutable. The ETag is a
+ * hash of the JSON form of the methods, which lets HTTP clients revalidate
+ * a description they already have.
+ */
+public final class Description {
+	private final List<Object>	methods;
+	private final String		etag;
+
+	Description(List<Object> methods) throws Exception {
+		this.methods = Collections.unmodifiableList(methods);
+
+		byte[] hash = MessageDigest.getInstance("MD5").digest(
+				JOM.getInstance().writeValueAsBytes(methods));
+		StringBuilder builder = new StringBuilder(hash.length * 2 + 2);
+		builder.append('"');
+		for (byte b : hash) {
+			builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+			builder.append(Character.forDigit(b & 0xF, 16));
+		}
+		builder.append('"');
+		this.etag = builder.toString();
+	}
+
+	/**
+	 * Get the described methods, sorted by name
+	 *
+	 * @return methods
+	 */
+	public List<Object> getMethods() {
+		return methods;
+	}
+
+	/**
+	 * Get the quoted entity tag of this description
+	 *
+	 * @return etag
+	 */
+	public String getETag() {
+		return etag;
+	}
+}
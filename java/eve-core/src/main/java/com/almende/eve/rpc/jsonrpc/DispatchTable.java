@@ -0,0 +1,446 @@
+package com.almende.eve.rpc.jsonrpc;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.TypeVariable;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.annotation.Access;
+import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Name;
+import com.almende.eve.rpc.annotation.Required;
+import com.almende.eve.rpc.annotation.Sender;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.util.AnnotationUtil;
+import com.almende.util.AnnotationUtil.AnnotatedClass;
+import com.almende.util.AnnotationUtil.AnnotatedMethod;
+import com.almende.util.AnnotationUtil.AnnotatedParam;
+import com.almende.util.ClassCache;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Precompiled JSON-RPC dispatch information of a single class. All
+ * annotations (access rules, parameter names, required flags and request
+ * parameters like @Sender) are resolved once when the table is built, so
+ * dispatching a call boils down to a hash lookup plus a direct invocation.
+ */
+public final class DispatchTable {
+	private static final Logger						LOG		= Logger.getLogger(DispatchTable.class
+																	.getCanonicalName());
+	private static final ClassCache<DispatchTable>		TABLES	= new ClassCache<DispatchTable>();
+	private static final Invoker[]					NONE	= new Invoker[0];
+	private static final Map<Class<?>, Class<?>>		BOXES	= new HashMap<Class<?>, Class<?>>();
+	static {
+		BOXES.put(boolean.class, Boolean.class);
+		BOXES.put(byte.class, Byte.class);
+		BOXES.put(char.class, Character.class);
+		BOXES.put(short.class, Short.class);
+		BOXES.put(int.class, Integer.class);
+		BOXES.put(long.class, Long.class);
+		BOXES.put(float.class, Float.class);
+		BOXES.put(double.class, Double.class);
+	}
+
+	private final Map<String, Invoker[]>				invokers;
+
+	private DispatchTable(Class<?> clazz) {
+		AnnotatedClass annotatedClass = AnnotationUtil.get(clazz);
+		Access classAccess = annotatedClass.getAnnotation(Access.class);
+
+		Map<String, List<Invoker>> lists = new HashMap<String, List<Invoker>>();
+		for (AnnotatedMethod method : annotatedClass.getMethods()) {
+			Invoker invoker = Invoker.compile(method, classAccess);
+			if (invoker == null) {
+				continue;
+			}
+			List<Invoker> list = lists.get(method.getName());
+			if (list == null) {
+				list = new ArrayList<Invoker>(1);
+				lists.put(method.getName(), list);
+			}
+			list.add(invoker);
+		}
+		Map<String, Invoker[]> table = new HashMap<String, Invoker[]>(
+				lists.size() * 2);
+		for (Map.Entry<String, List<Invoker>> entry : lists.entrySet()) {
+			table.put(entry.getKey(),
+					entry.getValue().toArray(new Invoker[entry.getValue().size()]));
+		}
+		this.invokers = table;
+	}
+
+	/**
+	 * Get the (cached) dispatch table of the given class
+	 *
+	 * @param clazz
+	 * @return table
+	 */
+	public static DispatchTable get(Class<?> clazz) {
+		DispatchTable table = TABLES.get(clazz);
+		if (table == null) {
+			table = new DispatchTable(clazz);
+			TABLES.put(clazz, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Find the first invoker with the given name which is available for the
+	 * given request parameters and authorizor.
+	 *
+	 * @param methodName
+	 * @param requestParams
+	 * @param auth
+	 * @return invoker, or null if no matching method is available
+	 */
+	public Invoker getInvoker(String methodName, RequestParams requestParams,
+			JSONAuthorizor auth) {
+		Invoker[] candidates = invokers.get(methodName);
+		if (candidates == null) {
+			candidates = NONE;
+		}
+		for (Invoker invoker : candidates) {
+			if (invoker.isAvailable(requestParams, auth)) {
+				return invoker;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A precompiled JSON-RPC method: the java method with its parameter
+	 * bindings and access rules.
+	 */
+	public static final class Invoker {
+		private final Method			method;
+		private final AccessType		access;
+		private final String			tag;
+		private final int				paramCount;
+		private final String[]			names;
+		private final Class<?>[]		types;
+		private final Type[]			genericTypes;
+		private final boolean[]			required;
+		private final Annotation[][]	requestAnnotations;
+		private final boolean			allNamed;
+		private final boolean			passParamsObject;
+
+		private Invoker(AnnotatedMethod method, AccessType access, String tag) {
+			this.method = method.getActualMethod();
+			this.access = access;
+			this.tag = tag;
+
+			List<AnnotatedParam> params = method.getParams();
+			paramCount = params.size();
+			names = new String[paramCount];
+			types = new Class<?>[paramCount];
+			genericTypes = new Type[paramCount];
+			required = new boolean[paramCount];
+			requestAnnotations = new Annotation[paramCount][];
+			boolean named = true;
+			for (int i = 0; i < paramCount; i++) {
+				AnnotatedParam param = params.get(i);
+				Name name = param.getAnnotation(Name.class);
+				Required req = param.getAnnotation(Required.class);
+				names[i] = name != null ? name.value() : null;
+				types[i] = param.getType();
+				genericTypes[i] = param.getGenericType();
+				required[i] = req != null ? req.value() : true;
+
+				List<Annotation> others = new ArrayList<Annotation>();
+				for (Annotation a : param.getAnnotations()) {
+					if (!(a instanceof Name) && !(a instanceof Required)) {
+						others.add(a);
+					}
+				}
+				requestAnnotations[i] = others.toArray(new Annotation[others
+						.size()]);
+				if (names[i] == null) {
+					named = false;
+				}
+			}
+			allNamed = named;
+			passParamsObject = paramCount == 1
+					&& ObjectNode.class.equals(types[0])
+					&& params.get(0).getAnnotations().size() == 0;
+		}
+
+		private static Invoker compile(AnnotatedMethod method,
+				Access classAccess) {
+			Method actual = method.getActualMethod();
+			if (!Modifier.isPublic(actual.getModifiers())) {
+				return null;
+			}
+			Access access = method.getAnnotation(Access.class);
+			if (access == null) {
+				access = classAccess;
+			}
+			if (access == null || access.value() == AccessType.UNAVAILABLE) {
+				return null;
+			}
+			try {
+				// public methods of non-public classes are not accessible
+				// without this, and it skips the access check per call.
+				actual.setAccessible(true);
+			} catch (SecurityException e) {
+				LOG.log(Level.FINE, "Couldn't make method accessible:"
+						+ actual, e);
+			}
+			return new Invoker(method, access.value(), access.tag());
+		}
+
+		/**
+		 * Check whether this method can be called with the given request
+		 * parameters, by the given authorizor.
+		 *
+		 * @param requestParams
+		 * @param auth
+		 * @return available
+		 */
+		public boolean isAvailable(RequestParams requestParams,
+				JSONAuthorizor auth) {
+			if (!allNamed) {
+				for (int i = 0; i < paramCount; i++) {
+					if (names[i] == null
+							&& getRequestAnnotation(i, requestParams) == null) {
+						return false;
+					}
+				}
+			}
+			switch (access) {
+				case PRIVATE:
+					return auth != null && requestParams != null ? auth
+							.onAccess(
+									(String) requestParams.get(Sender.class),
+									tag) : false;
+				case SELF:
+					return auth != null && requestParams != null ? auth
+							.isSelf((String) requestParams.get(Sender.class))
+							: false;
+				default:
+					return true;
+			}
+		}
+
+		/**
+		 * Invoke this method on the destination, casting the JSON params to
+		 * the parameter types.
+		 *
+		 * @param destination
+		 * @param params
+		 * @param requestParams
+		 * @return result
+		 * @throws IllegalAccessException
+		 * @throws InvocationTargetException
+		 */
+		public Object invoke(Object destination, Object params,
+				RequestParams requestParams) throws IllegalAccessException,
+				InvocationTargetException {
+			return method.invoke(destination,
+					castParams(params, requestParams));
+		}
+
+		/**
+		 * Invoke this method on the destination with java parameters. Values
+		 * of the parameter type are passed as they are, other values are
+		 * converted like JSON params.
+		 *
+		 * @param destination
+		 * @param params
+		 *            values by parameter name, may be null
+		 * @param requestParams
+		 * @return result
+		 * @throws IllegalAccessException
+		 * @throws InvocationTargetException
+		 */
+		public Object invokeLocal(Object destination,
+				Map<String, Object> params, RequestParams requestParams)
+				throws IllegalAccessException, InvocationTargetException {
+			if (passParamsObject) {
+				ObjectNode node = (params != null) ? (ObjectNode) JOM
+						.getInstance().valueToTree(params) : JOM
+						.createObjectNode();
+				return method.invoke(destination, new Object[] { node });
+			}
+			return method.invoke(destination,
+					castLocalParams(params, requestParams));
+		}
+
+		/**
+		 * Get the actual Java method
+		 *
+		 * @return method
+		 */
+		public Method getMethod() {
+			return method;
+		}
+
+		private Annotation getRequestAnnotation(int index,
+				RequestParams requestParams) {
+			if (requestParams != null) {
+				for (Annotation a : requestAnnotations[index]) {
+					if (requestParams.has(a)) {
+						return a;
+					}
+				}
+			}
+			return null;
+		}
+
+		private Object[] castLocalParams(Map<String, Object> params,
+				RequestParams requestParams) {
+			Object[] objects = new Object[paramCount];
+			for (int i = 0; i < paramCount; i++) {
+				Annotation a = getRequestAnnotation(i, requestParams);
+				if (a != null) {
+					// this is a systems parameter
+					objects[i] = requestParams.get(a);
+				} else if (names[i] != null) {
+					// this is a named parameter
+					if (params != null && params.containsKey(names[i])) {
+						objects[i] = cast(params.get(names[i]), i);
+					} else if (required[i]) {
+						throw new ClassCastException("Required parameter '"
+								+ names[i] + "' missing");
+					} else if (types[i].isPrimitive()) {
+						throw new ClassCastException("Parameter '" + names[i]
+								+ "' cannot be both optional and "
+								+ "a primitive type ("
+								+ types[i].getSimpleName() + ")");
+					}
+				} else {
+					throw new ClassCastException("Name of parameter " + i
+							+ " not defined");
+				}
+			}
+			return objects;
+		}
+
+		/**
+		 * Cast a java param to the parameter type. A value is passed as it
+		 * is when it matches the generic parameter type, including the
+		 * elements of collections and maps; otherwise it is converted.
+		 */
+		private Object cast(Object value, int index) {
+			Class<?> type = types[index];
+			if (value == null) {
+				// like an explicit null in JSON
+				return type.isPrimitive() ? JOM.getInstance().convertValue(
+						JOM.createNullNode(), type) : null;
+			}
+			if (!(value instanceof JsonNode)
+					|| JsonNode.class.isAssignableFrom(type)) {
+				if (type.isPrimitive() ? BOXES.get(type) == value.getClass()
+						: matches(value, genericTypes[index])) {
+					return value;
+				}
+			}
+			return JOM.getInstance().convertValue(value,
+					JOM.getTypeFactory().constructType(genericTypes[index]));
+		}
+
+		/**
+		 * Check whether a value is of the given generic type. Elements of
+		 * collections and maps are checked too.
+		 */
+		private static boolean matches(Object value, Type type) {
+			if (value == null) {
+				return true;
+			}
+			if (type instanceof Class) {
+				return ((Class<?>) type).isInstance(value);
+			}
+			if (type instanceof WildcardType) {
+				return matches(value, ((WildcardType) type).getUpperBounds()[0]);
+			}
+			if (type instanceof TypeVariable) {
+				return matches(value, ((TypeVariable<?>) type).getBounds()[0]);
+			}
+			if (!(type instanceof ParameterizedType)) {
+				// generic arrays are converted
+				return false;
+			}
+			ParameterizedType generic = (ParameterizedType) type;
+			if (!((Class<?>) generic.getRawType()).isInstance(value)) {
+				return false;
+			}
+			Type[] args = generic.getActualTypeArguments();
+			if (value instanceof Collection && args.length == 1) {
+				for (Object element : (Collection<?>) value) {
+					if (!matches(element, args[0])) {
+						return false;
+					}
+				}
+				return true;
+			}
+			if (value instanceof Map && args.length == 2) {
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+					if (!matches(entry.getKey(), args[0])
+							|| !matches(entry.getValue(), args[1])) {
+						return false;
+					}
+				}
+				return true;
+			}
+			// the type arguments of other classes can't be checked
+			return false;
+		}
+
+		private Object[] castParams(Object params, RequestParams requestParams) {
+			if (paramCount == 0) {
+				return new Object[0];
+			}
+			if (!(params instanceof ObjectNode)) {
+				throw new ClassCastException("params must be a JSONObject");
+			}
+			if (passParamsObject) {
+				// the method expects one parameter of type JSONObject
+				// feed the params object itself to it.
+				return new Object[] { params };
+			}
+			ObjectMapper mapper = JOM.getInstance();
+			ObjectNode paramsObject = (ObjectNode) params;
+
+			Object[] objects = new Object[paramCount];
+			for (int i = 0; i < paramCount; i++) {
+				Annotation a = getRequestAnnotation(i, requestParams);
+				if (a != null) {
+					// this is a systems parameter
+					objects[i] = requestParams.get(a);
+				} else if (names[i] != null) {
+					// this is a named parameter
+					if (paramsObject.has(names[i])) {
+						objects[i] = mapper.convertValue(
+								paramsObject.get(names[i]), types[i]);
+					} else if (required[i]) {
+						throw new ClassCastException("Required parameter '"
+								+ names[i] + "' missing");
+					} else if (types[i].isPrimitive()) {
+						throw new ClassCastException("Parameter '" + names[i]
+								+ "' cannot be both optional and "
+								+ "a primitive type ("
+								+ types[i].getSimpleName() + ")");
+					}
+				} else {
+					// this is a problem
+					throw new ClassCastException("Name of parameter " + i
+							+ " not defined");
+				}
+			}
+			return objects;
+		}
+	}
+}
@@ -7,6 +7,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -14,6 +15,13 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -24,6 +32,7 @@ import com.almende.eve.rpc.annotation.AccessType;
 import com.almende.eve.rpc.annotation.Name;
 import com.almende.eve.rpc.annotation.Required;
 import com.almende.eve.rpc.annotation.Sender;
+import com.almende.eve.rpc.jsonrpc.DispatchTable.Invoker;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.util.AnnotationUtil;
 import com.almende.util.AnnotationUtil.AnnotatedClass;
@@ -31,11 +40,11 @@ import com.almende.util.AnnotationUtil.AnnotatedMethod;
 import com.almende.util.AnnotationUtil.AnnotatedParam;
 import com.almende.util.NamespaceUtil;
 import com.almende.util.NamespaceUtil.CallTuple;
-import com.eaio.uuid.UUID;
 import com.fasterxml.jackson.core.JsonGenerationException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public final class JSONRPC {
@@ -43,8 +52,9 @@ public final class JSONRPC {
 	}
 	
 	private static Logger	logger	= Logger.getLogger(JSONRPC.class.getName());
+	/** Cached descriptions by class and access context */
+	private static final Map<Class<?>, Map<String, Description>>	DESCRIPTIONS	= new WeakHashMap<Class<?>, Map<String, Description>>();
 	
-	// TODO: implement JSONRPC 2.0 Batch
 	/**
 	 * Invoke a method on an object
 	 * 
@@ -79,10 +89,46 @@ public final class JSONRPC {
 	public static String invoke(Object destination, String request,
 			RequestParams requestParams, JSONAuthorizor auth)
 			throws IOException {
-		JSONRequest jsonRequest = null;
+		return invoke(destination, request, requestParams, auth, null);
+	}
+	
+	/**
+	 * Invoke a method on an object. The request can either be a single
+	 * JSON-RPC request, or a JSON-RPC 2.0 batch (array of requests).
+	 * 
+	 * @param obj
+	 *            Request will be invoked on the given object
+	 * @param request
+	 *            A request or batch of requests in JSON-RPC format
+	 * @param requestParams
+	 *            Optional request parameters
+	 * @param executor
+	 *            Optional executor to run the entries of a batch in parallel
+	 * @return response, or null for a batch of notifications only, which is
+	 *         not replied to
+	 * @throws IOException
+	 * @throws JsonMappingException
+	 * @throws JsonGenerationException
+	 */
+	public static String invoke(Object destination, String request,
+			RequestParams requestParams, JSONAuthorizor auth, Executor executor)
+			throws IOException {
+		ObjectMapper mapper = JOM.getInstance();
 		JSONResponse jsonResponse = null;
 		try {
-			jsonRequest = new JSONRequest(request);
+			JsonNode node = mapper.readTree(request);
+			if (node != null && node.isArray()) {
+				ArrayNode responses = invoke(destination, (ArrayNode) node,
+						requestParams, auth, executor);
+				return responses.size() > 0 ? mapper
+						.writeValueAsString(responses) : null;
+			}
+			if (node == null || !node.isObject()) {
+				throw new JSONRPCException(
+						JSONRPCException.CODE.INVALID_REQUEST,
+						"Request is no ObjectNode");
+			}
+			JSONRequest jsonRequest = new JSONRequest((ObjectNode) node);
 			jsonResponse = invoke(destination, jsonRequest, requestParams, auth);
 		} catch (JSONRPCException err) {
 			jsonResponse = new JSONResponse(err);
@@ -91,6 +137,131 @@ public final class JSONRPC {
 		return jsonResponse.toString();
 	}
 	
+	/**
+	 * Invoke a JSON-RPC 2.0 batch on an object. The entries of the batch are
+	 * independent: when an executor is given they are invoked in parallel,
+	 * otherwise one after the other. Invalid entries result in an error
+	 * response at their position in the batch. Notifications are invoked, but
+	 * left out of the responses.
+	 * 
+	 * @param destination
+	 *            Requests will be invoked on the given object
+	 * @param batch
+	 *            An array of requests in JSON-RPC format
+	 * @param requestParams
+	 *            Optional request parameters
+	 * @param auth
+	 * @param executor
+	 *            Optional executor to run the entries on
+	 * @return responses An array with the responses, empty when the batch only
+	 *         contains notifications
+	 * @throws JSONRPCException
+	 *             when the batch is empty
+	 */
+	public static ArrayNode invoke(final Object destination, ArrayNode batch,
+			final RequestParams requestParams, final JSONAuthorizor auth,
+			Executor executor) throws JSONRPCException {
+		if (batch.size() == 0) {
+			throw new JSONRPCException(JSONRPCException.CODE.INVALID_REQUEST,
+					"Batch is empty");
+		}
+		
+		List<Future<JSONResponse>> results = new ArrayList<Future<JSONResponse>>(
+				batch.size());
+		for (JsonNode entry : batch) {
+			JSONRequest request = null;
+			JSONResponse error = null;
+			try {
+				if (!entry.isObject()) {
+					throw new JSONRPCException(
+							JSONRPCException.CODE.INVALID_REQUEST,
+							"Batch entry is no ObjectNode");
+				}
+				request = new JSONRequest((ObjectNode) entry);
+			} catch (JSONRPCException err) {
+				error = new JSONResponse(err);
+			}
+			
+			final JSONRequest req = request;
+			final JSONResponse res = error;
+			FutureTask<JSONResponse> task = new FutureTask<JSONResponse>(
+					new Callable<JSONResponse>() {
+						@Override
+						public JSONResponse call() {
+							if (req == null) {
+								return res;
+							}
+							return invoke(destination, req, requestParams,
+									auth);
+						}
+					});
+			if (executor != null && req != null) {
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {
+					task.run();
+				}
+			} else {
+				task.run();
+			}
+			if (req == null || !req.isNotification()) {
+				results.add(task);
+			}
+		}
+		
+		ArrayNode responses = JOM.createArrayNode();
+		for (Future<JSONResponse> result : results) {
+			JSONResponse response;
+			try {
+				response = result.get();
+			} catch (Exception e) {
+				response = new JSONResponse(new JSONRPCException(
+						JSONRPCException.CODE.INTERNAL_ERROR, getMessage(e), e));
+			}
+			responses.add(response.getObjectNode());
+		}
+		return responses;
+	}
+	
+	/**
+	 * Match the responses of a JSON-RPC 2.0 batch with the requests, by id.
+	 * When the batch failed as a whole (a single error response instead of an
+	 * array), this error is returned for every request.
+	 * 
+	 * @param requests
+	 * @param responses
+	 * @return responses in the same order as the requests, null for requests
+	 *         without a matching response.
+	 * @throws JSONRPCException
+	 */
+	public static List<JSONResponse> matchBatch(List<JSONRequest> requests,
+			JsonNode responses) throws JSONRPCException {
+		List<JSONResponse> result = new ArrayList<JSONResponse>(
+				requests.size());
+		if (responses != null && responses.isObject()) {
+			JSONResponse response = new JSONResponse((ObjectNode) responses);
+			for (int i = 0; i < requests.size(); i++) {
+				result.add(response);
+			}
+			return result;
+		}
+		if (responses == null || !responses.isArray()) {
+			throw new JSONRPCException(JSONRPCException.CODE.INVALID_REQUEST,
+					"Batch response is no array");
+		}
+		Map<JsonNode, JSONResponse> byId = new HashMap<JsonNode, JSONResponse>();
+		for (JsonNode response : responses) {
+			if (response.isObject() && response.has("id")) {
+				byId.put(response.get("id"), new JSONResponse(
+						(ObjectNode) response));
+			}
+		}
+		for (JSONRequest request : requests) {
+			result.add(byId.get(request.getObjectNode().get("id")));
+		}
+		return result;
+	}
+	
 	/**
 	 * Invoke a method on an object
 	 * 
@@ -122,14 +293,18 @@ public final class JSONRPC {
 		resp.setId(request.getId());
 		
 		try {
-			CallTuple tuple = NamespaceUtil.get(destination,
-					request.getMethod());
-			Object realDest = tuple.getDestination();
-			String realMethod = tuple.getMethodName();
+			String path = request.getMethod();
+			Object realDest = destination;
+			String realMethod = path;
+			if (path != null && path.indexOf('.') >= 0) {
+				CallTuple tuple = NamespaceUtil.get(destination, path);
+				realDest = tuple.getDestination();
+				realMethod = tuple.getMethodName();
+			}
 			
-			AnnotatedMethod annotatedMethod = getMethod(realDest, realMethod,
-					requestParams, auth);
-			if (annotatedMethod == null) {
+			Invoker invoker = DispatchTable.get(realDest.getClass())
+					.getInvoker(realMethod, requestParams, auth);
+			if (invoker == null) {
 				throw new JSONRPCException(
 						JSONRPCException.CODE.METHOD_NOT_FOUND,
 						"Method '"
@@ -137,10 +312,8 @@ public final class JSONRPC {
 								+ "' not found. The method does not exist or you are not authorized.");
 			}
 			
-			Method method = annotatedMethod.getActualMethod();
-			Object[] params = castParams(request.getParams(),
-					annotatedMethod.getParams(), requestParams);
-			Object result = method.invoke(realDest, params);
+			Object result = invoker.invoke(realDest, request.getParams(),
+					requestParams);
 			if (result == null) {
 				result = JOM.createNullNode();
 			}
@@ -148,29 +321,72 @@ public final class JSONRPC {
 		} catch (JSONRPCException err) {
 			resp.setError((JSONRPCException) err);
 		} catch (Exception err) {
-			if (err.getCause() != null
-					&& err.getCause() instanceof JSONRPCException) {
-				resp.setError((JSONRPCException) err.getCause());
-			} else {
-				if (err instanceof InvocationTargetException
-						&& err.getCause() != null) {
-					err = (Exception) err.getCause();
-				}
-				logger.log(Level.WARNING,
-						"Exception raised, returning it as JSONRPCException.",
-						err);
-				
-				JSONRPCException jsonError = new JSONRPCException(
-						JSONRPCException.CODE.INTERNAL_ERROR, getMessage(err),
-						err);
-				jsonError.setData(err);
-				resp.setError(jsonError);
-			}
+			resp.setError(toJSONRPCException(err));
 		}
 		
 		return resp;
 	}
 	
+	/**
+	 * Invoke a method on an object, passing the java parameters and result
+	 * as they are, without converting them to and from JSON. Used for calls
+	 * between agents of the same host.
+	 * 
+	 * @param destination
+	 * @param method
+	 * @param params
+	 *            java values by parameter name, may be null
+	 * @param requestParams
+	 * @param auth
+	 * @return result
+	 * @throws JSONRPCException
+	 */
+	public static Object invoke(Object destination, String method,
+			Map<String, Object> params, RequestParams requestParams,
+			JSONAuthorizor auth) throws JSONRPCException {
+		try {
+			Object realDest = destination;
+			String realMethod = method;
+			if (method != null && method.indexOf('.') >= 0) {
+				CallTuple tuple = NamespaceUtil.get(destination, method);
+				realDest = tuple.getDestination();
+				realMethod = tuple.getMethodName();
+			}
+			
+			Invoker invoker = DispatchTable.get(realDest.getClass())
+					.getInvoker(realMethod, requestParams, auth);
+			if (invoker == null) {
+				throw new JSONRPCException(
+						JSONRPCException.CODE.METHOD_NOT_FOUND,
+						"Method '"
+								+ method
+								+ "' not found. The method does not exist or you are not authorized.");
+			}
+			return invoker.invokeLocal(realDest, params, requestParams);
+		} catch (JSONRPCException err) {
+			throw err;
+		} catch (Exception err) {
+			throw toJSONRPCException(err);
+		}
+	}
+	
+	private static JSONRPCException toJSONRPCException(Exception err) {
+		if (err.getCause() != null
+				&& err.getCause() instanceof JSONRPCException) {
+			return (JSONRPCException) err.getCause();
+		}
+		if (err instanceof InvocationTargetException && err.getCause() != null) {
+			err = (Exception) err.getCause();
+		}
+		logger.log(Level.WARNING,
+				"Exception raised, returning it as JSONRPCException.", err);
+		
+		JSONRPCException jsonError = new JSONRPCException(
+				JSONRPCException.CODE.INTERNAL_ERROR, getMessage(err), err);
+		jsonError.setData(err);
+		return jsonError;
+	}
+	
 	/**
 	 * Validate whether the given class contains valid JSON-RPC methods. A class
 	 * if valid when:<br>
@@ -223,8 +439,15 @@ public final class JSONRPC {
 		return errors;
 	}
 	
+	/**
+	 * Describe the methods of an object and its namespaces
+	 * 
+	 * @param complete
+	 *            set to false when a namespace was null, e.g. while the
+	 *            agent is being set up, so its methods are missing
+	 */
 	private static Map<String, Object> _describe(Object c,
-			RequestParams requestParams, String namespace) {
+			RequestParams requestParams, String namespace, boolean[] complete) {
 		Map<String, Object> methods = new TreeMap<String, Object>();
 		try {
 			
@@ -253,18 +476,26 @@ public final class JSONRPC {
 					String methodName = namespace.equals("") ? method.getName()
 							: namespace + "." + method.getName();
 					desc.put("method", methodName);
-					desc.put("params", descParams);
-					desc.put("result", result);
-					methods.put(methodName, desc);
+					desc.put("params", Collections.unmodifiableList(descParams));
+					desc.put("result", Collections.unmodifiableMap(result));
+					methods.put(methodName, Collections.unmodifiableMap(desc));
 				}
 			}
 			for (AnnotatedMethod method : annotatedClass
 					.getAnnotatedMethods(Namespace.class)) {
 				String innerNamespace = method.getAnnotation(Namespace.class)
 						.value();
-				methods.putAll(_describe(
-						method.getActualMethod().invoke(c, (Object[]) null),
-						requestParams, innerNamespace));
+				if (!namespace.equals("")) {
+					innerNamespace = namespace + "." + innerNamespace;
+				}
+				Object inner = method.getActualMethod().invoke(c,
+						(Object[]) null);
+				if (inner != null) {
+					methods.putAll(_describe(inner, requestParams,
+							innerNamespace, complete));
+				} else {
+					complete[0] = false;
+				}
 			}
 		} catch (Exception e) {
 			logger.log(Level.WARNING, "Failed to describe class", e);
@@ -287,20 +518,60 @@ public final class JSONRPC {
 	 * @return
 	 */
 	public static List<Object> describe(Object c, RequestParams requestParams) {
-		try {
-			Map<String, Object> methods = _describe(c, requestParams, "");
-			
-			// create a sorted array
-			List<Object> sortedMethods = new ArrayList<Object>();
-			TreeSet<String> methodNames = new TreeSet<String>(methods.keySet());
-			for (String methodName : methodNames) {
-				sortedMethods.add(methods.get(methodName));
+		Description description = getDescription(c, requestParams);
+		return (description != null) ? description.getMethods() : null;
+	}
+	
+	/**
+	 * Get the description of all JSON-RPC methods of given object. The
+	 * description is built once per class and access context (the types of
+	 * the request parameters), and cached until the class is unloaded.
+	 * Namespaces are described by the objects the first described instance
+	 * returns. A description missing a namespace because it was null is
+	 * not cached.
+	 * 
+	 * @param c
+	 *            The object to be described
+	 * @param requestParams
+	 *            Optional request parameters.
+	 * @return description, or null when the object can't be described
+	 */
+	public static Description getDescription(Object c,
+			RequestParams requestParams) {
+		Map<String, Description> descriptions;
+		synchronized (DESCRIPTIONS) {
+			descriptions = DESCRIPTIONS.get(c.getClass());
+			if (descriptions == null) {
+				descriptions = new ConcurrentHashMap<String, Description>();
+				DESCRIPTIONS.put(c.getClass(), descriptions);
+			}
+		}
+		String context = (requestParams != null) ? new TreeSet<String>(
+				requestParams.keySet()).toString() : "";
+		Description description = descriptions.get(context);
+		if (description == null) {
+			try {
+				boolean[] complete = { true };
+				Map<String, Object> methods = _describe(c, requestParams, "",
+						complete);
+				
+				// create a sorted array
+				List<Object> sortedMethods = new ArrayList<Object>();
+				TreeSet<String> methodNames = new TreeSet<String>(
+						methods.keySet());
+				for (String methodName : methodNames) {
+					sortedMethods.add(methods.get(methodName));
+				}
+				description = new Description(sortedMethods);
+				if (complete[0]) {
+					descriptions.put(context, description);
+				}
+			} catch (Exception e) {
+				logger.log(Level.WARNING, "Failed to describe class", e);
+				return null;
 			}
-			return sortedMethods;
-		} catch (Exception e) {
-			logger.log(Level.WARNING, "Failed to describe class", e);
-			return null;
 		}
+		return description;
 	}
 	
 	/**
@@ -347,111 +618,6 @@ public final class JSONRPC {
 		return cause.toString();
 	}
 	
-	/**
-	 * Find a method by name, which is available for JSON-RPC, and has named
-	 * parameters
-	 * 
-	 * @param destination
-	 * @param method
-	 * @param requestParams
-	 * @return methodType meta information on the method, or null if not found
-	 */
-	private static AnnotatedMethod getMethod(Object destination, String method,
-			RequestParams requestParams, JSONAuthorizor auth) {
-		AnnotatedClass annotatedClass;
-		try {
-			annotatedClass = AnnotationUtil.get(destination.getClass());
-			
-			List<AnnotatedMethod> methods = annotatedClass.getMethods(method);
-			for (AnnotatedMethod m : methods) {
-				if (isAvailable(m, destination, requestParams, auth)) {
-					return m;
-				}
-			}
-		} catch (Exception e) {
-			logger.log(Level.WARNING, "GetMethod failed:", e);
-		}
-		return null;
-	}
-	
-	/**
-	 * Cast a JSONArray or JSONObject params to the desired paramTypes
-	 * 
-	 * @param params
-	 * @param paramTypes
-	 * @param requestParams
-	 * @return
-	 * @throws Exception
-	 */
-	private static Object[] castParams(Object params,
-			List<AnnotatedParam> annotatedParams, RequestParams requestParams) {
-		ObjectMapper mapper = JOM.getInstance();
-		
-		if (annotatedParams.size() == 0) {
-			return new Object[0];
-		}
-		
-		if (params instanceof ObjectNode) {
-			// JSON-RPC 2.0 with named parameters in a JSONObject
-			
-			if (annotatedParams.size() == 1
-					&& annotatedParams.get(0).getType()
-							.equals(ObjectNode.class)
-					&& annotatedParams.get(0).getAnnotations().size() == 0) {
-				// the method expects one parameter of type JSONObject
-				// feed the params object itself to it.
-				Object[] objects = new Object[1];
-				objects[0] = params;
-				return objects;
-			} else {
-				ObjectNode paramsObject = (ObjectNode) params;
-				
-				Object[] objects = new Object[annotatedParams.size()];
-				for (int i = 0; i < annotatedParams.size(); i++) {
-					AnnotatedParam p = annotatedParams.get(i);
-					
-					Annotation a = getRequestAnnotation(p, requestParams);
-					if (a != null) {
-						// this is a systems parameter
-						objects[i] = requestParams.get(a);
-					} else {
-						String name = getName(p);
-						if (name != null) {
-							// this is a named parameter
-							if (paramsObject.has(name)) {
-								objects[i] = mapper.convertValue(
-										paramsObject.get(name), p.getType());
-							} else {
-								if (isRequired(p)) {
-									throw new ClassCastException(
-											"Required parameter '" + name
-													+ "' missing");
-								} else if (p.getType().isPrimitive()) {
-									// TODO: should this test be moved to
-									// isAvailable()?
-									throw new ClassCastException("Parameter '"
-											+ name
-											+ "' cannot be both optional and "
-											+ "a primitive type ("
-											+ p.getType().getSimpleName() + ")");
-								} else {
-									objects[i] = null;
-								}
-							}
-						} else {
-							// this is a problem
-							throw new ClassCastException("Name of parameter "
-									+ i + " not defined");
-						}
-					}
-				}
-				return objects;
-			}
-		} else {
-			throw new ClassCastException("params must be a JSONObject");
-		}
-	}
-	
 	/**
 	 * Create a JSONRequest from a java method and arguments
 	 * 
@@ -460,39 +626,7 @@ public final class JSONRPC {
 	 * @return
 	 */
 	public static JSONRequest createRequest(Method method, Object[] args) {
-		AnnotatedMethod annotatedMethod = null;
-		try {
-			annotatedMethod = new AnnotationUtil.AnnotatedMethod(method);
-		} catch (Exception e) {
-			logger.log(Level.WARNING,
-					"Method can't be used as annotated method", e);
-			throw new IllegalArgumentException("Method '" + method.getName()
-					+ "' can't be used as annotated method.", e);
-		}
-		List<AnnotatedParam> annotatedParams = annotatedMethod.getParams();
-		
-		ObjectNode params = JOM.createObjectNode();
-		
-		for (int i = 0; i < annotatedParams.size(); i++) {
-			AnnotatedParam annotatedParam = annotatedParams.get(i);
-			if (i < args.length && args[i] != null) {
-				String name = getName(annotatedParam);
-				if (name != null) {
-					JsonNode paramValue = JOM.getInstance().convertValue(
-							args[i], JsonNode.class);
-					params.put(name, paramValue);
-				} else {
-					throw new IllegalArgumentException("Parameter " + i
-							+ " in method '" + method.getName()
-							+ "' is missing the @Name annotation.");
-				}
-			} else if (isRequired(annotatedParam)) {
-				throw new IllegalArgumentException("Required parameter " + i
-						+ " in method '" + method.getName() + "' is null.");
-			}
-		}
-		String id = new UUID().toString();
-		return new JSONRequest(id, method.getName(), params);
+		return RequestTemplate.get(method).createRequest(args);
 	}
 	
 	public static boolean hasPrivate(Class<?> clazz) {
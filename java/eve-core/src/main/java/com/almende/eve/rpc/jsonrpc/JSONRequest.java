@@ -61,6 +61,10 @@ public class JSONRequest implements Serializable {
 		
 		init(request.get("id"), request.get("method").asText(),
 				(ObjectNode) request.get("params"));
+		if (!request.has("id")) {
+			// a request without id is a notification
+			setNotification();
+		}
 	}
 	
 	public JSONRequest(String method, ObjectNode params) {
@@ -100,6 +104,24 @@ public class JSONRequest implements Serializable {
 		return mapper.convertValue(req.get("id"), Object.class);
 	}
 	
+	/**
+	 * Turn this request into a JSON-RPC 2.0 notification: a request without
+	 * id, to which the receiver will not reply.
+	 */
+	public final void setNotification() {
+		req.remove("id");
+	}
+	
+	/**
+	 * Check whether this request is a notification (has no id)
+	 * 
+	 * @return isNotification
+	 */
+	@JsonIgnore
+	public boolean isNotification() {
+		return !req.has("id");
+	}
+	
 	public final void setMethod(String method) {
 		req.put("method", method);
 	}
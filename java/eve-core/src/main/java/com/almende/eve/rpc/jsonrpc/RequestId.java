@@ -0,0 +1,33 @@
+package com.almende.eve.rpc.jsonrpc;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of JSON-RPC request ids: a counter, prefixed with a random id of
+ * this run of the host. Responses are matched to requests on their id, e.g.
+ * by the XMPP callbacks; the prefix keeps ids unique across hosts and
+ * restarts, like the UUIDs used before, at the cost of a counter.
+ */
+public final class RequestId {
+	private static final String		PREFIX	= Long.toString(
+													new SecureRandom()
+															.nextLong()
+															& Long.MAX_VALUE,
+													Character.MAX_RADIX)
+													+ "-";
+	private static final AtomicLong	COUNTER	= new AtomicLong();
+
+	private RequestId() {
+	}
+
+	/**
+	 * Get the next request id
+	 *
+	 * @return id
+	 */
+	public static String next() {
+		return PREFIX
+				+ Long.toString(COUNTER.incrementAndGet(), Character.MAX_RADIX);
+	}
+}
@@ -0,0 +1,185 @@
+package com.almende.eve.rpc.jsonrpc;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.almende.eve.rpc.annotation.Name;
+import com.almende.eve.rpc.annotation.Required;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.util.AnnotationUtil.AnnotatedMethod;
+import com.almende.util.AnnotationUtil.AnnotatedParam;
+import com.almende.util.ClassCache;
+import com.almende.util.TypeUtil;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Precompiled request template of a single java method, used by agent
+ * proxies. Parameter names, required flags and the return type are resolved
+ * once per method, so creating a request or reading its result needs no
+ * reflection.
+ */
+public final class RequestTemplate {
+	private static final Logger							LOG			= Logger.getLogger(RequestTemplate.class
+																			.getCanonicalName());
+	/** templates by declaring class and method */
+	private static final ClassCache<Map<Method, RequestTemplate>>	TEMPLATES	= new ClassCache<Map<Method, RequestTemplate>>();
+
+	private final String								methodName;
+	private final String[]								names;
+	private final boolean[]								required;
+	private final boolean								isVoid;
+	private final JavaType								returnType;
+	private static final JavaType						VOID		= JOM.getTypeFactory()
+																		.constructType(Void.class);
+
+	private RequestTemplate(Method method) {
+		AnnotatedMethod annotatedMethod = null;
+		try {
+			annotatedMethod = new AnnotatedMethod(method);
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "Method can't be used as annotated method",
+					e);
+			throw new IllegalArgumentException("Method '" + method.getName()
+					+ "' can't be used as annotated method.", e);
+		}
+		List<AnnotatedParam> params = annotatedMethod.getParams();
+		methodName = method.getName();
+		names = new String[params.size()];
+		required = new boolean[params.size()];
+		for (int i = 0; i < params.size(); i++) {
+			AnnotatedParam param = params.get(i);
+			Name name = param.getAnnotation(Name.class);
+			names[i] = (name != null) ? name.value() : null;
+			Required req = param.getAnnotation(Required.class);
+			required[i] = (req != null) ? req.value() : true;
+		}
+		isVoid = method.getReturnType().equals(Void.TYPE);
+		returnType = isVoid ? null : JOM.getTypeFactory().constructType(
+				method.getGenericReturnType());
+	}
+
+	/**
+	 * Get the (cached) template of the given method
+	 *
+	 * @param method
+	 * @return template
+	 */
+	public static RequestTemplate get(Method method) {
+		Class<?> clazz = method.getDeclaringClass();
+		Map<Method, RequestTemplate> templates = TEMPLATES.get(clazz);
+		if (templates == null) {
+			templates = new ConcurrentHashMap<Method, RequestTemplate>();
+			TEMPLATES.put(clazz, templates);
+		}
+		RequestTemplate template = templates.get(method);
+		if (template == null) {
+			template = new RequestTemplate(method);
+			templates.put(method, template);
+		}
+		return template;
+	}
+
+	/**
+	 * Create a request calling this method with the given arguments
+	 *
+	 * @param args
+	 *            may be null for methods without parameters
+	 * @return request
+	 */
+	public JSONRequest createRequest(Object[] args) {
+		ObjectNode params = JOM.createObjectNode();
+		int count = (args != null) ? args.length : 0;
+		for (int i = 0; i < names.length; i++) {
+			if (check(args, count, i)) {
+				params.put(names[i],
+						JOM.getInstance().convertValue(args[i], JsonNode.class));
+			}
+		}
+		return new JSONRequest(RequestId.next(), methodName, params);
+	}
+
+	/**
+	 * Create the params of a call of this method with the given arguments,
+	 * as java objects by parameter name
+	 *
+	 * @param args
+	 *            may be null for methods without parameters
+	 * @return params, null when there are none
+	 */
+	public Map<String, Object> createParams(Object[] args) {
+		int count = (args != null) ? args.length : 0;
+		Map<String, Object> params = null;
+		for (int i = 0; i < names.length; i++) {
+			if (check(args, count, i)) {
+				if (params == null) {
+					params = new HashMap<String, Object>(names.length * 2);
+				}
+				params.put(names[i], args[i]);
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Check argument i: true when it has to be passed
+	 */
+	private boolean check(Object[] args, int count, int i) {
+		if (i < count && args[i] != null) {
+			if (names[i] == null) {
+				throw new IllegalArgumentException("Parameter " + i
+						+ " in method '" + methodName
+						+ "' is missing the @Name annotation.");
+			}
+			return true;
+		} else if (required[i]) {
+			throw new IllegalArgumentException("Required parameter " + i
+					+ " in method '" + methodName + "' is null.");
+		}
+		return false;
+	}
+
+	/**
+	 * Get the result of a response to a request of this template, converted
+	 * to the return type of the method.
+	 *
+	 * @param response
+	 * @return result null for void methods or a null result
+	 * @throws JSONRPCException
+	 *             the error of the response
+	 */
+	public Object getResult(JSONResponse response) throws JSONRPCException {
+		JSONRPCException err = response.getError();
+		if (err != null) {
+			throw err;
+		}
+		if (isVoid || response.getResult() == null) {
+			return null;
+		}
+		return TypeUtil.inject(response.getResult(), returnType);
+	}
+
+	/**
+	 * Get the return type of the method, Void for void methods
+	 *
+	 * @return returnType
+	 */
+	public JavaType getReturnType() {
+		return isVoid ? VOID : returnType;
+	}
+
+	/**
+	 * Get the name of the remote method
+	 *
+	 * @return methodName
+	 */
+	public String getMethodName() {
+		return methodName;
+	}
+}
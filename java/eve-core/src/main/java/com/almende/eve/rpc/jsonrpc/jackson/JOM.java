@@ -3,6 +3,10 @@
  */
 package com.almende.eve.rpc.jsonrpc.jackson;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -13,6 +17,11 @@ import com.fasterxml.jackson.databind.type.TypeFactory;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
 
 public class JOM {
+	/** Content type of the binary encoding (Smile) between Eve hosts */
+	public static final String	BINARY_CONTENT_TYPE	= "application/x-jackson-smile";
+	private static final String	SMILE_FACTORY		= "com.fasterxml.jackson.dataformat.smile.SmileFactory";
+	private static final Logger	LOG					= Logger.getLogger(JOM.class
+															.getCanonicalName());
 	private static ObjectMapper m = null;
 	
 	protected JOM() {}
@@ -39,15 +48,51 @@ public class JOM {
 		return NullNode.getInstance();
 	}
 	
+	/**
+	 * Get the ObjectMapper for the binary (Smile) encoding, which has the
+	 * same data model as JSON. Returns null when jackson-dataformat-smile is
+	 * not on the classpath, in which case only JSON is used.
+	 * 
+	 * @return binaryMapper or null
+	 */
+	public static ObjectMapper getBinaryInstance() {
+		return Binary.MAPPER;
+	}
+	
 	private static synchronized ObjectMapper createInstance () {
-		ObjectMapper mapper = new ObjectMapper();
-		
+		return configure(new ObjectMapper());
+	}
+	
+	private static ObjectMapper configure(ObjectMapper mapper) {
 		// set configuration
 		mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 		mapper.configure(DeserializationFeature.READ_UNKNOWN_ENUM_VALUES_AS_NULL , false);
 		
 		return mapper;
-	}	
+	}
+	
+	/**
+	 * Holder of the binary mapper, created on first use
+	 */
+	private static final class Binary {
+		private static final ObjectMapper	MAPPER	= create();
+		
+		private static ObjectMapper create() {
+			try {
+				JsonFactory factory = (JsonFactory) Class.forName(
+						SMILE_FACTORY).newInstance();
+				ObjectMapper mapper = configure(new ObjectMapper(factory));
+				mapper.registerModule(new JodaModule());
+				return mapper;
+			} catch (ClassNotFoundException e) {
+				LOG.fine("Smile not available, using JSON only");
+			} catch (Exception e) {
+				LOG.log(Level.WARNING, "Failed to create Smile mapper", e);
+			}
+			return null;
+		}
+	}
+	
 	public static TypeFactory getTypeFactory(){ 
 		return JOM.getInstance().getTypeFactory();
 	}
@@ -10,7 +10,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -41,14 +41,15 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 	private String									stateId		= null;
 	private AgentHost								host		= null;
 	private long									count		= 0;
-	private ScheduledExecutorService				scheduler	= Executors
-																		.newScheduledThreadPool(10);
+	private ScheduledExecutorService				scheduler	= null;
 	
 	// {agentId: {taskId: task}}
 	private final Map<String, Map<String, Task>>	allTasks	= new ConcurrentHashMap<String, Map<String, Task>>();
 	
 	private static final Logger						LOG			= Logger.getLogger(RunnableSchedulerFactory.class
 																		.getSimpleName());
+	/** delay before a task rejected by the executor is offered again */
+	private static final long						RETRY_DELAY	= 1000;
 	
 	/**
 	 * This constructor is called when constructed by the AgentHost
@@ -64,6 +65,8 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 	public RunnableSchedulerFactory(AgentHost agentHost, String id) {
 		this.host = agentHost;
 		this.stateId = id;
+		this.scheduler = agentHost.getExecutorFactory()
+				.createScheduledExecutorService(2);
 		
 		init();
 	}
@@ -214,7 +217,9 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 			if (taskId == null) {
 				taskId = createTaskId();
 			}
-			future = scheduler.schedule(new Runnable() {
+			// the timer only waits, the task itself runs on the executor
+			// service of the host.
+			final Runnable body = new Runnable() {
 				@Override
 				public void run() {
 					try {
@@ -247,6 +252,20 @@ public class RunnableSchedulerFactory implements SchedulerFactory {
 						}
 					}
 				}
+			};
+			future = scheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						host.getExecutorService().execute(body);
+					} catch (RejectedExecutionException e) {
+						LOG.warning("Executor rejected task '" + taskId
+								+ "' of agent '" + agentId + "', retrying in "
+								+ RETRY_DELAY + " ms");
+						future = scheduler.schedule(this, RETRY_DELAY,
+								TimeUnit.MILLISECONDS);
+					}
+				}
 			}, delay, TimeUnit.MILLISECONDS);
 			
 			// persist the task
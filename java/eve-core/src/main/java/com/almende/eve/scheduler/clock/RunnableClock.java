@@ -1,7 +1,7 @@
 package com.almende.eve.scheduler.clock;
 
 import java.util.TreeMap;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -10,14 +10,36 @@ import java.util.logging.Logger;
 import org.joda.time.DateTime;
 import org.joda.time.Interval;
 
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.executor.ExecutorFactory;
+
 public class RunnableClock implements Runnable, Clock {
-	@SuppressWarnings("unused")
 	private static final Logger								LOG			= Logger.getLogger("RunnableClock");
+	/** delay before a callback rejected by the executor is offered again */
+	private static final long								RETRY_DELAY	= 1000;
 	private static final TreeMap<ClockEntry, ClockEntry>	TIMELINE	= new TreeMap<ClockEntry, ClockEntry>();
-	private static ScheduledExecutorService					pool		= Executors
-																				.newScheduledThreadPool(75);
+	private static ExecutorFactory							factory		= null;
+	private static ScheduledExecutorService					pool		= null;
 	private static ScheduledFuture<?>						future		= null;
 	
+	/**
+	 * Get the timer, created by the executor factory of the host. It is
+	 * replaced when another factory has been configured meanwhile. Must be
+	 * called holding the TIMELINE lock.
+	 */
+	private static ScheduledExecutorService getPool() {
+		ExecutorFactory current = AgentHost.getInstance().getExecutorFactory();
+		if (pool == null || current != factory) {
+			if (pool != null) {
+				pool.shutdownNow();
+				future = null;
+			}
+			factory = current;
+			pool = current.createScheduledExecutorService(1);
+		}
+		return pool;
+	}
+	
 	public void run() {
 		synchronized (TIMELINE) {
 			while (!TIMELINE.isEmpty()) {
@@ -25,7 +47,15 @@ public class RunnableClock implements Runnable, Clock {
 				DateTime now = DateTime.now();
 				if (ce.getDue().isBefore(now)) {
 					TIMELINE.remove(ce);
-					pool.execute(ce.getCallback());
+					try {
+						runInPool(ce.getCallback());
+					} catch (RejectedExecutionException e) {
+						LOG.warning("Executor rejected the trigger of agent '"
+								+ ce.getAgentId() + "', retrying in "
+								+ RETRY_DELAY + " ms");
+						ce.setDue(now.plus(RETRY_DELAY));
+						TIMELINE.put(ce, ce);
+					}
 					continue;
 				}
 				if (future != null) {
@@ -33,7 +63,8 @@ public class RunnableClock implements Runnable, Clock {
 					future = null;
 				}
 				long interval = new Interval(now, ce.getDue()).toDurationMillis();
-				future = pool.schedule(this, interval, TimeUnit.MILLISECONDS);
+				future = getPool().schedule(this, interval,
+						TimeUnit.MILLISECONDS);
 				break;
 			}
 		}
@@ -53,7 +84,9 @@ public class RunnableClock implements Runnable, Clock {
 	
 	@Override
 	public void runInPool(Runnable method) {
-		pool.execute(method);
+		// the pool only keeps the time, the callbacks run on the executor
+		// service of the host.
+		AgentHost.getInstance().getExecutorService().execute(method);
 	}
 }
 
@@ -0,0 +1,787 @@
+package com.almende.eve.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Base of the file states: the properties of an agent are stored in a file
+ * of their own, which is guarded by a file lock while it is read or
+ * written. The subclasses define how the properties are encoded.
+ *
+ * By default every operation reads the file, and every change rewrites it.
+ * In write-back mode the properties stay in memory: changes only mark their
+ * keys dirty, and are written by flush(), which is called on destroy() and
+ * by the FileStateFactory periodically and at shutdown. The factory holds
+ * a state until its changes are flushed; a state created without a factory
+ * must be flushed or destroyed by its owner. The file is read
+ * again only when its modification time or length shows another process
+ * has changed it; unflushed changes are kept on top of what was read.
+ *
+ * Reads and writes are separated by a read-write lock per file, shared by
+ * the states of the file in this process: reads of a file run in parallel,
+ * under a shared file lock which the readers in this process hold
+ * together, and never wait for reads or writes of other files. Writes take
+ * an exclusive file lock.
+ *
+ * In mapped mode the readers parse the file straight from a read-only
+ * memory mapping, which is kept until the file size changes, instead of
+ * reading it through buffered streams. The mapping stays valid while the
+ * file is truncated by a write, so this mode is meant for platforms which
+ * allow that, i.e. not Windows.
+ *
+ * @param <V>
+ *            type of the stored values
+ */
+public abstract class AbstractFileState<V> extends AbstractState<V> {
+	private static final Logger			LOG			= Logger.getLogger(AbstractFileState.class
+															.getCanonicalName());
+	/** the locks of the files with states in use, held weakly */
+	private static final ConcurrentHashMap<String, LocksRef>	LOCKS	= new ConcurrentHashMap<String, LocksRef>();
+	private static final ReferenceQueue<FileLocks>			QUEUE	= new ReferenceQueue<FileLocks>();
+
+	private String						filename	= null;
+	private FileLocks					locks		= null;
+	private FileChannel					channel		= null;
+	private FileLock					lock		= null;
+	private InputStream					fis			= null;
+	private OutputStream				fos			= null;
+
+	private boolean						writeBack	= false;
+	private boolean						mapped		= false;
+	private volatile Mapping			mapping		= null;
+	private boolean						loaded		= false;
+	private long						modified	= -1;
+	private long						length		= -1;
+	private Set<String>					dirty		= new HashSet<String>();
+	private FileStateFactory			factory		= null;
+
+	protected Map<String, V>			properties	= Collections
+															.synchronizedMap(new HashMap<String, V>());
+
+	public AbstractFileState(String agentId, String filename) {
+		this(agentId, filename, false);
+	}
+
+	/**
+	 * @param agentId
+	 * @param filename
+	 * @param writeBack
+	 *            keep the properties in memory, see flush()
+	 */
+	public AbstractFileState(String agentId, String filename,
+			boolean writeBack) {
+		super(agentId);
+		this.filename = filename;
+		this.writeBack = writeBack;
+		this.locks = getLocks(filename);
+	}
+
+	/**
+	 * Get the locks of a file, shared by its states
+	 */
+	private static FileLocks getLocks(String filename) {
+		Reference<?> ref;
+		while ((ref = QUEUE.poll()) != null) {
+			LOCKS.remove(((LocksRef) ref).filename, ref);
+		}
+		FileLocks created = new FileLocks();
+		LocksRef newRef = new LocksRef(filename, created);
+		while (true) {
+			LocksRef old = LOCKS.putIfAbsent(filename, newRef);
+			if (old == null) {
+				return created;
+			}
+			FileLocks other = old.get();
+			if (other != null) {
+				return other;
+			}
+			if (LOCKS.replace(filename, old, newRef)) {
+				return created;
+			}
+		}
+	}
+
+	/**
+	 * Decode the properties
+	 *
+	 * @param in
+	 * @param properties
+	 *            empty map to fill
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	protected abstract void read(InputStream in, Map<String, V> properties)
+			throws IOException, ClassNotFoundException;
+
+	/**
+	 * Encode the properties
+	 *
+	 * @param out
+	 * @param properties
+	 * @throws IOException
+	 */
+	protected abstract void write(OutputStream out, Map<String, V> properties)
+			throws IOException;
+
+	/**
+	 * Check whether this state keeps its properties in memory
+	 *
+	 * @return writeBack
+	 */
+	public boolean isWriteBack() {
+		return writeBack;
+	}
+
+	/**
+	 * Read the file through a memory mapping, see the class description
+	 *
+	 * @param mapped
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+		this.mapping = null;
+	}
+
+	/**
+	 * Check whether reads parse the file from a memory mapping
+	 *
+	 * @return mapped
+	 */
+	public boolean isMapped() {
+		return mapped;
+	}
+
+	/**
+	 * Set the factory which flushes this write-back state
+	 *
+	 * @param factory
+	 */
+	void setFactory(FileStateFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Open the file for writing, under an exclusive file lock. Must be called
+	 * holding the write lock of the file.
+	 *
+	 * @throws IOException
+	 */
+	@SuppressWarnings("resource")
+	protected void openFile() throws IOException {
+		File file = new File(this.filename);
+		if (!file.exists()) {
+			throw new IllegalStateException(
+					"Warning: File doesn't exist (anymore):'" + this.filename
+							+ "'");
+		}
+
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			lock = channel.lock();
+		} catch (Exception e) {
+			channel.close();
+			channel = null;
+			lock = null;
+			throw new IllegalStateException(
+					"error, couldn't obtain file lock on:" + filename, e);
+		}
+		fis = new BufferedInputStream(Channels.newInputStream(channel));
+		fos = new BufferedOutputStream(Channels.newOutputStream(channel));
+	}
+
+	protected void closeFile() {
+		if (lock != null && lock.isValid()) {
+			try {
+				lock.release();
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "", e);
+			}
+		}
+		try {
+			if (fos != null) {
+				fos.close();
+			}
+			if (fis != null) {
+				fis.close();
+			}
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		channel = null;
+		fis = null;
+		fos = null;
+		lock = null;
+	}
+
+	/**
+	 * Read the file under a shared file lock, into a new map
+	 */
+	private Map<String, V> readShared() throws IOException,
+			ClassNotFoundException {
+		FileChannel shared = locks.acquire(filename);
+		try {
+			Map<String, V> data = new HashMap<String, V>();
+			InputStream in = mapped ? map(shared)
+					: new BufferedInputStream(new FileInputStream(filename));
+			try {
+				read(in, data);
+			} catch (EOFException eof) {
+				// empty file, new agent?
+			} finally {
+				in.close();
+			}
+			return data;
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Get a stream over the mapped file, mapping it again when its size
+	 * changed. Must be called holding a file lock.
+	 */
+	private InputStream map(FileChannel readChannel) throws IOException {
+		long size = readChannel.size();
+		Mapping current = mapping;
+		if (current == null || current.size != size) {
+			current = new Mapping(readChannel.map(
+					FileChannel.MapMode.READ_ONLY, 0, size), size);
+			mapping = current;
+		}
+		return new MappedInputStream(current.buffer.duplicate());
+	}
+
+	/**
+	 * Answer a read from the contents of the file, or in write-back mode from
+	 * the properties in memory, read again when the file was changed. The
+	 * lookup runs under the lock of the file, as a write or reload refills
+	 * the properties in memory.
+	 */
+	private <T> T view(Lookup<V, T> lookup) throws IOException,
+			ClassNotFoundException {
+		ReadWriteLock rw = locks.lock;
+		rw.readLock().lock();
+		try {
+			if (!writeBack) {
+				return lookup.in(readShared());
+			}
+			if (!isChanged()) {
+				return lookup.in(properties);
+			}
+		} finally {
+			rw.readLock().unlock();
+		}
+		rw.writeLock().lock();
+		try {
+			begin();
+			return lookup.in(properties);
+		} finally {
+			rw.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * write properties to disk
+	 *
+	 * @throws IOException
+	 */
+	private void write() throws IOException {
+		if (channel != null) {
+			channel.position(0);
+		}
+		write(fos, properties);
+		fos.flush();
+		if (channel != null) {
+			// a shorter encoding must not leave the tail of the previous one
+			channel.truncate(channel.position());
+		}
+		if (writeBack) {
+			stamp();
+		}
+	}
+
+	/**
+	 * read properties from disk
+	 *
+	 * @throws ClassNotFoundException
+	 * @throws IOException
+	 */
+	private void read() throws IOException, ClassNotFoundException {
+		try {
+			if (channel != null) {
+				channel.position(0);
+			}
+			properties.clear();
+			read(fis, properties);
+		} catch (EOFException eof) {
+			// empty file, new agent?
+		}
+		if (writeBack) {
+			stamp();
+		}
+	}
+
+	/**
+	 * Remember the modification time and length of the file as this state
+	 * last read or wrote it
+	 */
+	private void stamp() {
+		File file = new File(filename);
+		modified = file.lastModified();
+		length = file.length();
+		loaded = true;
+	}
+
+	private boolean isChanged() {
+		File file = new File(filename);
+		return !loaded || file.lastModified() != modified
+				|| file.length() != length;
+	}
+
+	/**
+	 * Read the file again, keeping the unflushed changes. Must be called with
+	 * the file opened.
+	 */
+	private void reload() throws IOException, ClassNotFoundException {
+		Map<String, V> changes = new HashMap<String, V>();
+		for (String key : dirty) {
+			if (properties.containsKey(key)) {
+				changes.put(key, properties.get(key));
+			}
+		}
+		read();
+		for (String key : dirty) {
+			if (changes.containsKey(key)) {
+				properties.put(key, changes.get(key));
+			} else {
+				properties.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Bring the properties up to date before a change. Without write-back
+	 * the file stays open until end(). Must be called holding the write lock
+	 * of the file.
+	 */
+	private void begin() throws IOException, ClassNotFoundException {
+		if (!writeBack) {
+			openFile();
+			read();
+		} else if (isChanged()) {
+			openFile();
+			try {
+				reload();
+			} finally {
+				closeFile();
+			}
+		}
+	}
+
+	/**
+	 * Store a change made by an operation
+	 *
+	 * @param key
+	 *            the changed key
+	 */
+	private void commit(String key) throws IOException {
+		if (writeBack) {
+			if (dirty.isEmpty() && factory != null) {
+				factory.markDirty(this);
+			}
+			dirty.add(key);
+		} else {
+			write();
+		}
+	}
+
+	private void end() {
+		if (!writeBack) {
+			closeFile();
+		}
+	}
+
+	/**
+	 * Write the changes kept in memory to disk. Does nothing when this state
+	 * is not in write-back mode, or has no changes.
+	 */
+	public void flush() {
+		if (dirty.isEmpty()) {
+			return;
+		}
+		locks.lock.writeLock().lock();
+		try {
+			if (dirty.isEmpty()) {
+				return;
+			}
+			if (!new File(filename).exists()) {
+				LOG.warning("Dropping unflushed changes of agent '"
+						+ getAgentId() + "', its state file was deleted");
+				clean();
+				return;
+			}
+			try {
+				openFile();
+				if (isChanged()) {
+					reload();
+				}
+				write();
+				clean();
+			} catch (Exception e) {
+				LOG.log(Level.WARNING, "Failed to flush the state of agent '"
+						+ getAgentId() + "'", e);
+			}
+			closeFile();
+		} finally {
+			locks.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Forget the dirty keys. Must be called holding the write lock of the
+	 * file.
+	 */
+	private void clean() {
+		dirty.clear();
+		if (factory != null) {
+			factory.markClean(this);
+		}
+	}
+
+	/**
+	 * Forget the changes kept in memory, used when the state is deleted
+	 */
+	void discard() {
+		locks.lock.writeLock().lock();
+		try {
+			clean();
+			properties.clear();
+			loaded = false;
+		} finally {
+			locks.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * init is executed once before the agent method is invoked
+	 */
+	@Override
+	public void init() {
+	}
+
+	/**
+	 * destroy is executed when the agent is unloaded, changes kept in memory
+	 * are saved
+	 */
+	@Override
+	public void destroy() {
+		flush();
+	}
+
+	@Override
+	public void clear() {
+		locks.lock.writeLock().lock();
+		try {
+			openFile();
+			properties.clear();
+			write();
+			clean();
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		} finally {
+			closeFile();
+			locks.lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Set<String> keySet() {
+		try {
+			return view(new Lookup<V, Set<String>>() {
+				@Override
+				Set<String> in(Map<String, V> properties) {
+					return new HashSet<String>(properties.keySet());
+				}
+			});
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		return null;
+	}
+
+	@Override
+	public boolean containsKey(final String key) {
+		try {
+			return view(new Lookup<V, Boolean>() {
+				@Override
+				Boolean in(Map<String, V> properties) {
+					return properties.containsKey(key);
+				}
+			});
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		return false;
+	}
+
+	@Override
+	public V get(final String key) {
+		try {
+			return view(new Lookup<V, V>() {
+				@Override
+				V in(Map<String, V> properties) {
+					return properties.get(key);
+				}
+			});
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		return null;
+	}
+
+	/**
+	 * Store a value
+	 *
+	 * @param key
+	 * @param value
+	 * @return previous value
+	 */
+	protected V store(String key, V value) {
+		V result = null;
+		locks.lock.writeLock().lock();
+		try {
+			begin();
+			result = properties.put(key, value);
+			commit(key);
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		} finally {
+			end();
+			locks.lock.writeLock().unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * Store a value if the current value equals the old value
+	 *
+	 * @param key
+	 * @param newVal
+	 * @param oldVal
+	 * @return stored
+	 */
+	protected boolean storeIfUnchanged(String key, V newVal, V oldVal) {
+		boolean result = false;
+		locks.lock.writeLock().lock();
+		try {
+			begin();
+			if (!(oldVal == null && properties.containsKey(key) && properties
+					.get(key) != null)
+					|| (properties.get(key) != null && properties.get(key)
+							.equals(oldVal))) {
+				properties.put(key, newVal);
+				commit(key);
+				result = true;
+			}
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+			// Don't let users loop if exception is thrown. They
+			// would get into a deadlock....
+			result = true;
+		} finally {
+			end();
+			locks.lock.writeLock().unlock();
+		}
+		return result;
+	}
+
+	@Override
+	public Object remove(String key) {
+		Object result = null;
+		locks.lock.writeLock().lock();
+		try {
+			begin();
+			result = properties.remove(key);
+			commit(key);
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		} finally {
+			end();
+			locks.lock.writeLock().unlock();
+		}
+		return result;
+	}
+
+	@Override
+	public int size() {
+		try {
+			return view(new Lookup<V, Integer>() {
+				@Override
+				Integer in(Map<String, V> properties) {
+					return properties.size();
+				}
+			});
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		return -1;
+	}
+
+	/**
+	 * A read of the properties
+	 */
+	private abstract static class Lookup<V, T> {
+		abstract T in(Map<String, V> properties);
+	}
+
+	/**
+	 * In-process locks of a file. The shared file lock is held together by
+	 * the readers of the file in this process: a process can hold only one
+	 * lock on a file region.
+	 */
+	private static final class FileLocks {
+		private final ReadWriteLock	lock	= new ReentrantReadWriteLock();
+		private int					users	= 0;
+		private FileChannel			channel	= null;
+		private FileLock			shared	= null;
+
+		/**
+		 * Join the readers holding the shared file lock
+		 *
+		 * @return channel of the locked file
+		 */
+		@SuppressWarnings("resource")
+		private synchronized FileChannel acquire(String filename)
+				throws IOException {
+			if (shared == null) {
+				File file = new File(filename);
+				if (!file.exists()) {
+					throw new IllegalStateException(
+							"Warning: File doesn't exist (anymore):'"
+									+ filename + "'");
+				}
+				channel = new RandomAccessFile(file, "r").getChannel();
+				try {
+					shared = channel.lock(0, Long.MAX_VALUE, true);
+				} catch (Exception e) {
+					channel.close();
+					channel = null;
+					throw new IllegalStateException(
+							"error, couldn't obtain file lock on:" + filename,
+							e);
+				}
+			}
+			users++;
+			return channel;
+		}
+
+		private synchronized void release() {
+			if (--users > 0) {
+				return;
+			}
+			try {
+				if (shared != null && shared.isValid()) {
+					shared.release();
+				}
+				if (channel != null) {
+					channel.close();
+				}
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "", e);
+			}
+			shared = null;
+			channel = null;
+		}
+	}
+
+	/**
+	 * Weak reference to the locks of a file
+	 */
+	private static final class LocksRef extends WeakReference<FileLocks> {
+		private final String	filename;
+
+		private LocksRef(String filename, FileLocks locks) {
+			super(locks, QUEUE);
+			this.filename = filename;
+		}
+	}
+
+	/**
+	 * A mapping of the file, and the file size it was made for
+	 */
+	private static final class Mapping {
+		private final ByteBuffer	buffer;
+		private final long			size;
+
+		private Mapping(ByteBuffer buffer, long size) {
+			this.buffer = buffer;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Stream over a buffer of its own: the parsers read from the mapped
+	 * pages, without buffering.
+	 */
+	private static final class MappedInputStream extends InputStream {
+		private final ByteBuffer	buffer;
+
+		private MappedInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buffer.remaining());
+			buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.min(Math.max(n, 0), buffer.remaining());
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
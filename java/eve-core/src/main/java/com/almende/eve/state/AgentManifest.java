@@ -0,0 +1,401 @@
+package com.almende.eve.state;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Index of the agents in a FileStateFactory folder and the format of their
+ * files, so the agents can be listed without listing the folder and probing
+ * every file. The index is kept in memory and persisted in the hidden file
+ * ".agents" of the folder, to which every create and delete is appended as
+ * a line. The file is rewritten when it is loaded with many deleted
+ * entries.
+ *
+ * A create is announced before the state file is created, and confirmed
+ * after: when the process stops in between, the agent is kept on load if
+ * its file exists, and dropped otherwise.
+ *
+ * The index may be shared by processes using the same folder: it is read
+ * again when its modification time or length shows another process has
+ * changed it, and it is only changed under an exclusive lock of the hidden
+ * file ".agents.lock".
+ *
+ * A folder without an index, e.g. one written by an older version, is
+ * scanned once: the format of a file is recognized by its first byte.
+ * Delete the index to have it rebuilt after copying state files in.
+ */
+final class AgentManifest {
+	private static final Logger						LOG			= Logger.getLogger(AgentManifest.class
+																		.getCanonicalName());
+	private static final String						FILENAME	= ".agents";
+	private static final String						UTF8		= "UTF-8";
+	private static final char						JSON		= 'j';
+	private static final char						SERIALIZED	= 's';
+	private static final char						DELETED		= '-';
+	private static final char						JSON_NEW	= 'J';
+	private static final char						SERIALIZED_NEW	= 'S';
+	/** the manifests per folder, shared by the factories of a folder */
+	private static final Map<String, AgentManifest>	MANIFESTS	= new ConcurrentHashMap<String, AgentManifest>();
+
+	private final File								file;
+	private final File								lockFile;
+	/** agentId to json format */
+	private final Map<String, Boolean>				ids			= new ConcurrentHashMap<String, Boolean>();
+	private long									modified	= -1;
+	private long									length		= -1;
+
+	private AgentManifest(File folder) {
+		this.file = new File(folder, FILENAME);
+		this.lockFile = new File(folder, FILENAME + ".lock");
+	}
+
+	/**
+	 * Get the manifest of a folder, loading or building it on first use
+	 *
+	 * @param folder
+	 * @return manifest
+	 * @throws IOException
+	 */
+	static synchronized AgentManifest get(File folder) throws IOException {
+		String key = folder.getCanonicalPath();
+		AgentManifest manifest = MANIFESTS.get(key);
+		if (manifest == null) {
+			manifest = new AgentManifest(folder);
+			manifest.open(folder);
+			MANIFESTS.put(key, manifest);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Load the manifest, or build it when the folder has none
+	 */
+	private synchronized void open(File folder) throws IOException {
+		FileLock lock = lock();
+		try {
+			if (!file.exists()) {
+				build(folder);
+			} else if (load()) {
+				write();
+			}
+		} finally {
+			unlock(lock);
+		}
+	}
+
+	/**
+	 * Take the exclusive lock which guards changes of the manifest file. The
+	 * manifest file itself is replaced when it is rewritten, so it is not
+	 * locked directly.
+	 */
+	@SuppressWarnings("resource")
+	private FileLock lock() throws IOException {
+		return new RandomAccessFile(lockFile, "rw").getChannel().lock();
+	}
+
+	private static void unlock(FileLock lock) {
+		try {
+			lock.release();
+			lock.channel().close();
+		} catch (IOException e) {
+			LOG.warning("Failed to release agent manifest lock: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Remember the modification time and length of the manifest file as
+	 * this process last read or wrote it
+	 */
+	private void stamp() {
+		modified = file.lastModified();
+		length = file.length();
+	}
+
+	private boolean isChanged() {
+		return file.lastModified() != modified || file.length() != length;
+	}
+
+	/**
+	 * Read the manifest again when another process changed it
+	 */
+	private synchronized void refresh() {
+		if (!isChanged()) {
+			return;
+		}
+		try {
+			FileLock lock = lock();
+			try {
+				load();
+			} finally {
+				unlock(lock);
+			}
+		} catch (IOException e) {
+			LOG.warning("Failed to read agent manifest '" + file + "': "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Read the manifest file, replacing the agents in memory. Must be called
+	 * holding the lock.
+	 *
+	 * @return whether the file should be rewritten
+	 */
+	private boolean load() throws IOException {
+		Map<String, Boolean> ids = new HashMap<String, Boolean>();
+		int lines = 0;
+		// announced creates which were not confirmed
+		Map<String, Boolean> created = new HashMap<String, Boolean>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), UTF8));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() < 3) {
+					// torn last line
+					continue;
+				}
+				String agentId = line.substring(2);
+				switch (line.charAt(0)) {
+					case JSON_NEW:
+						created.put(agentId, true);
+						continue;
+					case SERIALIZED_NEW:
+						created.put(agentId, false);
+						continue;
+					case JSON:
+						ids.put(agentId, true);
+						break;
+					case SERIALIZED:
+						ids.put(agentId, false);
+						break;
+					case DELETED:
+						ids.remove(agentId);
+						break;
+				}
+				created.remove(agentId);
+				lines++;
+			}
+		} finally {
+			reader.close();
+		}
+		for (Map.Entry<String, Boolean> entry : created.entrySet()) {
+			if (new File(file.getParentFile(), entry.getKey()).isFile()) {
+				ids.put(entry.getKey(), entry.getValue());
+			}
+		}
+		this.ids.keySet().retainAll(ids.keySet());
+		this.ids.putAll(ids);
+		stamp();
+		return !created.isEmpty() || lines > 2 * ids.size() + 100;
+	}
+
+	/**
+	 * Build the manifest from the files in the folder. Must be called
+	 * holding the lock.
+	 */
+	private void build(File folder) throws IOException {
+		long start = System.currentTimeMillis();
+		String[] names = folder.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(".")) {
+					continue;
+				}
+				Boolean json = probe(new File(folder, name));
+				if (json != null) {
+					ids.put(name, json);
+				}
+			}
+		}
+		write();
+		LOG.info("Built the agent manifest of " + folder + " with "
+				+ ids.size() + " agents in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Recognize the format of a state file
+	 *
+	 * @return json, or null when the file is no state or still empty
+	 */
+	private static Boolean probe(File stateFile) {
+		if (!stateFile.isFile()) {
+			return null;
+		}
+		try {
+			InputStream in = new FileInputStream(stateFile);
+			try {
+				int first = in.read();
+				if (first == '{') {
+					return true;
+				}
+				// java serialization stream magic 0xACED
+				if (first == 0xAC && in.read() == 0xED) {
+					return false;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			LOG.warning("Couldn't read potential state file: "
+					+ stateFile.getName());
+		}
+		return null;
+	}
+
+	/**
+	 * Rewrite the manifest file with the current agents. Must be called
+	 * holding the lock.
+	 */
+	private synchronized void write() throws IOException {
+		File tmp = new File(file.getParentFile(), FILENAME + ".tmp");
+		Writer writer = new OutputStreamWriter(new FileOutputStream(tmp),
+				UTF8);
+		try {
+			for (Map.Entry<String, Boolean> entry : ids.entrySet()) {
+				writer.write(line(entry.getValue() ? JSON : SERIALIZED,
+						entry.getKey()));
+			}
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Failed to write agent manifest '"
+						+ file + "'");
+			}
+		}
+		stamp();
+	}
+
+	private static String line(char type, String agentId) {
+		return type + " " + agentId + "\n";
+	}
+
+	private synchronized void append(char type, String agentId) {
+		try {
+			FileLock lock = lock();
+			try {
+				// changes of other processes are read on the next listing
+				boolean current = !isChanged();
+				OutputStream out = new FileOutputStream(file, true);
+				try {
+					out.write(line(type, agentId).getBytes(UTF8));
+				} finally {
+					out.close();
+				}
+				if (current) {
+					stamp();
+				}
+			} finally {
+				unlock(lock);
+			}
+		} catch (IOException e) {
+			LOG.warning("Failed to update agent manifest '" + file + "': "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Announce the creation of an agent, before its state file is created
+	 *
+	 * @param agentId
+	 * @param json
+	 *            format of its state file
+	 */
+	void prepare(String agentId, boolean json) {
+		append(json ? JSON_NEW : SERIALIZED_NEW, agentId);
+	}
+
+	/**
+	 * Register a created agent
+	 *
+	 * @param agentId
+	 * @param json
+	 *            format of its state file
+	 */
+	synchronized void add(String agentId, boolean json) {
+		ids.put(agentId, json);
+		append(json ? JSON : SERIALIZED, agentId);
+	}
+
+	/**
+	 * Unregister a deleted agent
+	 *
+	 * @param agentId
+	 */
+	synchronized void remove(String agentId) {
+		if (ids.remove(agentId) != null) {
+			append(DELETED, agentId);
+		}
+	}
+
+	/**
+	 * Iterate over the agents with state files of the given format. The
+	 * iterator reflects creates and deletes made while iterating, and the
+	 * changes of other processes made before it was created. Its
+	 * remove() only skips the agent in this iteration, like the listing of
+	 * older versions; use the factory to delete an agent.
+	 *
+	 * @param json
+	 * @return agent ids
+	 */
+	Iterator<String> getAgentIds(final boolean json) {
+		refresh();
+		final Iterator<Map.Entry<String, Boolean>> iter = ids.entrySet()
+				.iterator();
+		return new Iterator<String>() {
+			private String	next	= null;
+			private boolean	current	= false;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && iter.hasNext()) {
+					Map.Entry<String, Boolean> entry = iter.next();
+					if (entry.getValue() == json) {
+						next = entry.getKey();
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				String result = next;
+				next = null;
+				current = true;
+				return result;
+			}
+
+			@Override
+			public void remove() {
+				if (!current) {
+					throw new IllegalStateException();
+				}
+				current = false;
+			}
+		};
+	}
+}
@@ -1,25 +1,11 @@
 package com.almende.eve.state;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.EOFException;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.fasterxml.jackson.core.JsonGenerator;
@@ -52,288 +38,51 @@ import com.fasterxml.jackson.databind.ObjectMapper;
  * @author jos
  * @author ludo
  */
-public class ConcurrentJsonFileState extends AbstractState<JsonNode> {
-	private static final Logger			LOG			= Logger.getLogger("ConcurrentFileState");
-	
-	private String						filename	= null;
-	private FileChannel					channel		= null;
-	private FileLock					lock		= null;
-	private InputStream					fis			= null;
-	private OutputStream				fos			= null;
-	private ObjectMapper				om			= null;
-	private static Map<String, Boolean>	locked		= new ConcurrentHashMap<String, Boolean>();
-	
-	private Map<String, JsonNode>		properties	= Collections
-															.synchronizedMap(new HashMap<String, JsonNode>());
+public class ConcurrentJsonFileState extends AbstractFileState<JsonNode> {
+	private ObjectMapper	om	= null;
 	
 	public ConcurrentJsonFileState(String agentId, String filename) {
-		super(agentId);
-		this.filename = filename;
+		this(agentId, filename, false);
+	}
+	
+	public ConcurrentJsonFileState(String agentId, String filename,
+			boolean writeBack) {
+		super(agentId, filename, writeBack);
 		om = JOM.getInstance();
 		om.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
 		om.configure(JsonParser.Feature.AUTO_CLOSE_SOURCE, false);
-		
 	}
 	
 	@Override
-	public void finalize() throws Throwable {
-		closeFile();
-		super.finalize();
-	}
-	
-	@SuppressWarnings("resource")
-	protected void openFile() throws IOException {
-		synchronized (locked) {
-			while (locked.containsKey(filename) && locked.get(filename)) {
-				try {
-					locked.wait();
-				} catch (InterruptedException e) {
-				}
-			}
-			locked.put(filename, true);
-			
-			File file = new File(this.filename);
-			if (!file.exists()) {
-				locked.put(filename, false);
-				locked.notifyAll();
-				throw new IllegalStateException(
-						"Warning: File doesn't exist (anymore):'"
-								+ this.filename + "'");
-			}
-			
-			channel = new RandomAccessFile(file, "rw").getChannel();
-			try {
-				// TODO: add support for shared locks, allowing parallel reading
-				// operations.
-				lock = channel.lock();
-				
-			} catch (Exception e) {
-				channel.close();
-				channel = null;
-				lock = null;
-				locked.put(filename, false);
-				locked.notifyAll();
-				throw new IllegalStateException(
-						"error, couldn't obtain file lock on:" + filename, e);
-			}
-			fis = new BufferedInputStream(Channels.newInputStream(channel));
-			fos = new BufferedOutputStream(Channels.newOutputStream(channel));
-		}
-	}
-	
-	protected void closeFile() {
-		synchronized (locked) {
-			if (lock != null && lock.isValid()) {
-				try {
-					
-					lock.release();
-				} catch (IOException e) {
-					LOG.log(Level.WARNING, "", e);
-				}
-			}
-			try {
-				if (fos != null){
-					fos.close();
-				}
-				if (fis != null){
-					fis.close();
-				}
-				
-				if (channel != null){
-					channel.close();
-				}
-				
-			} catch (IOException e) {
-				LOG.log(Level.WARNING, "", e);
-			}
-			channel = null;
-			fis = null;
-			fos = null;
-			lock = null;
-			locked.put(filename, false);
-			locked.notifyAll();
-		}
+	protected void write(OutputStream out, Map<String, JsonNode> properties)
+			throws IOException {
+		om.writeValue(out, properties);
 	}
 	
-	/**
-	 * write properties to disk
-	 * 
-	 * @return success True if successfully written
-	 * @throws IOException
-	 */
-	private void write() throws IOException {
-		if (channel != null) {
-			channel.position(0);
-		}
-		om.writeValue(fos, properties);
-		fos.flush();
-	}
-	
-	/**
-	 * read properties from disk
-	 * 
-	 * @return success True if successfully read
-	 * @throws ClassNotFoundException
-	 * @throws IOException
-	 */
-	private void read() throws IOException, ClassNotFoundException {
+	@Override
+	protected void read(InputStream in, Map<String, JsonNode> properties)
+			throws IOException {
 		try {
-			if (channel != null) {
-				channel.position(0);
-			}
-			properties.clear();
-			JsonNode data = om.readTree(fis);
+			JsonNode data = om.readTree(in);
 			Iterator<Entry<String, JsonNode>> fieldIter = data.fields();
 			
 			while (fieldIter.hasNext()) {
 				Entry<String, JsonNode> item = fieldIter.next();
 				properties.put(item.getKey(), item.getValue());
 			}
-		} catch (EOFException eof) {
-			// empty file, new agent?
-		} catch (JsonMappingException jme){
+		} catch (JsonMappingException jme) {
 			// empty file, new agent?
 		}
 	}
 	
-	/**
-	 * init is executed once before the agent method is invoked
-	 */
-	@Override
-	public void init() {
-	}
-	
-	/**
-	 * destroy is executed once after the agent method is invoked if the
-	 * properties are changed, they will be saved
-	 */
 	@Override
-	public void destroy() {
+	public JsonNode locPut(String key, JsonNode value) {
+		return store(key, value);
 	}
 	
 	@Override
-	public synchronized void clear() {
-		try {
-			openFile();
-			properties.clear();
-			write();
-		} catch (Exception e) {
-			LOG.log(Level.WARNING, "", e);
-		}
-		closeFile();
-	}
-	
-	@Override
-	public synchronized Set<String> keySet() {
-		Set<String> result = null;
-		try {
-			openFile();
-			read();
-			result = properties.keySet();
-		} catch (Exception e) {
-			LOG.log(Level.WARNING, "", e);
-		}
-		closeFile();
-		return result;
-	}
-	
-	@Override
-	public synchronized boolean containsKey(String key) {
-		boolean result = false;
-		try {
-			openFile();
-			read();
-			result = properties.containsKey(key);
-		} catch (Exception e) {
-			LOG.log(Level.WARNING, "", e);
-		}
-		closeFile();
-		return result;
-	}
-	
-	@Override
-	public synchronized JsonNode get(String key) {
-		JsonNode result = null;
-		try {
-			openFile();
-			read();
-			result = properties.get(key);
-		} catch (Exception e) {
-			LOG.log(Level.WARNING, "", e);
-		}
-		closeFile();
-		return result;
-	}
-	
-	@Override
-	public synchronized JsonNode locPut(String key, JsonNode value) {
-		JsonNode result = null;
-		try {
-			openFile();
-			read();
-			result = properties.put(key, value);
-			write();
-		} catch (Exception e) {
-			LOG.log(Level.WARNING, "", e);
-		}
-		closeFile();
-		return result;
-	}
-	
-	@Override
-	public synchronized boolean locPutIfUnchanged(String key, JsonNode newVal,
+	public boolean locPutIfUnchanged(String key, JsonNode newVal,
 			JsonNode oldVal) {
-		boolean result = false;
-		try {
-			openFile();
-			read();
-			if (!(oldVal == null && properties.containsKey(key) && properties
-					.get(key) != null)
-					|| (properties.get(key) != null && properties.get(key)
-							.equals(oldVal))) {
-				properties.put(key, newVal);
-				write();
-				result = true;
-			}
-		} catch (Exception e) {
-			LOG.log(Level.WARNING, "", e);
-			// Don't let users loop if exception is thrown. They
-			// would get into a deadlock....
-			result = true;
-		}
-		closeFile();
-		return result;
-	}
-
-	@Override
-	public synchronized Object remove(String key) {
-		Object result = null;
-		try {
-			openFile();
-			read();
-			result = properties.remove(key);
-			
-			write();
-		} catch (Exception e) {
-			LOG.log(Level.WARNING, "", e);
-		}
-		closeFile();
-		return result;
-	}
-	
-	@Override
-	public synchronized int size() {
-		int result = -1;
-		try {
-			openFile();
-			read();
-			result = properties.size();
-			
-		} catch (Exception e) {
-			LOG.log(Level.WARNING, "", e);
-		}
-		closeFile();
-		return result;
+		return storeIfUnchanged(key, newVal, oldVal);
 	}
-
 }
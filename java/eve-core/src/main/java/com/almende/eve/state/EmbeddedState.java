@@ -0,0 +1,98 @@
+package com.almende.eve.state;
+
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The state of an agent in an EmbeddedStateFactory. The state holds no data
+ * itself, all operations go to the shared store. Values are stored as JSON,
+ * like in the ConcurrentJsonFileState.
+ */
+public class EmbeddedState extends AbstractState<JsonNode> {
+	private static final Logger	LOG	= Logger.getLogger(EmbeddedState.class
+											.getCanonicalName());
+	private final EmbeddedStore	store;
+	
+	EmbeddedState(String agentId, EmbeddedStore store) {
+		super(agentId);
+		this.store = store;
+	}
+	
+	@Override
+	public void init() {
+	}
+	
+	@Override
+	public void destroy() {
+	}
+	
+	@Override
+	public void clear() {
+		try {
+			store.clear(getAgentId());
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+	}
+	
+	@Override
+	public Set<String> keySet() {
+		return store.keySet(getAgentId());
+	}
+	
+	@Override
+	public boolean containsKey(String key) {
+		return store.containsKey(getAgentId(), key);
+	}
+	
+	@Override
+	public JsonNode get(String key) {
+		try {
+			return store.get(getAgentId(), key);
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		return null;
+	}
+	
+	@Override
+	public JsonNode locPut(String key, JsonNode value) {
+		try {
+			return store.put(getAgentId(), key, value);
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		return null;
+	}
+	
+	@Override
+	public boolean locPutIfUnchanged(String key, JsonNode newVal,
+			JsonNode oldVal) {
+		try {
+			return store.putIfUnchanged(getAgentId(), key, newVal, oldVal);
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+			// Don't let users loop if exception is thrown. They
+			// would get into a deadlock....
+			return true;
+		}
+	}
+	
+	@Override
+	public Object remove(String key) {
+		try {
+			return store.remove(getAgentId(), key);
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		return null;
+	}
+	
+	@Override
+	public int size() {
+		return store.size(getAgentId());
+	}
+}
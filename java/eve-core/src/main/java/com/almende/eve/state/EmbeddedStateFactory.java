@@ -0,0 +1,150 @@
+package com.almende.eve.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Stores the states of all agents in a single embedded store, see
+ * EmbeddedStore, instead of a file per agent. Suited for hosts with many
+ * agents: the existence of an agent, its keys and values are looked up in
+ * an in-memory index, without touching the file system.
+ * 
+ * Configuration:
+ * 
+ * state:
+ *   class: EmbeddedStateFactory
+ *   path: .evestore
+ *   shards: 4
+ *   page_size: 8388608
+ *   compaction_ratio: 0.5
+ * 
+ * The number of shards and the page size are fixed when the store is
+ * created, and recorded in the header of every shard: a store is not opened
+ * with other values. A shard is compacted once its superseded records
+ * exceed compaction_ratio (default 0.5) of its records. A store can be used
+ * by a single process.
+ */
+public class EmbeddedStateFactory implements StateFactory {
+	private static final Logger	LOG					= Logger.getLogger(EmbeddedStateFactory.class
+															.getCanonicalName());
+	public static final int		DEFAULT_SHARDS		= 4;
+	public static final int		DEFAULT_PAGE_SIZE	= 8 * 1024 * 1024;
+	public static final double	DEFAULT_RATIO		= 0.5;
+	
+	private String				path				= null;
+	private EmbeddedStore		store				= null;
+	
+	/**
+	 * This constructor is called when constructed by the AgentHost
+	 * 
+	 * @param params
+	 * @throws IOException
+	 */
+	public EmbeddedStateFactory(Map<String, Object> params) throws IOException {
+		if (params == null) {
+			params = new HashMap<String, Object>();
+		}
+		int shards = DEFAULT_SHARDS;
+		if (params.containsKey("shards")) {
+			shards = ((Number) params.get("shards")).intValue();
+		}
+		int pageSize = DEFAULT_PAGE_SIZE;
+		if (params.containsKey("page_size")) {
+			pageSize = ((Number) params.get("page_size")).intValue();
+		}
+		double ratio = DEFAULT_RATIO;
+		if (params.containsKey("compaction_ratio")) {
+			ratio = ((Number) params.get("compaction_ratio")).doubleValue();
+		}
+		open((String) params.get("path"), shards, pageSize, ratio);
+	}
+	
+	public EmbeddedStateFactory(String path) throws IOException {
+		this(path, DEFAULT_SHARDS, DEFAULT_PAGE_SIZE);
+	}
+	
+	public EmbeddedStateFactory(String path, int shards, int pageSize)
+			throws IOException {
+		this(path, shards, pageSize, DEFAULT_RATIO);
+	}
+	
+	/**
+	 * @param path
+	 * @param shards
+	 * @param pageSize
+	 * @param ratio
+	 *            of superseded records above which a shard is compacted
+	 * @throws IOException
+	 */
+	public EmbeddedStateFactory(String path, int shards, int pageSize,
+			double ratio) throws IOException {
+		open(path, shards, pageSize, ratio);
+	}
+	
+	private void open(String path, int shards, int pageSize, double ratio)
+			throws IOException {
+		if (path == null) {
+			path = ".evestore";
+			LOG.warning("Config parameter 'state.path' missing in Eve "
+					+ "configuration. Using the default path '" + path + "'");
+		}
+		this.path = path;
+		long start = System.currentTimeMillis();
+		store = new EmbeddedStore(new File(path), shards, pageSize, ratio);
+		LOG.info("Opened state store " + path + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+	
+	/**
+	 * Release the store files
+	 */
+	public void close() {
+		store.close();
+	}
+	
+	@Override
+	public State get(String agentId) {
+		if (!store.exists(agentId)) {
+			return null;
+		}
+		return new EmbeddedState(agentId, store);
+	}
+	
+	@Override
+	public State create(String agentId) throws IOException {
+		store.create(agentId);
+		return new EmbeddedState(agentId, store);
+	}
+	
+	@Override
+	public void delete(String agentId) {
+		try {
+			store.delete(agentId);
+		} catch (IOException e) {
+			LOG.warning("Failed to delete state '" + agentId + "': "
+					+ e.getMessage());
+		}
+	}
+	
+	@Override
+	public boolean exists(String agentId) {
+		return store.exists(agentId);
+	}
+	
+	@Override
+	public Iterator<String> getAllAgentIds() {
+		return store.getAgentIds();
+	}
+	
+	@Override
+	public String toString() {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("class", this.getClass().getName());
+		data.put("path", path);
+		return data.toString();
+	}
+}
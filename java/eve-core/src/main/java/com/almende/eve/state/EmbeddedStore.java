@@ -0,0 +1,686 @@
+package com.almende.eve.state;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Store holding the states of all agents in a few shard files, instead of a
+ * file per agent. Every change is appended as a checksummed record to the
+ * shard of its agent; the shards are memory mapped in pages, and values are
+ * read straight from the mapped pages. A sorted in-memory index maps
+ * (agentId, key) to the location of the current value, so existence checks,
+ * scans and lookups never touch directory metadata.
+ *
+ * The index is rebuilt by scanning the shards when the store is opened.
+ * A shard is compacted when its superseded records exceed the compaction
+ * ratio: when the store is opened, and in the background once a change
+ * passes the ratio. A compaction blocks the changes of the agents of its
+ * shard, not the reads: the index is switched to the new shard entry by
+ * entry, and the pages of the old shard stay mapped while they are read.
+ */
+final class EmbeddedStore {
+	private static final Logger								LOG		= Logger.getLogger(EmbeddedStore.class
+																			.getCanonicalName());
+	/** "EVST" */
+	private static final int								MAGIC	= 0x45565354;
+	private static final int								VERSION	= 2;
+	/** magic, version, shard count and page size */
+	private static final int								HEADER	= 16;
+	/** record length marking the rest of a page as unused */
+	private static final int								PADDING	= -1;
+	private static final byte								CREATE	= 1;
+	private static final byte								DELETE	= 2;
+	private static final byte								PUT		= 3;
+	private static final byte								REMOVE	= 4;
+	private static final char								SEP		= '\u0000';
+
+	private final ObjectMapper								om		= JOM.getInstance();
+	private final Shard[]									shards;
+	/** guard the changes, and the replacement, of the shard in their slot */
+	private final Object[]									locks;
+	private final boolean[]									compacting;
+	private final int										pageSize;
+	private final double									ratio;
+	private final ExecutorService							compactor;
+	private final ConcurrentSkipListSet<String>				agents	= new ConcurrentSkipListSet<String>();
+	private final ConcurrentSkipListMap<String, Location>	index	= new ConcurrentSkipListMap<String, Location>();
+
+	/**
+	 * Open or create a store
+	 *
+	 * @param folder
+	 * @param shardCount
+	 *            number of shard files, fixed when the store is created
+	 * @param pageSize
+	 *            size in bytes of the mapped pages, limits the record size
+	 * @param ratio
+	 *            of superseded records above which a shard is compacted
+	 * @throws IOException
+	 */
+	EmbeddedStore(File folder, int shardCount, int pageSize, double ratio)
+			throws IOException {
+		if (!folder.exists() && !folder.mkdirs()) {
+			throw new IOException("Could not create store folder '" + folder
+					+ "'");
+		}
+		this.pageSize = pageSize;
+		this.ratio = ratio;
+		shards = new Shard[shardCount];
+		locks = new Object[shardCount];
+		compacting = new boolean[shardCount];
+		compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "eve-store-compactor");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			for (int i = 0; i < shardCount; i++) {
+				locks[i] = new Object();
+				shards[i] = new Shard(new File(folder, "shard-" + i + ".dat"));
+				shards[i].scan();
+				if (shards[i].isCompactionDue()) {
+					compact(i);
+				}
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Release the shard files
+	 */
+	void close() {
+		compactor.shutdown();
+		for (int i = 0; i < shards.length; i++) {
+			if (locks[i] == null) {
+				continue;
+			}
+			synchronized (locks[i]) {
+				if (shards[i] != null) {
+					shards[i].close();
+				}
+			}
+		}
+	}
+
+	private int slot(String agentId) {
+		return (agentId.hashCode() & Integer.MAX_VALUE) % shards.length;
+	}
+
+	private static String indexKey(String agentId, String key) {
+		return agentId + SEP + key;
+	}
+
+	/**
+	 * The index entries of an agent
+	 */
+	private NavigableMap<String, Location> entries(String agentId) {
+		return index.subMap(agentId + SEP, true, agentId + (char) (SEP + 1),
+				false);
+	}
+
+	boolean exists(String agentId) {
+		return agents.contains(agentId);
+	}
+
+	Iterator<String> getAgentIds() {
+		return agents.iterator();
+	}
+
+	void create(String agentId) throws IOException {
+		int slot = slot(agentId);
+		synchronized (locks[slot]) {
+			Shard shard = shards[slot];
+			if (agents.contains(agentId)) {
+				throw new IllegalStateException("Cannot create state, "
+						+ "state with id '" + agentId + "' already exists.");
+			}
+			shard.live += shard.append(record(CREATE, agentId, null, null)).size;
+			agents.add(agentId);
+		}
+	}
+
+	void delete(String agentId) throws IOException {
+		int slot = slot(agentId);
+		synchronized (locks[slot]) {
+			Shard shard = shards[slot];
+			if (agents.contains(agentId)) {
+				Location location = shard.append(record(DELETE, agentId, null,
+						null));
+				for (Location old : entries(agentId).values()) {
+					shard.supersede(old);
+				}
+				entries(agentId).clear();
+				agents.remove(agentId);
+				shard.garbage += location.size;
+				checkCompaction(slot);
+			}
+		}
+	}
+
+	JsonNode get(String agentId, String key) throws IOException {
+		Location location = index.get(indexKey(agentId, key));
+		return location != null ? location.read() : null;
+	}
+
+	boolean containsKey(String agentId, String key) {
+		return index.containsKey(indexKey(agentId, key));
+	}
+
+	Set<String> keySet(String agentId) {
+		Set<String> keys = new TreeSet<String>();
+		int prefix = agentId.length() + 1;
+		for (String entry : entries(agentId).keySet()) {
+			keys.add(entry.substring(prefix));
+		}
+		return keys;
+	}
+
+	int size(String agentId) {
+		return entries(agentId).size();
+	}
+
+	/**
+	 * Store a value
+	 *
+	 * @return previous value, read from the record it supersedes
+	 */
+	JsonNode put(String agentId, String key, JsonNode value)
+			throws IOException {
+		int slot = slot(agentId);
+		synchronized (locks[slot]) {
+			Location old = write(slot, agentId, key, value);
+			return old != null ? old.read() : null;
+		}
+	}
+
+	boolean putIfUnchanged(String agentId, String key, JsonNode newVal,
+			JsonNode oldVal) throws IOException {
+		int slot = slot(agentId);
+		synchronized (locks[slot]) {
+			boolean present = containsKey(agentId, key);
+			JsonNode current = get(agentId, key);
+			if (!(oldVal == null && present && current != null)
+					|| (current != null && current.equals(oldVal))) {
+				write(slot, agentId, key, newVal);
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Append a put record. Must be called holding the lock of the slot.
+	 *
+	 * @return location of the superseded value, or null
+	 */
+	private Location write(int slot, String agentId, String key,
+			JsonNode value) throws IOException {
+		if (!agents.contains(agentId)) {
+			throw new IllegalStateException("State '" + agentId
+					+ "' doesn't exist (anymore)");
+		}
+		byte[] bytes = value != null ? om.writeValueAsBytes(value)
+				: new byte[0];
+		byte[] record = record(PUT, agentId, key, bytes);
+		Shard shard = shards[slot];
+		Location location = shard.append(record);
+		Location old = index.put(indexKey(agentId, key), location.value(
+				record.length - bytes.length, bytes.length));
+		shard.supersede(old);
+		shard.live += location.size;
+		checkCompaction(slot);
+		return old;
+	}
+
+	JsonNode remove(String agentId, String key) throws IOException {
+		int slot = slot(agentId);
+		synchronized (locks[slot]) {
+			Shard shard = shards[slot];
+			JsonNode old = get(agentId, key);
+			if (index.containsKey(indexKey(agentId, key))) {
+				Location location = shard.append(record(REMOVE, agentId, key,
+						null));
+				shard.supersede(index.remove(indexKey(agentId, key)));
+				shard.garbage += location.size;
+				checkCompaction(slot);
+			}
+			return old;
+		}
+	}
+
+	void clear(String agentId) throws IOException {
+		int slot = slot(agentId);
+		synchronized (locks[slot]) {
+			Shard shard = shards[slot];
+			for (String key : keySet(agentId)) {
+				Location location = shard.append(record(REMOVE, agentId, key,
+						null));
+				shard.supersede(index.remove(indexKey(agentId, key)));
+				shard.garbage += location.size;
+			}
+			checkCompaction(slot);
+		}
+	}
+
+	/**
+	 * Create a framed record: length, checksum and payload
+	 */
+	private static byte[] record(byte type, String agentId, String key,
+			byte[] value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeByte(type);
+		out.writeUTF(agentId);
+		if (key != null) {
+			out.writeUTF(key);
+		}
+		if (value != null) {
+			out.write(value);
+		}
+		out.flush();
+		byte[] record = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(record, 8, record.length - 8);
+		ByteBuffer.wrap(record).putInt(record.length - 8)
+				.putInt((int) crc.getValue());
+		return record;
+	}
+
+	/**
+	 * Compact the shard of a slot in the background when it is due. Must be
+	 * called holding the lock of the slot.
+	 */
+	private void checkCompaction(final int slot) {
+		if (compacting[slot] || compactor.isShutdown()
+				|| !shards[slot].isCompactionDue()) {
+			return;
+		}
+		compacting[slot] = true;
+		compactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (locks[slot]) {
+					compacting[slot] = false;
+					try {
+						if (!compactor.isShutdown()
+								&& shards[slot].isCompactionDue()) {
+							compact(slot);
+						}
+					} catch (IOException e) {
+						LOG.log(Level.WARNING, "Failed to compact store shard '"
+								+ shards[slot].file + "'", e);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Rewrite the shard of a slot with the current records only. Must be
+	 * called holding the lock of the slot.
+	 */
+	private void compact(int slot) throws IOException {
+		Shard shard = shards[slot];
+		File file = shard.file;
+		File tmp = new File(file.getParentFile(), "." + file.getName()
+				+ ".compact");
+		tmp.delete();
+		Shard compacted = new Shard(tmp);
+		Map<String, Location> moved = new HashMap<String, Location>();
+		try {
+			compacted.scan();
+			for (String agentId : agents) {
+				if (slot(agentId) != slot) {
+					continue;
+				}
+				compacted.live += compacted.append(record(CREATE, agentId,
+						null, null)).size;
+				int prefix = agentId.length() + 1;
+				for (Map.Entry<String, Location> entry : entries(agentId)
+						.entrySet()) {
+					byte[] bytes = entry.getValue().bytes();
+					byte[] record = record(PUT, agentId, entry.getKey()
+							.substring(prefix), bytes);
+					Location location = compacted.append(record);
+					compacted.live += location.size;
+					moved.put(entry.getKey(), location.value(record.length
+							- bytes.length, bytes.length));
+				}
+			}
+			compacted.force();
+			if (!tmp.renameTo(file)) {
+				// some platforms do not replace an existing file
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IOException("Failed to replace shard '" + file
+							+ "' by its compacted version");
+				}
+			}
+		} catch (IOException e) {
+			compacted.close();
+			tmp.delete();
+			throw e;
+		}
+		compacted.file = file;
+		// readers still holding a location of the old shard read its pages,
+		// which stay mapped until they are collected
+		index.putAll(moved);
+		long before = shard.size();
+		shard.close();
+		shards[slot] = compacted;
+		LOG.info("Compacted store shard '" + file + "' from " + before
+				+ " to " + compacted.size() + " bytes");
+	}
+
+	/**
+	 * Location of a record, or of the value inside a put record
+	 */
+	private final class Location {
+		private final ByteBuffer	page;
+		private final int			offset;
+		private final int			length;
+		/** size of the whole record */
+		private final int			size;
+
+		private Location(ByteBuffer page, int offset, int length, int size) {
+			this.page = page;
+			this.offset = offset;
+			this.length = length;
+			this.size = size;
+		}
+
+		/**
+		 * The location of the value inside this record
+		 */
+		private Location value(int start, int valueLength) {
+			return new Location(page, offset + start, valueLength, size);
+		}
+
+		private byte[] bytes() {
+			byte[] bytes = new byte[length];
+			ByteBuffer buffer = page.duplicate();
+			buffer.position(offset);
+			buffer.get(bytes);
+			return bytes;
+		}
+
+		private JsonNode read() throws IOException {
+			return length > 0 ? om.readTree(bytes()) : null;
+		}
+	}
+
+	/**
+	 * A shard file, mapped in pages. Records are appended at the end of the
+	 * last page; a record which does not fit starts a new page.
+	 */
+	private final class Shard {
+		private File							file;
+		private final FileChannel				channel;
+		private final FileLock					lock;
+		private final List<MappedByteBuffer>	pages		= new ArrayList<MappedByteBuffer>();
+		private int								position	= 0;
+		private long							live		= 0;
+		private long							garbage		= 0;
+
+		@SuppressWarnings("resource")
+		private Shard(File file) throws IOException {
+			this.file = file;
+			FileChannel ch = new RandomAccessFile(file, "rw").getChannel();
+			FileLock fl = null;
+			try {
+				fl = ch.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// opened by another store of this process
+			}
+			if (fl == null) {
+				ch.close();
+				throw new IllegalStateException("Store shard '" + file
+						+ "' is in use");
+			}
+			channel = ch;
+			lock = fl;
+		}
+
+		private void close() {
+			try {
+				if (lock.isValid()) {
+					lock.release();
+				}
+				channel.close();
+			} catch (IOException e) {
+				LOG.warning("Failed to close store shard '" + file + "': "
+						+ e.getMessage());
+			}
+			pages.clear();
+		}
+
+		private long size() {
+			return (long) (pages.size() - 1) * pageSize + position;
+		}
+
+		private boolean isCompactionDue() {
+			return pages.size() > 1 && garbage > ratio * (garbage + live);
+		}
+
+		/**
+		 * Account for a record superseded by a change
+		 *
+		 * @param old
+		 *            may be null
+		 */
+		private void supersede(Location old) {
+			if (old != null) {
+				garbage += old.size;
+				live -= old.size;
+			}
+		}
+
+		private void force() {
+			for (MappedByteBuffer page : pages) {
+				page.force();
+			}
+		}
+
+		private MappedByteBuffer map(int page) throws IOException {
+			long start = (long) page * pageSize;
+			if (channel.size() < start + pageSize) {
+				// grow the file, the new page reads as zeros
+				channel.write(ByteBuffer.wrap(new byte[1]), start + pageSize
+						- 1);
+			}
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_WRITE, start, pageSize);
+			pages.add(buffer);
+			return buffer;
+		}
+
+		/**
+		 * Map the shard and index its records, creating the header of a new
+		 * shard
+		 */
+		private void scan() throws IOException {
+			if (channel.size() == 0) {
+				map(0).putInt(0, MAGIC).putInt(4, VERSION)
+						.putInt(8, shards.length).putInt(12, pageSize);
+				position = HEADER;
+				return;
+			}
+			checkHeader();
+			int count = (int) (channel.size() / pageSize);
+			if (count == 0 || channel.size() % pageSize != 0) {
+				throw new IOException("Store shard '" + file
+						+ "' is truncated, or has another page size");
+			}
+			for (int i = 0; i < count; i++) {
+				map(i);
+			}
+			int page = 0;
+			int offset = HEADER;
+			CRC32 crc = new CRC32();
+			while (true) {
+				ByteBuffer buffer = pages.get(page);
+				int len = offset + 8 <= pageSize ? buffer.getInt(offset) : 0;
+				if (len == PADDING && page + 1 < count) {
+					page++;
+					offset = 0;
+					continue;
+				}
+				if (len <= 0 || offset + 8 + len > pageSize) {
+					break;
+				}
+				byte[] payload = new byte[len];
+				ByteBuffer slice = buffer.duplicate();
+				slice.position(offset + 8);
+				slice.get(payload);
+				crc.reset();
+				crc.update(payload);
+				if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+					break;
+				}
+				apply(new Location(buffer, offset, 8 + len, 8 + len), payload);
+				offset += 8 + len;
+			}
+			// drop the pages past the end, and a torn record at the end
+			while (pages.size() > page + 1) {
+				pages.remove(pages.size() - 1);
+			}
+			if (channel.size() > (long) (page + 1) * pageSize) {
+				channel.truncate((long) (page + 1) * pageSize);
+			}
+			ByteBuffer last = pages.get(page);
+			if (offset + 4 <= pageSize && last.getInt(offset) != 0) {
+				LOG.warning("Cutting off a torn or corrupt record of store shard '"
+						+ file + "'");
+				for (int i = offset; i < pageSize; i++) {
+					last.put(i, (byte) 0);
+				}
+			}
+			position = offset;
+		}
+
+		/**
+		 * Check the header of an existing shard, before its pages are
+		 * mapped: the agents are assigned to the shards by the shard count,
+		 * and the records are laid out by the page size
+		 */
+		private void checkHeader() throws IOException {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					throw new IOException("Store shard '" + file
+							+ "' is truncated");
+				}
+			}
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException("Not a store shard: '" + file + "'");
+			}
+			if (header.getInt(4) != VERSION) {
+				throw new IOException("Unsupported version "
+						+ header.getInt(4) + " of store shard '" + file + "'");
+			}
+			if (header.getInt(8) != shards.length
+					|| header.getInt(12) != pageSize) {
+				throw new IOException("Store shard '" + file + "' was created with "
+						+ header.getInt(8) + " shards and a page size of "
+						+ header.getInt(12) + " bytes, not " + shards.length
+						+ " shards of " + pageSize + " bytes");
+			}
+		}
+
+		private void apply(Location location, byte[] payload)
+				throws IOException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					payload));
+			byte type = in.readByte();
+			String agentId = in.readUTF();
+			String key = type == PUT || type == REMOVE ? in.readUTF() : null;
+			if (type == CREATE) {
+				agents.add(agentId);
+				live += location.size;
+			} else if (type == DELETE) {
+				for (Location old : entries(agentId).values()) {
+					supersede(old);
+				}
+				entries(agentId).clear();
+				agents.remove(agentId);
+				garbage += location.size;
+			} else {
+				supersede(index.remove(indexKey(agentId, key)));
+				if (type == PUT) {
+					int length = in.available();
+					index.put(indexKey(agentId, key), location.value(8
+							+ payload.length - length, length));
+					live += location.size;
+				} else {
+					garbage += location.size;
+				}
+			}
+		}
+
+		/**
+		 * Append a record
+		 *
+		 * @return location of the record
+		 */
+		private Location append(byte[] record) throws IOException {
+			if (record.length + 4 > pageSize) {
+				throw new IOException("Record of " + record.length
+						+ " bytes exceeds the page size of the store");
+			}
+			ByteBuffer page = pages.get(pages.size() - 1);
+			if (position + record.length + 4 > pageSize) {
+				// keep room for an end marker
+				if (position + 4 <= pageSize) {
+					page.putInt(position, PADDING);
+				}
+				page = map(pages.size());
+				position = 0;
+			}
+			ByteBuffer buffer = page.duplicate();
+			buffer.position(position);
+			buffer.put(record);
+			Location location = new Location(page, position, record.length,
+					record.length);
+			position += record.length;
+			return location;
+		}
+	}
+}
@@ -2,24 +2,62 @@ package com.almende.eve.state;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
-import sun.net.www.protocol.file.FileURLConnection;
-
-@SuppressWarnings("restriction")
+/**
+ * Stores the state of every agent in a file of its own. With the parameter
+ * write_back the states keep their properties in memory while the agent is
+ * active, and write their changes every flush_interval milliseconds, when
+ * the agent is unloaded and at shutdown. All write-back factories share a
+ * single flusher thread; close() stops the flushing of a factory. With the
+ * parameter mapped the states parse their files from a memory mapping.
+ * 
+ * A single state is kept per agent while it is in use. The states are held
+ * weakly, except write-back states with unflushed changes, so the states of
+ * unloaded agents are dropped.
+ * 
+ * The agents are listed from an AgentManifest, kept up to date on create
+ * and delete.
+ */
 public class FileStateFactory implements StateFactory {
+	/** Default interval in milliseconds between flushes of write-back states */
+	public static final long					DEFAULT_FLUSH_INTERVAL	= 1000;
+	
+	private String								path					= null;
+	private Boolean								json					= false;
+	private boolean								writeBack				= false;
+	private boolean								mapped					= false;
+	private Logger								logger					= Logger.getLogger(this
+																				.getClass()
+																				.getSimpleName());
+	/** the write-back factories which are not closed, flushed at shutdown */
+	private static final Set<FileStateFactory>	WRITE_BACK				= Collections
+																				.newSetFromMap(new ConcurrentHashMap<FileStateFactory, Boolean>());
+	private static ScheduledExecutorService		flusher					= null;
 	
-	private String				path	= null;
-	private Boolean				json	= false;
-	private Logger				logger	= Logger.getLogger(this.getClass()
-												.getSimpleName());
-	private Map<String, State>	states	= new HashMap<String, State>();
+	private final ConcurrentHashMap<String, StateRef>	states			= new ConcurrentHashMap<String, StateRef>();
+	private final ReferenceQueue<AbstractFileState<?>>	queue			= new ReferenceQueue<AbstractFileState<?>>();
+	/** write-back states with unflushed changes, held until flushed */
+	private final Set<AbstractFileState<?>>		dirty					= Collections
+																				.newSetFromMap(new ConcurrentHashMap<AbstractFileState<?>, Boolean>());
+	private ScheduledFuture<?>					flushTask				= null;
+	private AgentManifest						manifest				= null;
 	
 	/**
 	 * This constructor is called when constructed by the AgentHost
@@ -38,6 +76,19 @@ public class FileStateFactory implements StateFactory {
 		if (params.containsKey("path")) {
 			setPath((String) params.get("path"));
 		}
+		
+		if (params.containsKey("write_back")
+				&& (Boolean) params.get("write_back")) {
+			long interval = DEFAULT_FLUSH_INTERVAL;
+			if (params.containsKey("flush_interval")) {
+				interval = ((Number) params.get("flush_interval")).longValue();
+			}
+			setWriteBack(interval);
+		}
+		
+		if (params.containsKey("mapped")) {
+			setMapped((Boolean) params.get("mapped"));
+		}
 	}
 	
 	public FileStateFactory(String path, Boolean json) {
@@ -45,6 +96,18 @@ public class FileStateFactory implements StateFactory {
 		setPath(path);
 	}
 	
+	/**
+	 * @param path
+	 * @param json
+	 * @param flushInterval
+	 *            keep the states in memory, and write their changes at this
+	 *            interval in milliseconds
+	 */
+	public FileStateFactory(String path, Boolean json, long flushInterval) {
+		this(path, json);
+		setWriteBack(flushInterval);
+	}
+	
 	public FileStateFactory(String path) {
 		this(path, false);
 	}
@@ -72,6 +135,13 @@ public class FileStateFactory implements StateFactory {
 			throw new IllegalStateException();
 		}
 		
+		try {
+			manifest = AgentManifest.get(file);
+		} catch (IOException e) {
+			logger.warning("Agent manifest unavailable, agents will be "
+					+ "listed from the folder: " + e.getMessage());
+		}
+		
 		// log info
 		String info = "Agents will be stored in ";
 		try {
@@ -85,6 +155,96 @@ public class FileStateFactory implements StateFactory {
 						: "(stored in JavaObject format)"));
 	}
 	
+	/**
+	 * Keep the states in memory, and flush their changes periodically and
+	 * at shutdown.
+	 * 
+	 * @param flushInterval
+	 *            in milliseconds
+	 */
+	private synchronized void setWriteBack(long flushInterval) {
+		writeBack = true;
+		flushTask = getFlusher().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		WRITE_BACK.add(this);
+		logger.info("States are written back every " + flushInterval + " ms");
+	}
+	
+	/**
+	 * Get the flusher thread shared by the write-back factories, which also
+	 * flushes them at shutdown
+	 */
+	private static synchronized ScheduledExecutorService getFlusher() {
+		if (flusher == null) {
+			flusher = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "eve-state-flusher");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			Runtime.getRuntime().addShutdownHook(
+					new Thread("eve-state-shutdown") {
+						@Override
+						public void run() {
+							for (FileStateFactory factory : WRITE_BACK) {
+								factory.flush();
+							}
+						}
+					});
+		}
+		return flusher;
+	}
+	
+	/**
+	 * Stop flushing the write-back states periodically and at shutdown,
+	 * after flushing them a last time. States obtained from this factory
+	 * must not be changed anymore.
+	 */
+	public synchronized void close() {
+		if (flushTask != null) {
+			flushTask.cancel(false);
+			flushTask = null;
+		}
+		WRITE_BACK.remove(this);
+		flush();
+	}
+	
+	/**
+	 * Write the changes of all write-back states to disk
+	 */
+	public void flush() {
+		for (AbstractFileState<?> state : dirty) {
+			state.flush();
+		}
+	}
+	
+	/**
+	 * Hold a write-back state until its changes are flushed. Called by the
+	 * state holding its write lock.
+	 * 
+	 * @param state
+	 */
+	void markDirty(AbstractFileState<?> state) {
+		dirty.add(state);
+	}
+	
+	/**
+	 * Release a flushed write-back state. Called by the state holding its
+	 * write lock.
+	 * 
+	 * @param state
+	 */
+	void markClean(AbstractFileState<?> state) {
+		dirty.remove(state);
+	}
+	
 	/**
 	 * Get state with given id. Will return null if not found
 	 * 
@@ -92,24 +252,75 @@ public class FileStateFactory implements StateFactory {
 	 * @return state
 	 */
 	public State get(String agentId, boolean json) {
-		State state = null;
-		if (exists(agentId)) {
-			if (states.containsKey(agentId)) {
-				state = states.get(agentId);
-			} else {
-				if (json) {
-					state = new ConcurrentJsonFileState(agentId,
-							getFilename(agentId));
-				} else {
-					state = new ConcurrentSerializableFileState(agentId,
-							getFilename(agentId));
-				}
-				states.put(agentId, state);
+		if (!exists(agentId)) {
+			return null;
+		}
+		purge();
+		StateRef ref = states.get(agentId);
+		AbstractFileState<?> state = (ref != null) ? ref.get() : null;
+		if (state != null) {
+			return state;
+		}
+		state = createState(agentId, json);
+		// two threads may load the same agent, keep a single state
+		StateRef newRef = new StateRef(agentId, state, queue);
+		while (true) {
+			StateRef old = states.putIfAbsent(agentId, newRef);
+			if (old == null) {
+				return state;
+			}
+			AbstractFileState<?> other = old.get();
+			if (other != null) {
+				return other;
+			}
+			if (states.replace(agentId, old, newRef)) {
+				return state;
 			}
 		}
+	}
+	
+	/**
+	 * Remove the entries of the states which are no longer used
+	 */
+	private void purge() {
+		Reference<?> ref;
+		while ((ref = queue.poll()) != null) {
+			StateRef stateRef = (StateRef) ref;
+			states.remove(stateRef.agentId, stateRef);
+		}
+	}
+	
+	private AbstractFileState<?> createState(String agentId, boolean json) {
+		AbstractFileState<?> state;
+		if (json) {
+			state = new ConcurrentJsonFileState(agentId, getFilename(agentId),
+					writeBack);
+		} else {
+			state = new ConcurrentSerializableFileState(agentId,
+					getFilename(agentId), writeBack);
+		}
+		state.setMapped(mapped);
+		if (writeBack) {
+			state.setFactory(this);
+		}
 		return state;
 	}
 	
+	/**
+	 * Let the states read their files through a memory mapping
+	 * 
+	 * @param mapped
+	 */
+	public void setMapped(boolean mapped) {
+		this.mapped = mapped;
+		for (StateRef ref : states.values()) {
+			AbstractFileState<?> state = ref.get();
+			if (state != null) {
+				state.setMapped(mapped);
+			}
+		}
+	}
+	
 	@Override
 	public State get(String agentId) {
 		return get(agentId, this.json);
@@ -134,16 +345,18 @@ public class FileStateFactory implements StateFactory {
 		// state as created.
 		String filename = getFilename(agentId);
 		File file = new File(filename);
+		if (manifest != null) {
+			manifest.prepare(agentId, json);
+		}
 		file.createNewFile();
 		
-		State state = null;
 		// instantiate the state
-		if (json) {
-			state = new ConcurrentJsonFileState(agentId, filename);
-		} else {
-			state = new ConcurrentSerializableFileState(agentId, filename);
+		AbstractFileState<?> state = createState(agentId, json);
+		purge();
+		states.put(agentId, new StateRef(agentId, state, queue));
+		if (manifest != null) {
+			manifest.add(agentId, json);
 		}
-		states.put(agentId, state);
 		return state;
 	}
 	
@@ -159,11 +372,18 @@ public class FileStateFactory implements StateFactory {
 	 */
 	@Override
 	public void delete(String agentId) {
+		StateRef ref = states.remove(agentId);
+		AbstractFileState<?> state = (ref != null) ? ref.get() : null;
+		if (state != null) {
+			state.discard();
+		}
 		File file = new File(getFilename(agentId));
 		if (file.exists()) {
 			file.delete();
 		}
-		states.remove(agentId);
+		if (manifest != null) {
+			manifest.remove(agentId);
+		}
 	}
 	
 	/**
@@ -192,64 +412,41 @@ public class FileStateFactory implements StateFactory {
 		Map<String, Object> data = new HashMap<String, Object>();
 		data.put("class", this.getClass().getName());
 		data.put("path", path);
+		data.put("write_back", writeBack);
+		data.put("mapped", mapped);
 		return data.toString();
 	}
 	
 	@Override
 	public Iterator<String> getAllAgentIds() {
-		File folder = new File(path);
-		File[] files = folder.listFiles();
-		if (files == null) {
-			files = new File[0];
+		if (manifest != null) {
+			return manifest.getAgentIds(json);
 		}
-		final List<File> list = new ArrayList<File>(files.length);
-		
-		if (files.length > 0) {
-			List<File> totalList = Arrays.asList(files);
-			for (File file : totalList) {
-				if (file.isFile() && file.canRead() && !file.isHidden()
-						&& file.length() > 2) {
-					try {
-						FileURLConnection conn = (FileURLConnection) file
-								.toURI().toURL().openConnection();
-						if (!json
-								&& conn.getContentType().endsWith(
-										"java-serialized-object")) {
-							list.add(file);
-						}
-						if (json && conn.getContentType().contains("json")) {
-							list.add(file);
-						}
-						conn.close();
-					} catch (Exception e) {
-						logger.warning("Couldn't check contentType of potential state file:"
-								+ file.getName());
-					} catch (java.lang.NoClassDefFoundError e) {
-						logger.warning("Couldn't check contentType of state file:"
-								+ file.getName()
-								+ " (On Android this is expected)");
-						list.add(file);
-					}
+		// fall back to the names in the folder, which may include agents of
+		// the other format
+		String[] names = new File(path).list();
+		List<String> ids = new ArrayList<String>();
+		if (names != null) {
+			for (String name : names) {
+				if (!name.startsWith(".")) {
+					ids.add(name);
 				}
 			}
 		}
-		return new Iterator<String>() {
-			private int	pivot	= 0;
-			
-			@Override
-			public boolean hasNext() {
-				return pivot < list.size();
-			}
-			
-			@Override
-			public String next() {
-				return (list.get(pivot++).getName());
-			}
-			
-			@Override
-			public void remove() {
-				list.remove(pivot);
-			}
-		};
+		return ids.iterator();
+	}
+	
+	/**
+	 * Weak reference to the state of an agent
+	 */
+	private static final class StateRef extends
+			WeakReference<AbstractFileState<?>> {
+		private final String	agentId;
+		
+		private StateRef(String agentId, AbstractFileState<?> state,
+				ReferenceQueue<AbstractFileState<?>> queue) {
+			super(state, queue);
+			this.agentId = agentId;
+		}
 	}
 }
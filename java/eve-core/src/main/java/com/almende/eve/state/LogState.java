@@ -0,0 +1,537 @@
+package com.almende.eve.state;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A persistent state which appends every change to a log, instead of
+ * rewriting all properties: a put costs the size of its value, not of the
+ * state. The properties are kept in memory and rebuilt from the log when
+ * the state is opened. The LogStateFactory compacts a log in the background
+ * once most of it is superseded records.
+ *
+ * The log starts with a magic number and a format version, followed by
+ * records of a length, a CRC32 checksum and a payload: the record type, the
+ * key, and for a put the value as UTF-8 JSON. A torn or corrupt record at
+ * the end, left by a crash, is cut off when the log is opened. Corrupt
+ * records followed by valid ones are skipped up to the next valid record,
+ * and dropped by the next compaction.
+ *
+ * Compaction writes the current values to a new log without blocking the
+ * state; changes made meanwhile are copied over before the logs are swapped.
+ *
+ * Values are stored as JSON, like in the ConcurrentJsonFileState. The log is
+ * locked while the state is open, so it can be used by a single process
+ * only. A destroyed state releases the log, and loads it again on its next
+ * change.
+ */
+public class LogState extends AbstractState<JsonNode> {
+	private static final Logger		LOG			= Logger.getLogger(LogState.class
+														.getCanonicalName());
+	/** "EVLG" */
+	static final int				MAGIC		= 0x45564C47;
+	static final int				VERSION		= 1;
+	static final int				HEADER		= 8;
+	private static final byte		PUT			= 1;
+	private static final byte		REMOVE		= 2;
+
+	private final File				file;
+	private final LogStateFactory	factory;
+	private final ObjectMapper		om			= JOM.getInstance();
+	private Map<String, JsonNode>	properties	= new HashMap<String, JsonNode>();
+	/** size of the record holding the current value of each key */
+	private Map<String, Integer>	sizes		= new HashMap<String, Integer>();
+	private long					length		= 0;
+	private long					live		= 0;
+	private boolean					compacting	= false;
+	/** keys changed while a compaction writes its snapshot, else null */
+	private Set<String>				changed		= null;
+	/** number of times the log was emptied */
+	private int						resets		= 0;
+	private boolean					closed		= false;
+	private final Object			compaction	= new Object();
+	private FileChannel				channel		= null;
+	private FileLock				lock		= null;
+
+	/**
+	 * Open the log of a state, creating an empty log when the file is empty
+	 *
+	 * @param agentId
+	 * @param file
+	 * @param factory
+	 *            decides when the log is compacted, may be null
+	 * @throws IOException
+	 */
+	public LogState(String agentId, File file, LogStateFactory factory)
+			throws IOException {
+		super(agentId);
+		this.file = file;
+		this.factory = factory;
+		try {
+			load();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Rebuild the properties from the log
+	 */
+	private void load() throws IOException {
+		properties.clear();
+		sizes.clear();
+		live = 0;
+		open();
+		long size = channel.size();
+		if (size < HEADER) {
+			// new, or its creation was interrupted
+			writeHeader();
+			return;
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("State log '" + file + "' is too large");
+		}
+		ByteBuffer log = ByteBuffer.allocate((int) size);
+		while (log.hasRemaining()) {
+			if (channel.read(log, log.position()) < 0) {
+				throw new IOException("State log '" + file + "' shrunk");
+			}
+		}
+		if (log.getInt(0) != MAGIC) {
+			throw new IOException("Not a state log: '" + file + "'");
+		}
+		int version = log.getInt(4);
+		if (version != VERSION) {
+			throw new IOException("Unsupported version " + version
+					+ " of state log '" + file + "'");
+		}
+		int offset = HEADER;
+		while (offset < size) {
+			int len = apply(log, offset);
+			if (len > 0) {
+				offset += len;
+				continue;
+			}
+			int next = offset + 1;
+			while (next < size && apply(log, next) <= 0) {
+				next++;
+			}
+			if (next >= size) {
+				break;
+			}
+			LOG.warning("Skipped " + (next - offset)
+					+ " bytes of corrupt records at offset " + offset
+					+ " of state log '" + file + "'");
+			offset = next;
+		}
+		if (offset < size) {
+			LOG.warning("Cutting off " + (size - offset)
+					+ " bytes of torn or corrupt records from state log '"
+					+ file + "'");
+			channel.truncate(offset);
+		}
+		length = offset;
+	}
+
+	/**
+	 * Apply the record at an offset of the log, if it is valid
+	 *
+	 * @return size of the record, or -1 when it is not valid
+	 */
+	private int apply(ByteBuffer log, int offset) {
+		int remaining = log.limit() - offset;
+		if (remaining < 8) {
+			return -1;
+		}
+		int len = log.getInt(offset);
+		if (len <= 0 || len > remaining - 8) {
+			return -1;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(log.array(), offset + 8, len);
+		if ((int) crc.getValue() != log.getInt(offset + 4)) {
+			return -1;
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				log.array(), offset + 8, len));
+		try {
+			byte type = in.readByte();
+			String key = in.readUTF();
+			if (type == PUT) {
+				JsonNode value = in.available() > 0 ? om.readTree(in) : null;
+				properties.put(key, value);
+			} else if (type == REMOVE) {
+				properties.remove(key);
+			} else {
+				return -1;
+			}
+			Integer old = sizes.remove(key);
+			if (old != null) {
+				live -= old;
+			}
+			if (type == PUT) {
+				sizes.put(key, 8 + len);
+				live += 8 + len;
+			}
+		} catch (IOException e) {
+			return -1;
+		}
+		return 8 + len;
+	}
+
+	private void open() throws IOException {
+		if (channel == null) {
+			@SuppressWarnings("resource")
+			FileChannel ch = new RandomAccessFile(file, "rw").getChannel();
+			FileLock fl = null;
+			try {
+				fl = ch.tryLock();
+			} catch (OverlappingFileLockException e) {
+				// opened by another state of this process
+			}
+			if (fl == null) {
+				ch.close();
+				throw new IllegalStateException("State log '" + file
+						+ "' is in use");
+			}
+			channel = ch;
+			lock = fl;
+		}
+	}
+
+	/**
+	 * Release the log. It is opened again on the next change.
+	 */
+	private void close() {
+		try {
+			if (lock != null && lock.isValid()) {
+				lock.release();
+			}
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+		lock = null;
+		channel = null;
+	}
+
+	/**
+	 * Open the log for a change. A destroyed state loads it again first, as
+	 * another state may have changed it meanwhile.
+	 */
+	private void reopen() throws IOException {
+		if (closed) {
+			load();
+			closed = false;
+			if (factory != null) {
+				factory.reopened(this);
+			}
+		} else {
+			open();
+		}
+	}
+
+	private void writeHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		channel.truncate(0);
+		channel.write(header, 0);
+		length = HEADER;
+		live = 0;
+		resets++;
+	}
+
+	/**
+	 * Create a framed record: length, checksum and payload
+	 */
+	private byte[] record(byte type, String key, JsonNode value)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0);
+		out.writeInt(0);
+		out.writeByte(type);
+		out.writeUTF(key);
+		if (value != null) {
+			out.write(om.writeValueAsBytes(value));
+		}
+		out.flush();
+		byte[] record = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(record, 8, record.length - 8);
+		ByteBuffer.wrap(record).putInt(record.length - 8)
+				.putInt((int) crc.getValue());
+		return record;
+	}
+
+	/**
+	 * Append a record to the log
+	 */
+	private void append(byte type, String key, JsonNode value)
+			throws IOException {
+		byte[] record = record(type, key, value);
+		reopen();
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		long position = length;
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		length = position;
+		if (changed != null) {
+			changed.add(key);
+		}
+
+		Integer old = sizes.remove(key);
+		if (old != null) {
+			live -= old;
+		}
+		if (type == PUT) {
+			sizes.put(key, record.length);
+			live += record.length;
+		}
+		if (factory != null && !compacting
+				&& factory.isCompactionDue(length, length - HEADER - live)) {
+			compacting = true;
+			factory.compact(this);
+		}
+	}
+
+	/**
+	 * Rewrite the log to hold only the current values. The new log is
+	 * written next to the old one from a snapshot of the values, and
+	 * replaces it when complete, together with the records appended
+	 * meanwhile. Does nothing when the state is destroyed.
+	 *
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		synchronized (compaction) {
+			Map<String, JsonNode> snapshot;
+			long from;
+			int reset;
+			synchronized (this) {
+				compacting = false;
+				if (closed || channel == null) {
+					return;
+				}
+				snapshot = new HashMap<String, JsonNode>(properties);
+				from = length;
+				reset = resets;
+				changed = new HashSet<String>();
+			}
+			File tmp = new File(file.getParentFile(), "." + file.getName()
+					+ ".compact");
+			try {
+				Map<String, Integer> newSizes = new HashMap<String, Integer>();
+				long size = writeSnapshot(tmp, snapshot, newSizes);
+				synchronized (this) {
+					if (closed || channel == null || reset != resets) {
+						// destroyed or cleared meanwhile
+						return;
+					}
+					long before = length;
+					long tail = length - from;
+					appendTail(tmp, from, tail);
+					close();
+					if (!tmp.renameTo(file)) {
+						// some platforms do not replace an existing file
+						file.delete();
+						if (!tmp.renameTo(file)) {
+							throw new IOException("Failed to replace state log '"
+									+ file + "' by its compacted version");
+						}
+					}
+					open();
+					// the records of keys changed meanwhile were copied as is
+					live = 0;
+					for (Map.Entry<String, Integer> entry : sizes.entrySet()) {
+						Integer newSize = changed.contains(entry.getKey()) ? entry
+								.getValue() : newSizes.get(entry.getKey());
+						entry.setValue(newSize);
+						live += newSize;
+					}
+					length = size + tail;
+					LOG.fine("Compacted state log '" + file + "' from " + before
+							+ " to " + length + " bytes");
+				}
+			} finally {
+				synchronized (this) {
+					changed = null;
+				}
+				if (tmp.exists()) {
+					tmp.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a new log holding the given values
+	 *
+	 * @return length of the new log
+	 */
+	private long writeSnapshot(File tmp, Map<String, JsonNode> snapshot,
+			Map<String, Integer> newSizes) throws IOException {
+		FileOutputStream fos = new FileOutputStream(tmp);
+		long size = HEADER;
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(fos));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			for (Map.Entry<String, JsonNode> entry : snapshot.entrySet()) {
+				byte[] record = record(PUT, entry.getKey(), entry.getValue());
+				out.write(record);
+				newSizes.put(entry.getKey(), record.length);
+				size += record.length;
+			}
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		return size;
+	}
+
+	/**
+	 * Copy the records appended to the log since a compaction started to
+	 * the new log
+	 */
+	private void appendTail(File tmp, long from, long tail) throws IOException {
+		FileOutputStream fos = new FileOutputStream(tmp, true);
+		try {
+			FileChannel out = fos.getChannel();
+			long position = from;
+			while (position < from + tail) {
+				position += channel.transferTo(position, from + tail - position,
+						out);
+			}
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * Release the log, used when the state is deleted
+	 */
+	synchronized void discard() {
+		close();
+		closed = true;
+		properties.clear();
+		sizes.clear();
+	}
+
+	@Override
+	public void init() {
+	}
+
+	/**
+	 * destroy is executed when the agent is unloaded, the log is released
+	 * until the next change
+	 */
+	@Override
+	public synchronized void destroy() {
+		close();
+		closed = true;
+		if (factory != null) {
+			factory.release(this);
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		try {
+			reopen();
+			writeHeader();
+			properties.clear();
+			sizes.clear();
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+		}
+	}
+
+	@Override
+	public synchronized Set<String> keySet() {
+		return Collections.unmodifiableSet(new HashSet<String>(properties
+				.keySet()));
+	}
+
+	@Override
+	public synchronized boolean containsKey(String key) {
+		return properties.containsKey(key);
+	}
+
+	@Override
+	public synchronized JsonNode get(String key) {
+		return properties.get(key);
+	}
+
+	@Override
+	public synchronized JsonNode locPut(String key, JsonNode value) {
+		try {
+			append(PUT, key, value);
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+			return null;
+		}
+		return properties.put(key, value);
+	}
+
+	@Override
+	public synchronized boolean locPutIfUnchanged(String key, JsonNode newVal,
+			JsonNode oldVal) {
+		JsonNode current = properties.get(key);
+		if (!(oldVal == null && properties.containsKey(key) && current != null)
+				|| (current != null && current.equals(oldVal))) {
+			locPut(key, newVal);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized Object remove(String key) {
+		if (!properties.containsKey(key)) {
+			return null;
+		}
+		try {
+			append(REMOVE, key, null);
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "", e);
+			return null;
+		}
+		return properties.remove(key);
+	}
+
+	@Override
+	public synchronized int size() {
+		return properties.size();
+	}
+}
@@ -0,0 +1,289 @@
+package com.almende.eve.state;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the state of every agent in an append-only log, see LogState.
+ * Logs are compacted in the background once the superseded records exceed
+ * compaction_ratio (default 0.5) of a log larger than compaction_min_size
+ * bytes (default 64 KB). The states are kept while their agents are loaded.
+ * A destroyed state releases its log, but is held weakly until it is
+ * collected: while an instance is around it is the only state of its agent,
+ * and opens its log again when used.
+ * 
+ * Configuration:
+ * 
+ * state:
+ *   class: LogStateFactory
+ *   path: .eveagents
+ *   compaction_ratio: 0.5
+ *   compaction_min_size: 65536
+ */
+public class LogStateFactory implements StateFactory {
+	private static final Logger					LOG					= Logger.getLogger(LogStateFactory.class
+																			.getCanonicalName());
+	public static final double					DEFAULT_RATIO		= 0.5;
+	public static final long					DEFAULT_MIN_SIZE	= 64 * 1024;
+	
+	private String								path				= null;
+	private double								ratio				= DEFAULT_RATIO;
+	private long								minSize				= DEFAULT_MIN_SIZE;
+	private ConcurrentHashMap<String, LogState>	states				= new ConcurrentHashMap<String, LogState>();
+	/** destroyed states, by agent id */
+	private Map<String, StateRef>				released			= new HashMap<String, StateRef>();
+	private ReferenceQueue<LogState>			queue				= new ReferenceQueue<LogState>();
+	private ExecutorService						compactor			= Executors
+																			.newSingleThreadExecutor(new CompactorThreadFactory());
+	
+	/**
+	 * This constructor is called when constructed by the AgentHost
+	 * 
+	 * @param params
+	 */
+	public LogStateFactory(Map<String, Object> params) {
+		if (params == null) {
+			params = new HashMap<String, Object>();
+		}
+		if (params.containsKey("compaction_ratio")) {
+			ratio = ((Number) params.get("compaction_ratio")).doubleValue();
+		}
+		if (params.containsKey("compaction_min_size")) {
+			minSize = ((Number) params.get("compaction_min_size")).longValue();
+		}
+		setPath((String) params.get("path"));
+	}
+	
+	public LogStateFactory(String path) {
+		setPath(path);
+	}
+	
+	/**
+	 * @param path
+	 * @param ratio
+	 *            of superseded records above which a log is compacted
+	 * @param minSize
+	 *            in bytes below which a log is not compacted
+	 */
+	public LogStateFactory(String path, double ratio, long minSize) {
+		this.ratio = ratio;
+		this.minSize = minSize;
+		setPath(path);
+	}
+	
+	private void setPath(String path) {
+		if (path == null) {
+			path = ".eveagents";
+			LOG.warning("Config parameter 'state.path' missing in Eve "
+					+ "configuration. Using the default path '" + path + "'");
+		}
+		if (!path.endsWith("/")) {
+			path += "/";
+		}
+		this.path = path;
+		
+		File folder = new File(path);
+		if (!folder.exists() && !folder.mkdirs()) {
+			LOG.severe("Could not create State folder!");
+			throw new IllegalStateException();
+		}
+	}
+	
+	/**
+	 * Check whether a log should be compacted
+	 * 
+	 * @param length
+	 *            of the log
+	 * @param garbage
+	 *            bytes of superseded records
+	 * @return due
+	 */
+	boolean isCompactionDue(long length, long garbage) {
+		return length >= minSize && garbage > ratio * length;
+	}
+	
+	/**
+	 * Compact a log in the background
+	 * 
+	 * @param state
+	 */
+	void compact(final LogState state) {
+		compactor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					state.compact();
+				} catch (IOException e) {
+					LOG.log(Level.WARNING, "Failed to compact the state log of '"
+							+ state.getAgentId() + "'", e);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Hold a destroyed state weakly, its log is opened again when needed
+	 * 
+	 * @param state
+	 */
+	synchronized void release(LogState state) {
+		purge();
+		if (states.remove(state.getAgentId(), state)) {
+			released.put(state.getAgentId(), new StateRef(state, queue));
+		}
+	}
+	
+	/**
+	 * Keep a destroyed state which opened its log again
+	 * 
+	 * @param state
+	 */
+	synchronized void reopened(LogState state) {
+		StateRef ref = released.get(state.getAgentId());
+		if (ref != null && ref.get() == state) {
+			released.remove(state.getAgentId());
+		}
+		states.putIfAbsent(state.getAgentId(), state);
+	}
+	
+	@Override
+	public State get(String agentId) {
+		LogState state = states.get(agentId);
+		if (state == null) {
+			state = open(agentId);
+		}
+		return state;
+	}
+	
+	/**
+	 * Open a log once: a log is locked by the state which opened it, and a
+	 * destroyed state which is still around is returned instead
+	 */
+	private synchronized LogState open(String agentId) {
+		purge();
+		LogState state = states.get(agentId);
+		if (state == null) {
+			StateRef ref = released.get(agentId);
+			state = (ref != null) ? ref.get() : null;
+		}
+		if (state == null && exists(agentId)) {
+			try {
+				state = new LogState(agentId, getFile(agentId), this);
+			} catch (IOException e) {
+				throw new IllegalStateException(
+						"Failed to open the state log of '" + agentId + "'", e);
+			}
+			states.put(agentId, state);
+		}
+		return state;
+	}
+	
+	/**
+	 * Forget the destroyed states which were collected
+	 */
+	private void purge() {
+		Reference<?> ref;
+		while ((ref = queue.poll()) != null) {
+			StateRef stateRef = (StateRef) ref;
+			if (released.get(stateRef.agentId) == stateRef) {
+				released.remove(stateRef.agentId);
+			}
+		}
+	}
+	
+	@Override
+	public synchronized State create(String agentId) throws IOException {
+		if (exists(agentId)) {
+			throw new IllegalStateException("Cannot create state, "
+					+ "state with id '" + agentId + "' already exists.");
+		}
+		LogState state = new LogState(agentId, getFile(agentId), this);
+		states.put(agentId, state);
+		return state;
+	}
+	
+	@Override
+	public void delete(String agentId) {
+		LogState state = states.remove(agentId);
+		if (state != null) {
+			state.discard();
+		}
+		synchronized (this) {
+			StateRef ref = released.remove(agentId);
+			state = (ref != null) ? ref.get() : null;
+		}
+		if (state != null) {
+			state.discard();
+		}
+		File file = getFile(agentId);
+		if (file.exists()) {
+			file.delete();
+		}
+	}
+	
+	@Override
+	public boolean exists(String agentId) {
+		return states.containsKey(agentId) || getFile(agentId).exists();
+	}
+	
+	private File getFile(String agentId) {
+		return new File(path + agentId);
+	}
+	
+	@Override
+	public Iterator<String> getAllAgentIds() {
+		File[] files = new File(path).listFiles();
+		List<String> ids = new ArrayList<String>();
+		if (files != null) {
+			for (File file : files) {
+				// skips logs being compacted
+				if (file.isFile() && !file.getName().startsWith(".")) {
+					ids.add(file.getName());
+				}
+			}
+		}
+		return ids.iterator();
+	}
+	
+	@Override
+	public String toString() {
+		Map<String, Object> data = new HashMap<String, Object>();
+		data.put("class", this.getClass().getName());
+		data.put("path", path);
+		data.put("compaction_ratio", ratio);
+		data.put("compaction_min_size", minSize);
+		return data.toString();
+	}
+	
+	private static final class StateRef extends WeakReference<LogState> {
+		private final String	agentId;
+		
+		private StateRef(LogState state, ReferenceQueue<LogState> queue) {
+			super(state, queue);
+			this.agentId = state.getAgentId();
+		}
+	}
+	
+	private static class CompactorThreadFactory implements ThreadFactory {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "eve-state-compactor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package com.almende.eve.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Future result of an asynchronous call. An AsyncFuture is an AsyncCallback
+ * as well: the first call to onSuccess or onFailure completes it, later
+ * calls are ignored.
+ *
+ * Next to blocking (with or without timeout) on the result, callbacks can be
+ * attached with {@link #addCallback(AsyncCallback)}, and the future can be
+ * failed automatically after a timeout with {@link #setTimeout(long)}.
+ *
+ * @param <T>
+ */
+public class AsyncFuture<T> implements Future<T>, AsyncCallback<T> {
+	private static final Logger			LOG			= Logger.getLogger(AsyncFuture.class
+															.getCanonicalName());
+	private static final Timer			TIMER		= new Timer(
+															"AsyncFuture timeout",
+															true);
+
+	private T							result		= null;
+	private Exception					exception	= null;
+	private boolean						done		= false;
+	private boolean						cancelled	= false;
+	private TimerTask					timeout		= null;
+	private List<AsyncCallback<T>>		callbacks	= null;
+
+	@Override
+	public void onSuccess(T result) {
+		complete(result, null, false);
+	}
+
+	@Override
+	public void onFailure(Exception exception) {
+		complete(null, exception, false);
+	}
+
+	/**
+	 * Cancel the call. The result of the call, if it still arrives, is
+	 * ignored. Calls which are already being executed by the receiver are
+	 * not interrupted.
+	 *
+	 * @param mayInterruptIfRunning
+	 *            ignored
+	 * @return cancelled true if the future was not yet completed
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return complete(null, new CancellationException("Call cancelled"),
+				true);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Fail this future with a TimeoutException if it is not completed within
+	 * the given time.
+	 *
+	 * @param millis
+	 *            timeout in milliseconds
+	 * @return this
+	 */
+	public AsyncFuture<T> setTimeout(final long millis) {
+		TimerTask task = new TimerTask() {
+			@Override
+			public void run() {
+				onFailure(new TimeoutException("No result within " + millis
+						+ " ms"));
+			}
+		};
+		synchronized (this) {
+			if (done) {
+				return this;
+			}
+			if (timeout != null) {
+				timeout.cancel();
+			}
+			timeout = task;
+		}
+		TIMER.schedule(task, millis);
+		return this;
+	}
+
+	/**
+	 * Add a callback which is invoked on completion of this future. If the
+	 * future is already completed, the callback is invoked immediately.
+	 *
+	 * @param callback
+	 * @return this
+	 */
+	public AsyncFuture<T> addCallback(AsyncCallback<T> callback) {
+		synchronized (this) {
+			if (!done) {
+				if (callbacks == null) {
+					callbacks = new ArrayList<AsyncCallback<T>>(1);
+				}
+				callbacks.add(callback);
+				return this;
+			}
+		}
+		invoke(callback);
+		return this;
+	}
+
+	/**
+	 * Wait for the result.
+	 *
+	 * @return result
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 *             when the call failed, the cause is the actual error.
+	 * @throws CancellationException
+	 *             when the call was cancelled
+	 */
+	@Override
+	public synchronized T get() throws InterruptedException,
+			ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return getResult();
+	}
+
+	/**
+	 * Wait for the result, at most for the given time.
+	 *
+	 * @param timeout
+	 * @param unit
+	 * @return result
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 *             when the call failed, the cause is the actual error.
+	 * @throws TimeoutException
+	 *             when no result is available in time. The call itself is
+	 *             not cancelled.
+	 */
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			long remaining = end - System.nanoTime();
+			if (remaining <= 0) {
+				throw new TimeoutException("No result within " + timeout
+						+ " " + unit.toString().toLowerCase());
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+
+	private T getResult() throws ExecutionException {
+		if (cancelled) {
+			throw (CancellationException) exception;
+		}
+		if (exception != null) {
+			throw new ExecutionException(exception);
+		}
+		return result;
+	}
+
+	private boolean complete(T result, Exception exception, boolean cancel) {
+		List<AsyncCallback<T>> toNotify;
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.result = result;
+			this.exception = exception;
+			this.cancelled = cancel;
+			this.done = true;
+			if (timeout != null) {
+				timeout.cancel();
+				timeout = null;
+			}
+			toNotify = callbacks;
+			callbacks = null;
+			notifyAll();
+		}
+		if (toNotify != null) {
+			for (AsyncCallback<T> callback : toNotify) {
+				invoke(callback);
+			}
+		}
+		return true;
+	}
+
+	private void invoke(AsyncCallback<T> callback) {
+		try {
+			if (exception != null) {
+				callback.onFailure(exception);
+			} else {
+				callback.onSuccess(result);
+			}
+		} catch (Exception e) {
+			LOG.log(Level.WARNING, "AsyncFuture callback failed", e);
+		}
+	}
+}
@@ -29,7 +29,7 @@ public interface TransportService {
 	 * Send a message to an other agent
 	 * 
 	 * @param senderId
-	 * @oaran receiverUrl
+	 * @param receiver
 	 * @param request
 	 * @response response
 	 */
@@ -40,7 +40,7 @@ public interface TransportService {
 	 * Asynchronously Send a message to an other agent
 	 * 
 	 * @param senderId
-	 * @oaran receiverUrl
+	 * @param receiver
 	 * @param request
 	 * @param callback
 	 *            with a JSONResponse
@@ -49,6 +49,40 @@ public interface TransportService {
 			final JSONRequest request,
 			final AsyncCallback<JSONResponse> callback) throws JSONRPCException;
 	
+	/**
+	 * Asynchronously Send a message to an other agent
+	 * 
+	 * @param senderId
+	 * @param receiver
+	 * @param request
+	 * @return future JSONResponse
+	 */
+	AsyncFuture<JSONResponse> sendAsync(final String senderId,
+			final String receiver, final JSONRequest request)
+			throws JSONRPCException;
+	
+	/**
+	 * Send a notification to an other agent. A notification is a request
+	 * without id: no response is expected, and none will be waited for.
+	 * 
+	 * @param senderId
+	 * @param receiver
+	 * @param request
+	 */
+	void sendNotification(final String senderId, final String receiver,
+			final JSONRequest request) throws JSONRPCException;
+	
+	/**
+	 * Send a JSON-RPC 2.0 batch of requests to an other agent
+	 * 
+	 * @param senderId
+	 * @param receiver
+	 * @param requests
+	 * @return responses, in the same order as the requests
+	 */
+	List<JSONResponse> sendBatch(final String senderId, final String receiver,
+			final List<JSONRequest> requests) throws JSONRPCException;
+	
 	/**
 	 * Get the protocols supported by this service
 	 * 
@@ -2,6 +2,8 @@ package com.almende.eve.transport.http;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -21,13 +23,16 @@ import com.almende.eve.agent.log.Log;
 import com.almende.eve.config.Config;
 import com.almende.eve.rpc.RequestParams;
 import com.almende.eve.rpc.annotation.Sender;
+import com.almende.eve.rpc.jsonrpc.Description;
 import com.almende.eve.rpc.jsonrpc.JSONRPC;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.util.StreamingUtil;
-import com.almende.util.StringUtil;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 @SuppressWarnings("serial")
@@ -38,6 +43,7 @@ public class AgentServlet extends HttpServlet {
 	private static final String	RESOURCES	= "/com/almende/eve/resources/";
 	private static AgentHost	agentHost;
 	private static HttpService	httpTransport;
+	private static int			compressionThreshold	= Compression.DEFAULT_THRESHOLD;
 	
 	@Override
 	public void init() {
@@ -63,6 +69,13 @@ public class AgentServlet extends HttpServlet {
 		}
 		httpTransport = new HttpService(servletUrl);
 		agentHost.addTransportService(httpTransport);
+		
+		// replies larger than this are compressed for clients accepting it,
+		// a negative threshold disables compression
+		String threshold = getInitParameter("compression_threshold");
+		if (threshold != null) {
+			compressionThreshold = Integer.parseInt(threshold);
+		}
 	}
 	
 	enum Handshake {
@@ -236,8 +249,42 @@ public class AgentServlet extends HttpServlet {
 			try {
 				List<Log> logs = agentHost.getEventLogger().getLogs(agentId,
 						since);
-				resp.addHeader("Content-type", "application/json");
-				JOM.getInstance().writer().writeValue(resp.getWriter(), logs);
+				resp.setContentType(JsonEntity.CONTENT_TYPE);
+				JOM.getInstance().writeValue(resp.getOutputStream(), logs);
+			} catch (Exception e) {
+				LOG.log(Level.WARNING, "", e);
+				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+						e.getMessage());
+			}
+		} else if (resource.equals("methods")) {
+			// the description of the agents methods, revalidated by clients
+			// via its ETag
+			try {
+				Agent agent = agentHost.getAgent(agentId);
+				if (agent == null) {
+					// deleted meanwhile
+					resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+							"Agent with id '" + agentId + "' not found.");
+					return;
+				}
+				Description description = agentHost.getDescription(agent);
+				if (description == null) {
+					resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+							"Failed to describe agent.");
+					return;
+				}
+				resp.setHeader("ETag", description.getETag());
+				resp.setHeader("Cache-Control", "no-cache");
+				String ifNoneMatch = req.getHeader("If-None-Match");
+				if (ifNoneMatch != null
+						&& (ifNoneMatch.contains(description.getETag()) || ifNoneMatch
+								.trim().equals("*"))) {
+					resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return;
+				}
+				resp.setContentType(JsonEntity.CONTENT_TYPE);
+				JOM.getInstance().writeValue(resp.getOutputStream(),
+						description.getMethods());
 			} catch (Exception e) {
 				LOG.log(Level.WARNING, "", e);
 				resp.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
@@ -266,13 +313,41 @@ public class AgentServlet extends HttpServlet {
 			throws IOException {
 		JSONRequest jsonRequest = null;
 		JSONResponse jsonResponse = null;
-		String body = null;
+		ArrayNode batch = null;
+		ArrayNode batchResponse = null;
 		String agentUrl = null;
 		String agentId = null;
 		try {
-			// retrieve the agent url and the request body
-			body = StringUtil.streamToString(req.getInputStream());
-			jsonRequest = new JSONRequest(body);
+			if (compressionThreshold >= 0) {
+				// announce the codings accepted in requests
+				resp.setHeader("Accept-Encoding", Compression.ACCEPT_ENCODING);
+			}
+			if (!Compression.isSupported(req.getHeader("Content-Encoding"))) {
+				resp.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+						"Content encoding not supported by this host.");
+				return;
+			}
+			
+			// parse the request body while it streams in
+			String contentType = req.getContentType();
+			if (contentType != null
+					&& contentType.startsWith(JOM.BINARY_CONTENT_TYPE)
+					&& JOM.getBinaryInstance() == null) {
+				resp.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+						"Binary encoding not supported by this host.");
+				return;
+			}
+			JsonNode node = readBody(req);
+			if (node != null && node.isArray()) {
+				// JSON-RPC 2.0 batch
+				batch = (ArrayNode) node;
+			} else if (node != null && node.isObject()) {
+				jsonRequest = new JSONRequest((ObjectNode) node);
+			} else {
+				throw new JSONRPCException(
+						JSONRPCException.CODE.INVALID_REQUEST,
+						"Request is no ObjectNode");
+			}
 			
 			agentUrl = req.getRequestURI();
 			agentId = httpTransport.getAgentId(agentUrl);
@@ -305,8 +380,19 @@ public class AgentServlet extends HttpServlet {
 			requestParams.put(Sender.class, senderUrl);
 			
 			// invoke the agent
-			jsonResponse = agentHost.receive(agentId, jsonRequest,
-					requestParams);
+			if (batch != null) {
+				batchResponse = agentHost.receive(agentId, batch,
+						requestParams);
+			} else if (jsonRequest.isNotification()) {
+				// notification: handled asynchronously, nothing to reply
+				agentHost.receiveNotification(agentId, jsonRequest,
+						requestParams);
+				resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+				return;
+			} else {
+				jsonResponse = agentHost.receive(agentId, jsonRequest,
+						requestParams);
+			}
 		} catch (Exception err) {
 			// generate JSON error response
 			LOG.log(Level.WARNING, "", err);
@@ -321,10 +407,73 @@ public class AgentServlet extends HttpServlet {
 			jsonResponse = new JSONResponse(jsonError);
 		}
 		
-		// return response
-		resp.addHeader("Content-Type", "application/json");
-		resp.getWriter().println(jsonResponse.toString());
-		resp.getWriter().close();
+		if (batchResponse != null && batchResponse.size() == 0) {
+			// batch of notifications only
+			resp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+			return;
+		}
+		
+		// return response, streamed into the connection. Eve hosts which
+		// accept the binary encoding get it, others (browsers) get JSON.
+		ObjectMapper mapper = JOM.getInstance();
+		String accept = req.getHeader("Accept");
+		if (accept != null && accept.contains(JOM.BINARY_CONTENT_TYPE)
+				&& JOM.getBinaryInstance() != null) {
+			mapper = JOM.getBinaryInstance();
+			resp.setContentType(JOM.BINARY_CONTENT_TYPE);
+		} else {
+			resp.setContentType(JsonEntity.CONTENT_TYPE);
+		}
+		OutputStream out = createOutputStream(req, resp);
+		JsonEntity.write(out, batchResponse != null ? batchResponse
+				: jsonResponse.getObjectNode(), mapper);
+		out.close();
+	}
+	
+	/**
+	 * Get the stream to write a response to: compressed once the response
+	 * exceeds the threshold, when the client accepts gzip or deflate.
+	 */
+	private static OutputStream createOutputStream(HttpServletRequest req,
+			final HttpServletResponse resp) throws IOException {
+		final String coding = (compressionThreshold >= 0) ? Compression
+				.select(req.getHeader("Accept-Encoding")) : null;
+		if (coding == null) {
+			return resp.getOutputStream();
+		}
+		resp.addHeader("Vary", "Accept-Encoding");
+		return new Compression.ThresholdOutputStream(compressionThreshold) {
+			@Override
+			protected OutputStream open(boolean compress) throws IOException {
+				if (compress) {
+					resp.setHeader("Content-Encoding", coding);
+					return Compression.encode(resp.getOutputStream(), coding);
+				}
+				return resp.getOutputStream();
+			}
+		};
+	}
+	
+	/**
+	 * Parse the body of a request, decompressed as given by its content
+	 * encoding. A binary body is parsed with the binary mapper. UTF-8 JSON
+	 * (the default) is parsed directly from the byte stream, other declared
+	 * encodings through a reader.
+	 */
+	private static JsonNode readBody(HttpServletRequest req)
+			throws IOException {
+		InputStream in = Compression.decode(req.getInputStream(),
+				req.getHeader("Content-Encoding"));
+		String contentType = req.getContentType();
+		if (contentType != null
+				&& contentType.startsWith(JOM.BINARY_CONTENT_TYPE)) {
+			return JOM.getBinaryInstance().readTree(in);
+		}
+		String encoding = req.getCharacterEncoding();
+		if (encoding == null || "UTF-8".equalsIgnoreCase(encoding)) {
+			return JOM.getInstance().readTree(in);
+		}
+		return JOM.getInstance().readTree(new InputStreamReader(in, encoding));
 	}
 	
 	/**
@@ -429,6 +578,15 @@ public class AgentServlet extends HttpServlet {
 				+ "\n"
 				+
 				
+				"GET "
+				+ servletUrl
+				+ "{agentId}/methods\n"
+				+ "\n"
+				+ "    Returns the description of the agents methods, with an ETag\n"
+				+ "    to revalidate it (If-None-Match).\n"
+				+ "\n"
+				+
+				
 				"POST "
 				+ servletUrl
 				+ "{agentId}\n"
@@ -0,0 +1,199 @@
+package com.almende.eve.transport.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * gzip and deflate content codings of the bodies exchanged between Eve
+ * hosts, negotiated via the Accept-Encoding and Content-Encoding headers.
+ * Only bodies larger than a threshold are compressed: for small messages
+ * the CPU time is not worth the few bytes saved.
+ */
+final class Compression {
+	static final String	GZIP				= "gzip";
+	static final String	DEFLATE				= "deflate";
+	static final String	ACCEPT_ENCODING		= GZIP + ", " + DEFLATE;
+	/** Default threshold in bytes, a negative threshold disables compression */
+	static final int	DEFAULT_THRESHOLD	= 1024;
+
+	private Compression() {
+	}
+
+	/**
+	 * Select the coding to use for a peer, gzip preferred over deflate
+	 *
+	 * @param acceptEncoding
+	 *            Accept-Encoding header of the peer, may be null
+	 * @return coding, or null when the peer accepts neither
+	 */
+	static String select(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return null;
+		}
+		if (accepts(acceptEncoding, GZIP)) {
+			return GZIP;
+		}
+		if (accepts(acceptEncoding, DEFLATE)) {
+			return DEFLATE;
+		}
+		return null;
+	}
+
+	private static boolean accepts(String acceptEncoding, String coding) {
+		for (String part : acceptEncoding.split(",")) {
+			String[] params = part.split(";");
+			if (params[0].trim().equalsIgnoreCase(coding)) {
+				for (int i = 1; i < params.length; i++) {
+					String param = params[i].trim();
+					if (param.startsWith("q=")) {
+						try {
+							return Float.parseFloat(param.substring(2)) > 0;
+						} catch (NumberFormatException e) {
+							return false;
+						}
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether a Content-Encoding can be decoded
+	 *
+	 * @param contentEncoding
+	 *            may be null
+	 * @return supported
+	 */
+	static boolean isSupported(String contentEncoding) {
+		return contentEncoding == null
+				|| contentEncoding.equalsIgnoreCase("identity")
+				|| contentEncoding.equalsIgnoreCase(GZIP)
+				|| contentEncoding.equalsIgnoreCase(DEFLATE);
+	}
+
+	/**
+	 * Wrap a stream to decode a body of the given Content-Encoding
+	 *
+	 * @param in
+	 * @param contentEncoding
+	 *            may be null
+	 * @return decoded stream
+	 * @throws IOException
+	 */
+	static InputStream decode(InputStream in, String contentEncoding)
+			throws IOException {
+		if (contentEncoding == null
+				|| contentEncoding.equalsIgnoreCase("identity")) {
+			return in;
+		}
+		if (contentEncoding.equalsIgnoreCase(GZIP)) {
+			return new GZIPInputStream(in);
+		}
+		if (contentEncoding.equalsIgnoreCase(DEFLATE)) {
+			return new InflaterInputStream(in);
+		}
+		throw new IOException("Unsupported content encoding '"
+				+ contentEncoding + "'");
+	}
+
+	/**
+	 * Wrap a stream to encode a body in the given coding
+	 *
+	 * @param out
+	 * @param coding
+	 *            gzip or deflate
+	 * @return encoding stream
+	 * @throws IOException
+	 */
+	static OutputStream encode(OutputStream out, String coding)
+			throws IOException {
+		if (coding.equalsIgnoreCase(GZIP)) {
+			return new GZIPOutputStream(out);
+		}
+		return new DeflaterOutputStream(out);
+	}
+
+	/**
+	 * Stream which holds back the first bytes of a body up to the threshold.
+	 * A body which stays below it is written uncompressed on close, a larger
+	 * one is written through a compressing stream from the moment it
+	 * exceeds the threshold. Headers can be set in open().
+	 */
+	abstract static class ThresholdOutputStream extends OutputStream {
+		private final int		threshold;
+		private byte[]			buffer;
+		private int				count		= 0;
+		private OutputStream	target		= null;
+		private boolean			compressed	= false;
+
+		ThresholdOutputStream(int threshold) {
+			this.threshold = threshold;
+			this.buffer = new byte[threshold];
+		}
+
+		/**
+		 * Open the stream the body is written to
+		 *
+		 * @param compress
+		 *            whether the body exceeded the threshold
+		 * @return target stream
+		 * @throws IOException
+		 */
+		protected abstract OutputStream open(boolean compress)
+				throws IOException;
+
+		boolean isCompressed() {
+			return compressed;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (target == null && count < threshold) {
+				buffer[count++] = (byte) b;
+			} else {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (target == null) {
+				if (count + len <= threshold) {
+					System.arraycopy(b, off, buffer, count, len);
+					count += len;
+					return;
+				}
+				compressed = true;
+				target = open(true);
+				target.write(buffer, 0, count);
+				buffer = null;
+			}
+			target.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			// a buffered body is held back until the decision is made
+			if (target != null) {
+				target.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (target == null) {
+				target = open(false);
+				target.write(buffer, 0, count);
+				buffer = null;
+			}
+			target.close();
+		}
+	}
+}
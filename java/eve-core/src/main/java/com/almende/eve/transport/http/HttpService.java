@@ -1,33 +1,57 @@
 package com.almende.eve.transport.http;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.util.EntityUtils;
 
 import com.almende.eve.agent.AgentHost;
 import com.almende.eve.config.Config;
+import com.almende.eve.rpc.jsonrpc.JSONRPC;
 import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncFuture;
 import com.almende.eve.transport.TransportService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class HttpService implements TransportService {
 	private static final Logger	LOG			= Logger.getLogger(HttpService.class
 													.getCanonicalName());
+	private static final String	ACCEPT		= JOM.BINARY_CONTENT_TYPE
+													+ ", application/json";
+	/** Domains of the peers which replied in the binary encoding */
+	private static final Set<String>	BINARY_PEERS	= Collections
+														.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/** Domains of the peers which accept compressed requests, with their coding */
+	private static final Map<String, String>	COMPRESSING_PEERS	= new ConcurrentHashMap<String, String>();
 	private String				servletUrl	= null;
 	private List<String>		protocols	= Arrays.asList("http", "https");
+	private boolean				binary		= true;
+	private int					compressionThreshold	= Compression.DEFAULT_THRESHOLD;
 	
 	public HttpService() {
 	}
@@ -38,14 +62,46 @@ public class HttpService implements TransportService {
 	 * 
 	 * @param agentHost
 	 * @param params
-	 *            Available parameters: {String} servlet_url
+	 *            Available parameters: {String} servlet_url, {Boolean}
+	 *            binary, {Integer} compression_threshold
 	 */
 	public HttpService(AgentHost agentHost, Map<String, Object> params) {
 		if (params != null) {
 			setServletUrl((String) params.get("servlet_url"));
+			if (params.get("binary") != null) {
+				setBinary((Boolean) params.get("binary"));
+			}
+			if (params.get("compression_threshold") != null) {
+				setCompressionThreshold((Integer) params
+						.get("compression_threshold"));
+			}
 		}
 	}
 	
+	/**
+	 * Enable or disable the binary encoding. When enabled (the default) and
+	 * Smile is available, requests ask for a binary reply. Peers which
+	 * reply in binary are sent binary requests from then on; other peers,
+	 * like older Eve versions, keep getting plain JSON.
+	 * 
+	 * @param binary
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary;
+	}
+	
+	/**
+	 * Set the size in bytes above which bodies are compressed. Requests ask
+	 * for a compressed reply; peers which announce to accept compressed
+	 * requests get requests larger than the threshold gzip or deflate
+	 * compressed. A negative threshold disables compression.
+	 * 
+	 * @param compressionThreshold
+	 */
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+	
 	/**
 	 * Construct an HttpService from a config The config can contain parameters:
 	 * environment.Production.servlet_url environment.Development.servlet_url
@@ -124,21 +180,16 @@ public class HttpService implements TransportService {
 			final JSONRequest request) throws JSONRPCException {
 		try {
 			JSONResponse response;
-			String req = request.toString();
 			
 			// invoke via Apache HttpClient request:
-			HttpPost httpPost = new HttpPost(receiverUrl);
-			httpPost.setEntity(new StringEntity(req));
-			
-			// Add token for HTTP handshake
-			httpPost.addHeader("X-Eve-Token", TokenStore.create().toString());
-			httpPost.addHeader("X-Eve-SenderUrl", senderUrl);
-			
-			HttpResponse webResp = ApacheHttpClient.get().execute(httpPost);
+			HttpPost httpPost = createPost(senderUrl, receiverUrl);
+			HttpResponse webResp = execute(httpPost, receiverUrl,
+					request.getObjectNode());
 			try {
-				String result = EntityUtils.toString(webResp.getEntity());
-				if (result != null) {
-					response = new JSONResponse(result);
+				HttpEntity entity = webResp.getEntity();
+				if (entity != null) {
+					response = new JSONResponse(read(receiverUrl, entity,
+							ObjectNode.class));
 				} else {
 					response = new JSONResponse();
 				}
@@ -154,6 +205,181 @@ public class HttpService implements TransportService {
 		}
 	}
 	
+	/**
+	 * Send a JSON-RPC notification to an agent via HTTP. The POST is done on
+	 * the executor of the host, so the caller does not wait for the round
+	 * trip. The receiving servlet replies immediately with "204 No Content",
+	 * the response body is not read; failures are logged.
+	 * 
+	 * @param senderUrl
+	 * @param receiverUrl
+	 * @param request
+	 * @throws JSONRPCException
+	 *             when the executor rejects the notification
+	 */
+	@Override
+	public void sendNotification(final String senderUrl,
+			final String receiverUrl, final JSONRequest request)
+			throws JSONRPCException {
+		try {
+			AgentHost.getInstance().getExecutorService()
+					.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								postNotification(senderUrl, receiverUrl,
+										request);
+							} catch (Exception e) {
+								LOG.log(Level.WARNING,
+										"Failed to send notification through HTTP to "
+												+ receiverUrl, e);
+							}
+						}
+					});
+		} catch (RejectedExecutionException e) {
+			throw new JSONRPCException(
+					"Failed to send notification through HTTP", e);
+		}
+	}
+	
+	private void postNotification(String senderUrl, String receiverUrl,
+			JSONRequest request) throws Exception {
+		HttpPost httpPost = createPost(senderUrl, receiverUrl);
+		HttpResponse webResp = execute(httpPost, receiverUrl,
+				request.getObjectNode());
+		try {
+			int status = webResp.getStatusLine().getStatusCode();
+			if (status >= 300) {
+				throw new JSONRPCException("Failed to send notification through HTTP, status:"
+						+ webResp.getStatusLine());
+			}
+			EntityUtils.consume(webResp.getEntity());
+		} finally {
+			httpPost.reset();
+		}
+	}
+	
+	/**
+	 * Send a JSON-RPC 2.0 batch of requests to an agent via HTTP. The batch is
+	 * sent in a single POST request.
+	 * 
+	 * @param senderUrl
+	 * @param receiverUrl
+	 * @param requests
+	 * @return responses, in the same order as the requests
+	 * @throws JSONRPCException
+	 */
+	@Override
+	public List<JSONResponse> sendBatch(final String senderUrl,
+			final String receiverUrl, final List<JSONRequest> requests)
+			throws JSONRPCException {
+		try {
+			ArrayNode batch = JOM.createArrayNode();
+			for (JSONRequest request : requests) {
+				batch.add(request.getObjectNode());
+			}
+			
+			HttpPost httpPost = createPost(senderUrl, receiverUrl);
+			HttpResponse webResp = execute(httpPost, receiverUrl, batch);
+			try {
+				return JSONRPC.matchBatch(requests,
+						read(receiverUrl, webResp.getEntity(), JsonNode.class));
+			} finally {
+				httpPost.reset();
+			}
+		} catch (JSONRPCException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new JSONRPCException(
+					"Failed to send RPC batch through HTTP", e);
+		}
+	}
+	
+	private HttpPost createPost(String senderUrl, String receiverUrl) {
+		HttpPost httpPost = new HttpPost(receiverUrl);
+		
+		// Add token for HTTP handshake
+		httpPost.addHeader("X-Eve-Token", TokenStore.create().toString());
+		httpPost.addHeader("X-Eve-SenderUrl", senderUrl);
+		if (binary && JOM.getBinaryInstance() != null) {
+			httpPost.addHeader("Accept", ACCEPT);
+		}
+		if (compressionThreshold >= 0) {
+			httpPost.addHeader("Accept-Encoding", Compression.ACCEPT_ENCODING);
+		}
+		return httpPost;
+	}
+	
+	/**
+	 * Send the body, binary and/or compressed if the peer is known to accept
+	 * it. A peer which no longer does (415 Unsupported Media Type) gets the
+	 * body again as plain JSON.
+	 */
+	private HttpResponse execute(HttpPost httpPost, String receiverUrl,
+			JsonNode body) throws Exception {
+		String domain = getDomain(receiverUrl);
+		boolean binaryBody = binary && BINARY_PEERS.contains(domain)
+				&& JOM.getBinaryInstance() != null;
+		String coding = (compressionThreshold >= 0) ? COMPRESSING_PEERS
+				.get(domain) : null;
+		if (coding != null) {
+			httpPost.setEntity(JsonEntity.compressed(body, binaryBody, coding,
+					compressionThreshold));
+		} else {
+			httpPost.setEntity(new JsonEntity(body, binaryBody));
+		}
+		HttpResponse webResp = ApacheHttpClient.get().execute(httpPost);
+		if ((binaryBody || coding != null)
+				&& webResp.getStatusLine().getStatusCode() == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+			EntityUtils.consume(webResp.getEntity());
+			BINARY_PEERS.remove(domain);
+			COMPRESSING_PEERS.remove(domain);
+			httpPost.setEntity(new JsonEntity(body, false));
+			webResp = ApacheHttpClient.get().execute(httpPost);
+		}
+		if (compressionThreshold >= 0 && !domain.isEmpty()) {
+			// peers announce the codings they accept in requests
+			Header accepted = webResp.getFirstHeader("Accept-Encoding");
+			String peerCoding = (accepted != null) ? Compression
+					.select(accepted.getValue()) : null;
+			if (peerCoding != null) {
+				COMPRESSING_PEERS.put(domain, peerCoding);
+			} else {
+				COMPRESSING_PEERS.remove(domain);
+			}
+		}
+		return webResp;
+	}
+	
+	/**
+	 * Parse the content of a response entity while it streams in, in the
+	 * encoding given by its content type and decompressed as given by its
+	 * content encoding.
+	 */
+	private <T> T read(String receiverUrl, HttpEntity entity, Class<T> type)
+			throws IOException {
+		ObjectMapper mapper = JOM.getInstance();
+		Header contentType = entity.getContentType();
+		if (contentType != null
+				&& contentType.getValue().startsWith(JOM.BINARY_CONTENT_TYPE)
+				&& JOM.getBinaryInstance() != null) {
+			mapper = JOM.getBinaryInstance();
+			String domain = getDomain(receiverUrl);
+			if (binary && !domain.isEmpty()) {
+				BINARY_PEERS.add(domain);
+			}
+		}
+		Header contentEncoding = entity.getContentEncoding();
+		InputStream in = entity.getContent();
+		try {
+			in = Compression.decode(in, (contentEncoding != null) ? contentEncoding
+					.getValue() : null);
+			return mapper.readValue(in, type);
+		} finally {
+			in.close();
+		}
+	}
+	
 	/**
 	 * Send an asynchronous JSON-RPC request to an agent via HTTP
 	 * 
@@ -167,18 +393,40 @@ public class HttpService implements TransportService {
 	public void sendAsync(final String senderUrl, final String receiverUrl,
 			final JSONRequest request,
 			final AsyncCallback<JSONResponse> callback) {
-		new Thread(new Runnable() {
-			@Override
-			public void run() {
-				JSONResponse response;
-				try {
-					response = send(senderUrl, receiverUrl, request);
-					callback.onSuccess(response);
-				} catch (Exception e) {
-					callback.onFailure(e);
-				}
-			}
-		}).start();
+		try {
+			AgentHost.getInstance().getExecutorService()
+					.execute(new Runnable() {
+						@Override
+						public void run() {
+							JSONResponse response;
+							try {
+								response = send(senderUrl, receiverUrl, request);
+								callback.onSuccess(response);
+							} catch (Exception e) {
+								callback.onFailure(e);
+							}
+						}
+					});
+		} catch (RejectedExecutionException e) {
+			callback.onFailure(e);
+		}
+	}
+	
+	/**
+	 * Asynchronously Send a message to an other agent
+	 * 
+	 * @param senderUrl
+	 * @param receiver
+	 * @param request
+	 * @return future JSONResponse
+	 */
+	@Override
+	public AsyncFuture<JSONResponse> sendAsync(final String senderUrl,
+			final String receiver, final JSONRequest request)
+			throws JSONRPCException {
+		AsyncFuture<JSONResponse> future = new AsyncFuture<JSONResponse>();
+		sendAsync(senderUrl, receiver, request, future);
+		return future;
 	}
 	
 	/**
@@ -0,0 +1,190 @@
+package com.almende.eve.transport.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * HTTP entity of a JSON tree, written as UTF-8 JSON or in the binary
+ * encoding of {@link JOM#getBinaryInstance()}, without building the body as
+ * a String first. A body up to CHUNK_THRESHOLD bytes is serialized up front
+ * and sent with a Content-Length; a larger body is streamed straight into
+ * the connection with chunked transfer encoding. The generator uses
+ * Jackson's recycled buffers.
+ */
+final class JsonEntity extends AbstractHttpEntity {
+	static final String		CONTENT_TYPE	= "application/json; charset=UTF-8";
+	/** Largest body in bytes which is sent with a Content-Length */
+	static final int			CHUNK_THRESHOLD	= 64 * 1024;
+
+	private final JsonNode		node;
+	private final ObjectMapper	mapper;
+	/** the serialized body, when it is small */
+	private byte[]				bytes			= null;
+	private boolean				measured		= false;
+
+	JsonEntity(JsonNode node) {
+		this(node, false);
+	}
+
+	JsonEntity(JsonNode node, boolean binary) {
+		this.node = node;
+		this.mapper = binary ? JOM.getBinaryInstance() : JOM.getInstance();
+		setContentType(binary ? JOM.BINARY_CONTENT_TYPE : CONTENT_TYPE);
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return true;
+	}
+
+	@Override
+	public long getContentLength() {
+		measure();
+		// unknown for a large body: sent chunked
+		return bytes != null ? bytes.length : -1;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		measure();
+		return new ByteArrayInputStream(bytes != null ? bytes : mapper
+				.writeValueAsBytes(node));
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		measure();
+		if (bytes != null) {
+			out.write(bytes);
+		} else {
+			write(out, node, mapper);
+		}
+	}
+
+	/**
+	 * Serialize the body once when it is not larger than CHUNK_THRESHOLD.
+	 * Serialization of a larger body is given up at the threshold.
+	 */
+	private void measure() {
+		if (measured) {
+			return;
+		}
+		measured = true;
+		BoundedOutputStream out = new BoundedOutputStream(CHUNK_THRESHOLD);
+		try {
+			write(out, node, mapper);
+			bytes = out.toByteArray();
+		} catch (IllegalStateException e) {
+			// too large: streamed by writeTo
+		} catch (IOException e) {
+			// failing: left to writeTo, which reports it
+		}
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+
+	/**
+	 * Create an entity of a JSON tree which is compressed when it is larger
+	 * than the threshold. The Content-Encoding header has to be known before
+	 * the body is sent, so unlike a JsonEntity this entity is serialized up
+	 * front.
+	 *
+	 * @param node
+	 * @param binary
+	 * @param coding
+	 *            gzip or deflate
+	 * @param threshold
+	 *            in bytes
+	 * @return entity
+	 * @throws IOException
+	 */
+	static HttpEntity compressed(JsonNode node, boolean binary,
+			final String coding, int threshold) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Compression.ThresholdOutputStream out = new Compression.ThresholdOutputStream(
+				threshold) {
+			@Override
+			protected OutputStream open(boolean compress) throws IOException {
+				return compress ? Compression.encode(bytes, coding) : bytes;
+			}
+		};
+		write(out, node, binary ? JOM.getBinaryInstance() : JOM.getInstance());
+		out.close();
+
+		ByteArrayEntity entity = new ByteArrayEntity(bytes.toByteArray());
+		entity.setContentType(binary ? JOM.BINARY_CONTENT_TYPE : CONTENT_TYPE);
+		if (out.isCompressed()) {
+			entity.setContentEncoding(coding);
+		}
+		return entity;
+	}
+
+	/**
+	 * Write a JSON tree to a stream, leaving the stream open
+	 *
+	 * @param out
+	 * @param node
+	 * @param mapper
+	 *            JOM.getInstance() for UTF-8 JSON, or the binary mapper
+	 * @throws IOException
+	 */
+	static void write(OutputStream out, JsonNode node, ObjectMapper mapper)
+			throws IOException {
+		JsonGenerator generator = mapper.getFactory().createGenerator(out,
+				JsonEncoding.UTF8);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		try {
+			mapper.writeTree(generator, node);
+		} finally {
+			generator.close();
+		}
+	}
+
+	/**
+	 * Buffer which fails when more than its limit is written
+	 */
+	private static final class BoundedOutputStream extends
+			ByteArrayOutputStream {
+		private final int	limit;
+
+		private BoundedOutputStream(int limit) {
+			super(Math.min(limit, 512));
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(int b) {
+			check(1);
+			super.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			check(len);
+			super.write(b, off, len);
+		}
+
+		private void check(int len) {
+			if (count + len > limit) {
+				throw new IllegalStateException("Limit of " + limit
+						+ " bytes exceeded");
+			}
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.almende.eve.transport.xmpp;
 
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,7 +22,9 @@ import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.transport.AsyncCallback;
 import com.almende.eve.transport.AsyncCallbackQueue;
+import com.fasterxml.jackson.databind.node.BinaryNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
 
 public class AgentConnection {
 	private static final Logger					LOG			= Logger.getLogger(AgentConnection.class
@@ -32,11 +35,29 @@ public class AgentConnection {
 	private String								resource	= null;
 	private XMPPConnection						conn		= null;
 	private AsyncCallbackQueue<JSONResponse>	callbacks	= new AsyncCallbackQueue<JSONResponse>();
+	private boolean								binary		= false;
+	
+	/**
+	 * Prefix of a base64 encoded Smile body: the encoded Smile header
+	 */
+	private static final String					BINARY_PREFIX	= "OikK";
 	
 	public AgentConnection(AgentHost agentHost) {
 		this.agentHost = agentHost;
 	}
 	
+	/**
+	 * Send requests in the binary encoding (base64 encoded Smile) instead
+	 * of JSON text. Only enable this when all peers run an Eve version
+	 * which understands it. Incoming binary messages are always accepted,
+	 * and replied to in binary.
+	 * 
+	 * @param binary
+	 */
+	public void setBinary(boolean binary) {
+		this.binary = binary && JOM.getBinaryInstance() != null;
+	}
+	
 	/**
 	 * Get the id of the agent linked to this connection
 	 * 
@@ -156,18 +177,20 @@ public class AgentConnection {
 			AsyncCallback<JSONResponse> callback) throws JSONRPCException {
 		try {
 			if (isConnected()) {
-				// create a unique id
-				final String id = (String) request.getId();
-				
-				
-				String description = username + " -> "+ request.getMethod();
-				// queue the response callback
-				callbacks.push(id, description, callback);
+				if (!request.isNotification()) {
+					// create a unique id
+					final String id = (String) request.getId();
+					
+					String description = username + " -> "
+							+ request.getMethod();
+					// queue the response callback
+					callbacks.push(id, description, callback);
+				}
 				
 				// send the message
 				Message reply = new Message();
 				reply.setTo(username);
-				reply.setBody(request.toString());
+				reply.setBody(encode(request.getObjectNode(), binary));
 				conn.sendPacket(reply);
 			} else {
 				throw new Exception("Cannot send request, not connected");
@@ -177,6 +200,30 @@ public class AgentConnection {
 		}
 	}
 	
+	/**
+	 * Encode a message body as base64 encoded Smile, or as JSON text
+	 */
+	private static String encode(ObjectNode json, boolean binary) {
+		if (binary) {
+			try {
+				return new BinaryNode(JOM.getBinaryInstance()
+						.writeValueAsBytes(json)).asText();
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Failed to encode binary message", e);
+			}
+		}
+		return json.toString();
+	}
+	
+	private static ObjectNode decode(String body, boolean binary)
+			throws IOException {
+		if (binary) {
+			return JOM.getBinaryInstance().readValue(
+					new TextNode(body).binaryValue(), ObjectNode.class);
+		}
+		return JOM.getInstance().readValue(body, ObjectNode.class);
+	}
+	
 	/**
 	 * A class to listen for incoming JSON-RPC messages.
 	 * The listener will invoke the JSON-RPC message on the agent and
@@ -243,13 +290,22 @@ public class AgentConnection {
 				}
 			}
 			String body = message.getBody();
-			
-			if (body != null && body.startsWith("{")
-					|| body.trim().startsWith("{")) {
-				// the body contains a JSON object
+			if (body == null) {
+				return;
+			}
+			body = body.trim();
+			boolean binary = false;
+			if (body.startsWith(BINARY_PREFIX)
+					&& JOM.getBinaryInstance() != null) {
+				// the body contains a base64 encoded Smile object
+				binary = true;
+			} else if (!body.startsWith("{")) {
+				return;
+			}
+			{
 				ObjectNode json = null;
 				try {
-					json = JOM.getInstance().readValue(body, ObjectNode.class);
+					json = decode(body, binary);
 					if (isResponse(json)) {
 						// this is a response
 						// Find and execute the corresponding callback
@@ -258,13 +314,13 @@ public class AgentConnection {
 						AsyncCallback<JSONResponse> callback = (id != null) ? callbacks
 								.pull(id) : null;
 						if (callback != null) {
-							callback.onSuccess(new JSONResponse(body));
+							callback.onSuccess(new JSONResponse(json));
 						}
 					} else if (isRequest(json)) {
 						// this is a request
 						String senderUrl = "xmpp:"+message.getFrom();
 						JSONRequest request = new JSONRequest(json);
-						invoke(senderUrl, request);
+						invoke(senderUrl, request, binary);
 					} else {
 						throw new Exception(
 								"Request does not contain a valid JSON-RPC request or response");
@@ -279,7 +335,7 @@ public class AgentConnection {
 					// send exception as response
 					Message reply = new Message();
 					reply.setTo(message.getFrom());
-					reply.setBody(response.toString());
+					reply.setBody(encode(response.getObjectNode(), binary));
 					conn.sendPacket(reply);
 				}
 			}
@@ -287,14 +343,18 @@ public class AgentConnection {
 		
 		/**
 		 * Invoke a JSON-RPC request
-		 * Invocation is done in a separate thread to prevent blocking the
-		 * single threaded XMPP PacketListener (which can cause deadlocks).
+		 * Invocation is done on the executor service of the host to prevent
+		 * blocking the single threaded XMPP PacketListener (which can cause
+		 * deadlocks).
 		 * 
 		 * @param senderUrl
 		 * @param request
+		 * @param binary
+		 *            reply in the binary encoding
 		 */
-		private void invoke(final String senderUrl, final JSONRequest request) {
-			new Thread(new Runnable() {
+		private void invoke(final String senderUrl, final JSONRequest request,
+				final boolean binary) {
+			host.getExecutorService().execute(new Runnable() {
 				@Override
 				public void run() {
 					JSONResponse response;
@@ -314,17 +374,24 @@ public class AgentConnection {
 						response = new JSONResponse(jsonError);
 					}
 					
-					if (response != null) {
+					if (request.isNotification()) {
+						// notifications are not replied to
+						if (response != null && response.getError() != null) {
+							LOG.warning("XMPP notification failed:"
+									+ response.getError()
+											.getLocalizedMessage());
+						}
+					} else if (response != null) {
 						Message reply = new Message();
 						String sender = senderUrl.replaceFirst("xmpps?:", "");
 						reply.setTo(sender);
-						reply.setBody(response.toString());
+						reply.setBody(encode(response.getObjectNode(), binary));
 						conn.sendPacket(reply);
 					} else {
 						LOG.severe("XMPP response is null? This shouldn't happen...");
 					}
 				}
-			}).start();
+			});
 		}
 	}
 }
@@ -5,6 +5,7 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -28,6 +29,7 @@ import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.state.State;
 import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncFuture;
 import com.almende.eve.transport.SyncCallback;
 import com.almende.eve.transport.TransportService;
 import com.almende.util.EncryptionUtil;
@@ -41,6 +43,7 @@ public class XmppService implements TransportService {
 	private String							host				= null;
 	private Integer							port				= null;
 	private String							service				= null;
+	private boolean							binary				= false;
 	
 	// xmpp url as key "xmpp:username@host"
 	private Map<String, AgentConnection>	connectionsByUrl	= new ConcurrentHashMap<String, AgentConnection>();
@@ -63,6 +66,7 @@ public class XmppService implements TransportService {
 	 *            {Integer} port
 	 *            {String} serviceName
 	 *            {String} id
+	 *            {Boolean} binary
 	 */
 	public XmppService(AgentHost agentHost, Map<String, Object> params) {
 		this.agentHost = agentHost;
@@ -71,6 +75,9 @@ public class XmppService implements TransportService {
 			host = (String) params.get("host");
 			port = (Integer) params.get("port");
 			service = (String) params.get("service");
+			if (params.get("binary") != null) {
+				binary = (Boolean) params.get("binary");
+			}
 		}
 		
 		init();
@@ -248,6 +255,7 @@ public class XmppService implements TransportService {
 					+ username);
 		}
 		
+		connection.setBinary(binary);
 		connection.connect(agentId, host, port, service, username, password,
 				resource);
 		
@@ -357,6 +365,69 @@ public class XmppService implements TransportService {
 		}
 	}
 	
+	/**
+	 * Send a notification to an other agent. No callback is queued, as the
+	 * receiver will not reply.
+	 * 
+	 * @param senderUrl
+	 * @param receiver
+	 * @param request
+	 */
+	@Override
+	public void sendNotification(String senderUrl, String receiver,
+			JSONRequest request) throws JSONRPCException {
+		request.setNotification();
+		sendAsync(senderUrl, receiver, request, null);
+	}
+	
+	/**
+	 * Send a batch of messages to an other agent. The messages are all sent
+	 * before waiting for the first response, so the round trips overlap.
+	 * 
+	 * @param senderUrl
+	 * @param receiver
+	 * @param requests
+	 * @return responses, in the same order as the requests
+	 */
+	@Override
+	public List<JSONResponse> sendBatch(String senderUrl, String receiver,
+			List<JSONRequest> requests) throws JSONRPCException {
+		List<SyncCallback<JSONResponse>> callbacks = new ArrayList<SyncCallback<JSONResponse>>(
+				requests.size());
+		for (JSONRequest request : requests) {
+			SyncCallback<JSONResponse> callback = new SyncCallback<JSONResponse>();
+			sendAsync(senderUrl, receiver, request, callback);
+			callbacks.add(callback);
+		}
+		List<JSONResponse> responses = new ArrayList<JSONResponse>(
+				requests.size());
+		for (SyncCallback<JSONResponse> callback : callbacks) {
+			try {
+				responses.add(callback.get());
+			} catch (Exception e) {
+				throw new JSONRPCException("Couldn't handle XMPP return.", e);
+			}
+		}
+		return responses;
+	}
+	
+	/**
+	 * Asynchronously Send a message to an other agent
+	 * 
+	 * @param senderUrl
+	 * @param receiver
+	 * @param request
+	 * @return future JSONResponse
+	 */
+	@Override
+	public AsyncFuture<JSONResponse> sendAsync(final String senderUrl,
+			final String receiver, final JSONRequest request)
+			throws JSONRPCException {
+		AsyncFuture<JSONResponse> future = new AsyncFuture<JSONResponse>();
+		sendAsync(senderUrl, receiver, request, future);
+		return future;
+	}
+	
 	/**
 	 * Asynchronously Send a message to an other agent
 	 * 
@@ -418,6 +489,7 @@ public class XmppService implements TransportService {
 		data.put("host", host);
 		data.put("port", port);
 		data.put("service", service);
+		data.put("binary", binary);
 		data.put("protocols", protocols);
 		
 		return data.toString();
@@ -48,16 +48,14 @@ import java.lang.reflect.Method;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public final class AnnotationUtil {
 	
 	
-	private static Map<String, AnnotatedClass> cache = 
-			new ConcurrentHashMap<String, AnnotatedClass>();
-	private static Map<String, AnnotatedClass> cacheIncludingObject = 
-			new ConcurrentHashMap<String, AnnotatedClass>();
+	private static ClassCache<AnnotatedClass> cache = 
+			new ClassCache<AnnotatedClass>();
+	private static ClassCache<AnnotatedClass> cacheIncludingObject = 
+			new ClassCache<AnnotatedClass>();
 	
 	private AnnotationUtil(){};
 	
@@ -87,11 +85,11 @@ public final class AnnotationUtil {
 	 * @throws SecurityException 
 	 */
 	public static AnnotatedClass get(Class<?> clazz, boolean includeObject) {
-		Map<String, AnnotatedClass> _cache = includeObject ? cacheIncludingObject : cache;
-		AnnotatedClass annotatedClazz = _cache.get(clazz.getName());
+		ClassCache<AnnotatedClass> _cache = includeObject ? cacheIncludingObject : cache;
+		AnnotatedClass annotatedClazz = _cache.get(clazz);
 		if (annotatedClazz == null) {
 			annotatedClazz = new AnnotatedClass(clazz, includeObject);
-			_cache.put(clazz.getName(), annotatedClazz);
+			_cache.put(clazz, annotatedClazz);
 		}		
 		return annotatedClazz;
 	}
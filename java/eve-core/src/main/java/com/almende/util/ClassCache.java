@@ -0,0 +1,74 @@
+package com.almende.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent cache of values per class, which does not keep the classes and
+ * their class loaders alive, e.g. when a web application is redeployed.
+ * The classes are held weakly. The values are held softly: values like
+ * methods refer to their class, which would otherwise keep the entry
+ * forever. The collector clears a value once it is unused for a while or
+ * memory runs low; it is built again on its next use. Lookups do not lock.
+ *
+ * @param <V>
+ *            type of the values
+ */
+public final class ClassCache<V> {
+	private final ConcurrentHashMap<Key, SoftReference<V>>	map		= new ConcurrentHashMap<Key, SoftReference<V>>();
+	private final ReferenceQueue<Class<?>>				queue	= new ReferenceQueue<Class<?>>();
+
+	/**
+	 * Get the value of a class
+	 *
+	 * @param clazz
+	 * @return value, or null when not cached
+	 */
+	public V get(Class<?> clazz) {
+		SoftReference<V> ref = map.get(new Key(clazz, null));
+		return ref != null ? ref.get() : null;
+	}
+
+	/**
+	 * Cache the value of a class
+	 *
+	 * @param clazz
+	 * @param value
+	 */
+	public void put(Class<?> clazz, V value) {
+		Reference<?> ref;
+		while ((ref = queue.poll()) != null) {
+			map.remove(ref);
+		}
+		map.put(new Key(clazz, queue), new SoftReference<V>(value));
+	}
+
+	private static final class Key extends WeakReference<Class<?>> {
+		private final int	hash;
+
+		private Key(Class<?> clazz, ReferenceQueue<Class<?>> queue) {
+			super(clazz, queue);
+			hash = System.identityHashCode(clazz);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Object clazz = get();
+			return clazz != null && clazz == ((Key) obj).get();
+		}
+	}
+}
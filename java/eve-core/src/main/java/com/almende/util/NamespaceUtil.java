@@ -2,17 +2,28 @@ package com.almende.util;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.almende.eve.agent.annotation.Namespace;
 import com.almende.util.AnnotationUtil.AnnotatedClass;
 import com.almende.util.AnnotationUtil.AnnotatedMethod;
 
+/**
+ * Resolves namespaced method names like "scheduler.createTask" to the object
+ * the method is called on. Every class gets a node with its @Namespace
+ * getters, built once; the nodes of the objects returned by the getters
+ * form a trie. The getter chains of the resolved paths are cached per
+ * class, so resolving a path invokes the getters without any lookups.
+ */
 public final class NamespaceUtil {
-	
-	private static Map<String, String[]>	cache		= new HashMap<String, String[]>();
-	private static NamespaceUtil			instance	= new NamespaceUtil();
+
+	private static final ClassCache<Node>		NODES		= new ClassCache<Node>();
+	private static final Method[]				NO_GETTERS	= new Method[0];
+	private static NamespaceUtil				instance	= new NamespaceUtil();
 	
 	private NamespaceUtil(){};
 	
@@ -22,23 +33,46 @@ public final class NamespaceUtil {
 		return instance._get(destination, path);
 	}
 	
-	private void populateCache(Object destination, String path, String methods)
+	/**
+	 * Resolve and cache the namespaces of the given object ahead of the
+	 * first call.
+	 *
+	 * @param destination
+	 * @throws IllegalAccessException
+	 * @throws InvocationTargetException
+	 */
+	public static void prepare(Object destination)
 			throws IllegalAccessException, InvocationTargetException {
-		AnnotatedClass clazz = AnnotationUtil.get(destination.getClass());
-		for (AnnotatedMethod method : clazz
-				.getAnnotatedMethods(Namespace.class)) {
-			Object newDest = method.getActualMethod().invoke(destination,
+		prepare(getNode(destination.getClass()), destination, "",
+				NO_GETTERS);
+	}
+	
+	private static void prepare(Node root, Object destination, String path,
+			Method[] chain) throws IllegalAccessException,
+			InvocationTargetException {
+		Node node = getNode(destination.getClass());
+		for (Map.Entry<String, Method> entry : node.getters.entrySet()) {
+			Object newDest = entry.getValue().invoke(destination,
 					(Object[]) null);
-			// recurse:
 			if (newDest != null) {
-				populateCache(
-						newDest,
-						path + "."
-								+ method.getAnnotation(Namespace.class).value(),
-						methods + "." + method.getName());
+				String newPath = path.isEmpty() ? entry.getKey() : path + "."
+						+ entry.getKey();
+				Method[] newChain = new Method[chain.length + 1];
+				System.arraycopy(chain, 0, newChain, 0, chain.length);
+				newChain[chain.length] = entry.getValue();
+				root.chains.put(newPath, newChain);
+				prepare(root, newDest, newPath, newChain);
 			}
 		}
-		cache.put(path, methods.split("\\."));
+	}
+	
+	private static Node getNode(Class<?> clazz) {
+		Node node = NODES.get(clazz);
+		if (node == null) {
+			node = new Node(clazz);
+			NODES.put(clazz, node);
+		}
+		return node;
 	}
 	
 	private CallTuple _get(Object destination, String path)
@@ -46,34 +80,112 @@ public final class NamespaceUtil {
 			NoSuchMethodException {
 		CallTuple result = new CallTuple();
 		
-		String reducedPath = path.replaceFirst("\\.?[^.]+$", "");
-		String reducedMethod = path.replaceAll(".*\\.", "");
-		
-		String fullPath = destination.getClass().getName();
-		if (!reducedPath.isEmpty()) {
-			fullPath += "." + reducedPath;
+		int separator = path.lastIndexOf('.');
+		if (separator < 0) {
+			result.setDestination(destination);
+			result.setMethodName(path);
+			return result;
 		}
+		String namespace = path.substring(0, separator);
 		
-		if (!cache.containsKey(fullPath)) {
-			populateCache(destination, destination.getClass().getName(), "");
-		}
-		if (!cache.containsKey(fullPath)) {
-			throw new IllegalStateException("Non resolveable path given:'"
-					+ fullPath + "' \n checked:" + cache);
+		Node root = getNode(destination.getClass());
+		Method[] chain = root.chains.get(namespace);
+		if (chain == null) {
+			chain = resolve(destination, namespace);
+			root.chains.put(namespace, chain);
 		}
-		String[] methods = cache.get(fullPath);
-		for (String methodName : methods) {
-			if (!methodName.equals("")) {
-				Method method = destination.getClass().getMethod(methodName,
-						(Class<?>[]) null);
-				destination = method.invoke(destination, (Object[]) null);
+		Object target = invoke(chain, destination, path);
+		if (target == null) {
+			// a getter returned an object of another class than before
+			chain = resolve(destination, namespace);
+			root.chains.put(namespace, chain);
+			target = invoke(chain, destination, path);
+			if (target == null) {
+				throw new IllegalStateException("Namespace of path '" + path
+						+ "' changes class between calls");
 			}
 		}
-		result.setDestination(destination);
-		result.setMethodName(reducedMethod);
+		result.setDestination(target);
+		result.setMethodName(path.substring(separator + 1));
 		return result;
 	}
 	
+	/**
+	 * Invoke a getter chain
+	 * 
+	 * @return target, or null when the chain does not fit the classes of the
+	 *         objects returned by the getters
+	 */
+	private static Object invoke(Method[] chain, Object destination,
+			String path) throws IllegalAccessException,
+			InvocationTargetException {
+		for (Method getter : chain) {
+			if (!getter.getDeclaringClass().isInstance(destination)) {
+				return null;
+			}
+			destination = getter.invoke(destination, (Object[]) null);
+			if (destination == null) {
+				throw new IllegalStateException("Namespace of path '" + path
+						+ "' is null");
+			}
+		}
+		return destination;
+	}
+	
+	/**
+	 * Walk the trie along the given namespace, collecting the getters
+	 */
+	private static Method[] resolve(Object destination, String namespace)
+			throws IllegalAccessException, InvocationTargetException {
+		List<String> names = new ArrayList<String>();
+		int start = 0;
+		int end;
+		while ((end = namespace.indexOf('.', start)) >= 0) {
+			names.add(namespace.substring(start, end));
+			start = end + 1;
+		}
+		names.add(namespace.substring(start));
+		
+		Method[] chain = new Method[names.size()];
+		for (int i = 0; i < chain.length; i++) {
+			Method getter = getNode(destination.getClass()).getters
+					.get(names.get(i));
+			if (getter == null) {
+				throw new IllegalStateException("Non resolveable path given:'"
+						+ namespace + "' on "
+						+ destination.getClass().getName());
+			}
+			chain[i] = getter;
+			if (i < chain.length - 1) {
+				destination = getter.invoke(destination, (Object[]) null);
+				if (destination == null) {
+					throw new IllegalStateException("Namespace '" + names.get(i)
+							+ "' of path '" + namespace + "' is null");
+				}
+			}
+		}
+		return chain;
+	}
+	
+	/**
+	 * The @Namespace getters of a class, and the getter chains of the
+	 * namespaces resolved on instances of it.
+	 */
+	private static final class Node {
+		private final Map<String, Method>	getters	= new HashMap<String, Method>();
+		private final Map<String, Method[]>	chains	= new ConcurrentHashMap<String, Method[]>();
+		
+		private Node(Class<?> clazz) {
+			AnnotatedClass annotated = AnnotationUtil.get(clazz);
+			List<AnnotatedMethod> methods = annotated
+					.getAnnotatedMethods(Namespace.class);
+			for (AnnotatedMethod method : methods) {
+				getters.put(method.getAnnotation(Namespace.class).value(),
+						method.getActualMethod());
+			}
+		}
+	}
+	
 	public class CallTuple {
 		private Object	destination;
 		private String	methodName;
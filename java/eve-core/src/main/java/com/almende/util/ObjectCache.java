@@ -1,146 +1,374 @@
 package com.almende.util;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.almende.eve.config.Config;
 
+/**
+ * Concurrent object cache, used to keep (agent) instances in memory.
+ *
+ * Lookups are lock free: an entry only records its (saturating) use
+ * frequency and last access time. Eviction follows a CLOCK policy with
+ * frequency counters: the clock hand passes over the entries in insertion
+ * order, decrementing the frequency of recently used entries and evicting
+ * the first entry which has not been used since the hand last passed. As the
+ * frequency is bounded, eviction is O(1) amortized, and only a single thread
+ * at a time runs the clock.
+ *
+ * Optionally, entries which have not been used for "ObjectCache"."maxIdle"
+ * seconds are expired. Evicted and expired entries are reported to the
+ * registered {@link EvictionListener}.
+ */
 public final class ObjectCache {
-	private static int						maxSize	= 1000;
-	private static Map<String, MetaInfo<?>>	cache	= new ConcurrentHashMap<String, MetaInfo<?>>(
-															maxSize);
-	private static List<MetaInfo<?>>		scores	= new ArrayList<MetaInfo<?>>(
-															maxSize);
-	
+	private static final Logger					LOG				= Logger.getLogger(ObjectCache.class
+																		.getCanonicalName());
+	private static final int					MAX_FREQUENCY	= 3;
+	private static volatile int					maxSize			= 1000;
+	private static volatile long				maxIdle			= 0;
+	private static volatile ConcurrentMap<String, MetaInfo<?>>	cache			= new ConcurrentHashMap<String, MetaInfo<?>>(
+																		maxSize);
+	private static volatile Queue<MetaInfo<?>>	clock			= new ConcurrentLinkedQueue<MetaInfo<?>>();
+	private static final AtomicInteger			size			= new AtomicInteger();
+	private static final AtomicInteger			clockSize		= new AtomicInteger();
+	private static final ReentrantLock			evictionLock	= new ReentrantLock();
+	private static final AtomicLong				hits			= new AtomicLong();
+	private static final AtomicLong				misses			= new AtomicLong();
+	private static final AtomicLong				evictions		= new AtomicLong();
+	private static final AtomicLong				expirations		= new AtomicLong();
+	private static volatile EvictionListener	listener		= null;
+	private static Timer						expiryTimer		= null;
+
 	private ObjectCache() {
 	};
-	
+
+	/**
+	 * Listener which is notified of entries leaving the cache because of
+	 * eviction or idle expiry. Not called for explicitly deleted entries.
+	 */
+	public interface EvictionListener {
+		/**
+		 * Called after the entry has been removed from the cache
+		 *
+		 * @param key
+		 * @param value
+		 */
+		void onEvict(String key, Object value);
+	}
+
 	/**
-	 * Reinitialize cache, using given configuration. (currently only
-	 * "ObjectCache"."maxSize" is used from config)
-	 * 
+	 * Reinitialize cache, using given configuration. (currently
+	 * "ObjectCache"."maxSize" and "ObjectCache"."maxIdle" (in seconds) are
+	 * used from config)
+	 *
 	 * @param config
 	 */
 	public static void configCache(Config config) {
-		synchronized (cache) {
+		evictionLock.lock();
+		try {
 			Integer max = config.get("ObjectCache", "maxSize");
 			if (max != null) {
-				ObjectCache.maxSize = max;
+				ObjectCache.maxSize = Math.max(max, 1);
 			}
+			Integer idle = config.get("ObjectCache", "maxIdle");
+			ObjectCache.maxIdle = (idle != null && idle > 0) ? idle * 1000L
+					: 0;
+
 			ObjectCache.cache = new ConcurrentHashMap<String, MetaInfo<?>>(
 					ObjectCache.maxSize + 1);
-			ObjectCache.scores = new ArrayList<MetaInfo<?>>(ObjectCache.maxSize);
+			ObjectCache.clock = new ConcurrentLinkedQueue<MetaInfo<?>>();
+			size.set(0);
+			clockSize.set(0);
+
+			if (expiryTimer != null) {
+				expiryTimer.cancel();
+				expiryTimer = null;
+			}
+			if (maxIdle > 0) {
+				long period = Math.max(maxIdle / 2, 1000);
+				expiryTimer = new Timer("ObjectCache expiry", true);
+				expiryTimer.schedule(new TimerTask() {
+					@Override
+					public void run() {
+						expire();
+					}
+				}, period, period);
+			}
+		} finally {
+			evictionLock.unlock();
 		}
 	}
-	
+
 	/**
-	 * Get value instance from cache, if exiting. Returns null if no va;ue is
+	 * Register the listener to be notified of evicted and expired entries.
+	 *
+	 * @param evictionListener
+	 *            listener, or null to remove the current listener
+	 */
+	public static void setEvictionListener(EvictionListener evictionListener) {
+		listener = evictionListener;
+	}
+
+	/**
+	 * Get value instance from cache, if exiting. Returns null if no value is
 	 * stored in cache.
-	 * 
+	 *
 	 * @param key
 	 * @return
 	 */
 	public static <T> T get(String key, Class<T> type) {
-		synchronized (cache) {
-			MetaInfo<?> result = cache.get(key);
-			if (result != null
-					&& type.isAssignableFrom(result.getValue().getClass())) {
-				result.use();
+		MetaInfo<?> result = cache.get(key);
+		if (result != null && type.isInstance(result.getValue())) {
+			long now = maxIdle > 0 ? System.currentTimeMillis() : 0;
+			if (!result.isIdle(now, maxIdle)) {
+				result.use(now);
+				hits.incrementAndGet();
 				return type.cast(result.getValue());
 			}
-			return null;
+			if (remove(result)) {
+				expirations.incrementAndGet();
+				signal(result);
+			}
 		}
+		misses.incrementAndGet();
+		return null;
 	}
-	
+
 	/**
 	 * Put agent instance into the cache from later retrieval. Runs eviction
 	 * policy after entry of agent.
-	 * 
+	 *
 	 * @param key
 	 * @param value
 	 */
 	public static <T> void put(String key, T value) {
-		synchronized (cache) {
-			MetaInfo<T> entry = new MetaInfo<T>(key, value);
-			cache.put(key, entry);
-			int overshoot = cache.size() - maxSize;
-			if (overshoot > 0) {
-				evict(overshoot);
+		MetaInfo<T> entry = new MetaInfo<T>(key, value);
+		MetaInfo<?> old = cache.put(key, entry);
+		if (old != null) {
+			// replaced, the clock hand will drop the old entry
+			old.kill();
+		} else {
+			size.incrementAndGet();
+		}
+		clock.offer(entry);
+		clockSize.incrementAndGet();
+
+		if (size.get() > maxSize || clockSize.get() > 2 * maxSize) {
+			evict();
+		}
+	}
+
+	/**
+	 * Remove specific agent from cache.
+	 *
+	 * @param key
+	 */
+	public static void delete(String key) {
+		MetaInfo<?> entry = cache.remove(key);
+		if (entry != null) {
+			entry.kill();
+			size.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Get the number of entries in the cache
+	 *
+	 * @return size
+	 */
+	public static int size() {
+		return size.get();
+	}
+
+	/**
+	 * Get the number of successful lookups
+	 *
+	 * @return hits
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Get the number of lookups which did not return a value
+	 *
+	 * @return misses
+	 */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Get the number of entries evicted because the cache was full
+	 *
+	 * @return evictions
+	 */
+	public static long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * Get the number of entries removed because they were idle too long
+	 *
+	 * @return expirations
+	 */
+	public static long getExpirations() {
+		return expirations.get();
+	}
+
+	/**
+	 * Run the clock until the cache is within its bounds again. If another
+	 * thread is already evicting, this returns immediately.
+	 */
+	protected static void evict() {
+		if (!evictionLock.tryLock()) {
+			return;
+		}
+		List<MetaInfo<?>> evicted = new ArrayList<MetaInfo<?>>();
+		try {
+			long now = maxIdle > 0 ? System.currentTimeMillis() : 0;
+			// every entry is passed at most MAX_FREQUENCY + 1 times.
+			int steps = clockSize.get() * (MAX_FREQUENCY + 1);
+			while ((size.get() > maxSize || clockSize.get() > 2 * maxSize)
+					&& steps-- > 0) {
+				MetaInfo<?> entry = clock.poll();
+				if (entry == null) {
+					break;
+				}
+				if (entry.isDead()) {
+					clockSize.decrementAndGet();
+					continue;
+				}
+				if (!entry.isIdle(now, maxIdle) && entry.age()) {
+					// recently used: second chance
+					clock.offer(entry);
+					continue;
+				}
+				clockSize.decrementAndGet();
+				if (remove(entry)) {
+					evictions.incrementAndGet();
+					evicted.add(entry);
+				}
 			}
-			scores.add(entry);
+		} finally {
+			evictionLock.unlock();
+		}
+		for (MetaInfo<?> entry : evicted) {
+			signal(entry);
 		}
 	}
-	
-	protected static void evict(int amount) {
-		synchronized (cache) {
-			Collections.sort(scores);
-			ArrayList<MetaInfo<?>> toEvict = new ArrayList<MetaInfo<?>>(amount);
-			for (int i = 0; i < amount; i++) {
-				MetaInfo<?> entry = scores.get(i);
-				toEvict.add(entry);
+
+	/**
+	 * Remove all entries which have been idle for longer than maxIdle.
+	 */
+	protected static void expire() {
+		if (maxIdle <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		List<MetaInfo<?>> expired = new ArrayList<MetaInfo<?>>();
+		for (MetaInfo<?> entry : cache.values()) {
+			if (entry.isIdle(now, maxIdle) && remove(entry)) {
+				expirations.incrementAndGet();
+				expired.add(entry);
 			}
-			scores = scores.subList(amount, scores.size());
-			for (MetaInfo<?> entry : toEvict) {
-				cache.remove(entry.getKey());
+		}
+		for (MetaInfo<?> entry : expired) {
+			signal(entry);
+		}
+	}
+
+	private static boolean remove(MetaInfo<?> entry) {
+		if (cache.remove(entry.getKey(), entry)) {
+			entry.kill();
+			size.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	private static void signal(MetaInfo<?> entry) {
+		EvictionListener current = listener;
+		if (current != null) {
+			try {
+				current.onEvict(entry.getKey(), entry.getValue());
+			} catch (Exception e) {
+				LOG.log(Level.WARNING, "Eviction listener failed for '"
+						+ entry.getKey() + "'", e);
 			}
 		}
 	}
-	
+
 	/**
-	 * Remove specific agent from cache.
-	 * 
-	 * @param key
+	 * Cache entry. The frequency and access time are updated without
+	 * synchronization, a lost update only makes the policy slightly less
+	 * accurate.
 	 */
-	public static void delete(String key) {
-		cache.remove(key);
-	}
-}
-
-class MetaInfo<T> implements Comparable<MetaInfo<?>> {
-	private String	key;
-	private T		value;
-	private int		count	= 0;
-	private long	created;
-	
-	public MetaInfo(String key, T value) {
-		created = System.currentTimeMillis();
-		this.key = key;
-		this.value = value;
-	}
-	
-	public void use() {
-		count++;
-	}
-	
-	public String getKey() {
-		return this.key;
-	}
-	
-	public long getAge() {
-		return (System.currentTimeMillis() - created);
-	}
-	
-	public double score() {
-		if (getAge() == 0) {
-			return count / 0.001;
-		}
-		return count / getAge();
-	}
-	
-	public T getValue() {
-		return value;
-	}
-	
-	public void setValue(T value) {
-		this.value = value;
-	}
-	
-	@Override
-	public int compareTo(MetaInfo<?> o) {
-		return Double.compare(score(), o.score());
-	}
-	
+	static final class MetaInfo<T> {
+		private final String	key;
+		private final T			value;
+		private volatile int	frequency	= 0;
+		private volatile long	lastUsed;
+		private volatile boolean	dead		= false;
+
+		public MetaInfo(String key, T value) {
+			this.key = key;
+			this.value = value;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public void use(long now) {
+			if (frequency < MAX_FREQUENCY) {
+				frequency++;
+			}
+			if (now > 0) {
+				lastUsed = now;
+			}
+		}
+
+		/**
+		 * Passed by the clock hand: decrement the frequency.
+		 *
+		 * @return true if the entry was used since the hand last passed
+		 */
+		public boolean age() {
+			int current = frequency;
+			if (current > 0) {
+				frequency = current - 1;
+				return true;
+			}
+			return false;
+		}
+
+		public boolean isIdle(long now, long maxIdle) {
+			return maxIdle > 0 && now - lastUsed > maxIdle;
+		}
+
+		public void kill() {
+			dead = true;
+		}
+
+		public boolean isDead() {
+			return dead;
+		}
+
+		public String getKey() {
+			return this.key;
+		}
+
+		public T getValue() {
+			return value;
+		}
+	}
 }
\ No newline at end of file
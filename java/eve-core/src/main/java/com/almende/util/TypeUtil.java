@@ -71,6 +71,10 @@ public abstract class TypeUtil<T> {
 				LOG.log(Level.SEVERE, "Failed to convert value:" + value
 						+ " -----> " + fullType, e);
 			}
+		} else if (!fullType.isPrimitive()
+				&& !fullType.getRawClass().isInstance(value)) {
+			// a java object of another type, e.g. from a local call
+			return mapper.convertValue(value, fullType);
 		}
 		return (T) value;
 	}
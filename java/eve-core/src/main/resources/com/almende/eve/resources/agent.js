@@ -60,7 +60,8 @@ function Controller($scope, $resource) {
     // define a RESTful resource
     var agent = $resource(url + ':resource', {}, {
         'post': {method: 'POST'},
-        'events': {method: 'GET', params: {resource: 'events'}, isArray: true}
+        'events': {method: 'GET', params: {resource: 'events'}, isArray: true},
+        'methods': {method: 'GET', params: {resource: 'methods'}, isArray: true}
     });
 
     /**
@@ -331,18 +332,18 @@ function Controller($scope, $resource) {
             }
         });
 
-        // get methods
-        send ('getMethods', {}, function (err, result) {
-            if (!err) {
-                $scope.methods = result;
-                $scope.methodName = $scope.methods[0].method;
-                $scope.setMethod();
-
-                // update method select box
-                setTimeout(function () {
-                    new Chosen(document.getElementById('methods'));
-                }, 15);
-            }
+        // get methods (cached by the browser, revalidated via its ETag)
+        agent.methods({}, function (result) {
+            $scope.methods = result;
+            $scope.methodName = $scope.methods[0].method;
+            $scope.setMethod();
+
+            // update method select box
+            setTimeout(function () {
+                new Chosen(document.getElementById('methods'));
+            }, 15);
+        }, function (err) {
+            console.log(err);
         });
     };
 
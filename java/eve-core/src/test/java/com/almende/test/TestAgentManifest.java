@@ -0,0 +1,103 @@
+package com.almende.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.state.FileStateFactory;
+
+public class TestAgentManifest extends TestCase {
+	
+	private Set<String> list(FileStateFactory sf) {
+		Set<String> ids = new TreeSet<String>();
+		Iterator<String> iter = sf.getAllAgentIds();
+		while (iter.hasNext()) {
+			ids.add(iter.next());
+		}
+		return ids;
+	}
+	
+	@Test
+	public void testManifest() throws Exception {
+		File folder = new File(".testStates/manifest"
+				+ System.currentTimeMillis());
+		assertTrue(folder.mkdirs());
+		
+		// state files written before the manifest existed
+		FileOutputStream out = new FileOutputStream(new File(folder, "old1"));
+		out.write("{\"_type\":\"test\"}".getBytes("UTF-8"));
+		out.close();
+		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(
+				new File(folder, "old2")));
+		oos.writeObject(new HashMap<String, String>());
+		oos.close();
+		out = new FileOutputStream(new File(folder, "junk"));
+		out.write("junk".getBytes("UTF-8"));
+		out.close();
+		
+		FileStateFactory sf = new FileStateFactory(folder.getPath(), true);
+		assertTrue(new File(folder, ".agents").exists());
+		assertEquals("[old1]", list(sf).toString());
+		sf.create("new1");
+		sf.delete("old1");
+		assertEquals("[new1]", list(sf).toString());
+		
+		FileStateFactory serialized = new FileStateFactory(folder.getPath());
+		assertEquals("[old2]", list(serialized).toString());
+	}
+	
+	@Test
+	public void testInterruptedCreate() throws Exception {
+		File folder = new File(".testStates/manifest"
+				+ System.currentTimeMillis() + "b");
+		assertTrue(folder.mkdirs());
+		
+		// creates announced, the process stopped before they were confirmed
+		FileOutputStream out = new FileOutputStream(new File(folder,
+				".agents"));
+		out.write("j done\nJ crashed\nJ ghost\n".getBytes("UTF-8"));
+		out.close();
+		new File(folder, "done").createNewFile();
+		new File(folder, "crashed").createNewFile();
+		
+		FileStateFactory sf = new FileStateFactory(folder.getPath(), true);
+		assertEquals("[crashed, done]", list(sf).toString());
+		
+		// remove() skips an agent in the listing only
+		Iterator<String> iter = sf.getAllAgentIds();
+		iter.next();
+		iter.remove();
+		assertEquals(2, list(sf).size());
+	}
+	
+	@Test
+	public void testSharedManifest() throws Exception {
+		File folder = new File(".testStates/manifest"
+				+ System.currentTimeMillis() + "c");
+		assertTrue(folder.mkdirs());
+		FileStateFactory sf = new FileStateFactory(folder.getPath(), true);
+		sf.create("local");
+		assertEquals("[local]", list(sf).toString());
+		
+		// another process sharing the folder creates an agent
+		new File(folder, "remote").createNewFile();
+		FileOutputStream out = new FileOutputStream(new File(folder,
+				".agents"), true);
+		out.write("J remote\nj remote\n".getBytes("UTF-8"));
+		out.close();
+		assertEquals("[local, remote]", list(sf).toString());
+		
+		// and this process's changes are kept alongside
+		sf.delete("local");
+		sf.create("local2");
+		assertEquals("[local2, remote]", list(sf).toString());
+	}
+}
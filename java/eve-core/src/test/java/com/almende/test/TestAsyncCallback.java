@@ -2,13 +2,18 @@ package com.almende.test;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.Test;
 
+import com.almende.eve.transport.AsyncFuture;
 import com.almende.eve.transport.SyncCallback;
 
 public class TestAsyncCallback {
@@ -62,4 +67,34 @@ public class TestAsyncCallback {
 		}
 	}
 
+	@Test
+	public void testAsyncFuture() throws Exception {
+		ScheduledExecutorService scheduler = Executors
+				.newScheduledThreadPool(1);
+		final AsyncFuture<Integer> future = new AsyncFuture<Integer>();
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				future.onSuccess(1);
+			}
+		}, 200, TimeUnit.MILLISECONDS);
+		assertEquals(new Integer(1), future.get(5, TimeUnit.SECONDS));
+
+		AsyncFuture<Integer> late = new AsyncFuture<Integer>();
+		try {
+			late.get(50, TimeUnit.MILLISECONDS);
+			fail("Expected a TimeoutException");
+		} catch (TimeoutException e) {
+		}
+		assertTrue(late.cancel(false));
+		late.onSuccess(2);
+		assertTrue(late.isCancelled());
+		try {
+			late.get();
+			fail("Expected a CancellationException");
+		} catch (CancellationException e) {
+		}
+		scheduler.shutdown();
+	}
+
 }
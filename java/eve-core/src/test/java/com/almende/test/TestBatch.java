@@ -0,0 +1,145 @@
+package com.almende.test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.rpc.jsonrpc.JSONRPC;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.FileStateFactory;
+import com.almende.test.agents.Test2Agent;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestBatch extends TestCase {
+
+	@Test
+	public void testBatch() throws Exception {
+		final String TESTAGENT = "batchTestAgent";
+
+		AgentHost host = AgentHost.getInstance();
+		FileStateFactory stateFactory = new FileStateFactory(".eveagents");
+		host.setStateFactory(stateFactory);
+
+		if (host.hasAgent(TESTAGENT)) {
+			host.deleteAgent(TESTAGENT);
+		}
+		Agent agent = host.createAgent(Test2Agent.class, TESTAGENT);
+
+		List<JSONRequest> requests = new ArrayList<JSONRequest>();
+		ObjectNode params = JOM.createObjectNode();
+		params.put("a", 3.0);
+		params.put("b", 4.0);
+		requests.add(new JSONRequest("add", params));
+		requests.add(new JSONRequest("subtract", params));
+		requests.add(new JSONRequest("unknownMethod", params));
+
+		List<JSONResponse> responses = agent.sendBatch(
+				URI.create("local:" + TESTAGENT), requests);
+		assertEquals(3, responses.size());
+		assertEquals(7.0, responses.get(0).getResult().asDouble());
+		assertEquals(-1.0, responses.get(1).getResult().asDouble());
+		assertNotNull(responses.get(2).getError());
+
+		// raw batch, with an invalid entry and a notification
+		String result = JSONRPC.invoke(agent,
+				"[{\"id\":1,\"method\":\"add\",\"params\":{\"a\":1,\"b\":2}},"
+						+ "{\"method\":\"add\",\"params\":{\"a\":1,\"b\":2}},"
+						+ "{\"id\":2}]", agent);
+		JsonNode node = JOM.getInstance().readTree(result);
+		assertTrue(node.isArray());
+		assertEquals(2, node.size());
+		assertEquals(3.0, node.get(0).get("result").asDouble());
+		assertTrue(node.get(1).has("error"));
+
+		// a batch of notifications only is not replied to
+		assertNull(JSONRPC.invoke(agent,
+				"[{\"method\":\"add\",\"params\":{\"a\":1,\"b\":2}}]",
+				agent));
+
+		host.deleteAgent(TESTAGENT);
+	}
+
+	@Test
+	public void testParallelBatch() throws Exception {
+		final String TESTAGENT = "parallelBatchTestAgent";
+
+		AgentHost host = AgentHost.getInstance();
+		FileStateFactory stateFactory = new FileStateFactory(".eveagents");
+		host.setStateFactory(stateFactory);
+
+		if (host.hasAgent(TESTAGENT)) {
+			host.deleteAgent(TESTAGENT);
+		}
+		Agent agent = host.createAgent(Test2Agent.class, TESTAGENT);
+
+		final ExecutorService pool = Executors.newFixedThreadPool(4);
+		final AtomicInteger executed = new AtomicInteger(0);
+		Executor executor = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				executed.incrementAndGet();
+				pool.execute(command);
+			}
+		};
+
+		// every fifth entry calls an unknown method, every seventh is invalid
+		final int count = 40;
+		int invalid = 0;
+		ArrayNode batch = JOM.createArrayNode();
+		for (int i = 0; i < count; i++) {
+			if (i % 7 == 6) {
+				batch.add(JOM.createObjectNode().put("id", i));
+				invalid++;
+				continue;
+			}
+			ObjectNode params = JOM.createObjectNode();
+			params.put("a", (double) i);
+			params.put("b", 1.0);
+			batch.add(new JSONRequest(i, i % 5 == 4 ? "unknownMethod"
+					: "add", params).getObjectNode());
+		}
+		// a notification, left out of the responses
+		ObjectNode params = JOM.createObjectNode();
+		params.put("a", 0.0);
+		params.put("b", 0.0);
+		JSONRequest notification = new JSONRequest("add", params);
+		notification.setNotification();
+		batch.add(notification.getObjectNode());
+
+		try {
+			ArrayNode responses = JSONRPC.invoke(agent, batch, null, agent,
+					executor);
+			assertEquals(count - invalid + 1, executed.get());
+			assertEquals(count, responses.size());
+			for (int i = 0; i < count; i++) {
+				JsonNode response = responses.get(i);
+				if (i % 7 == 6) {
+					assertTrue(response.has("error"));
+				} else if (i % 5 == 4) {
+					assertEquals(i, response.get("id").asInt());
+					assertTrue(response.has("error"));
+				} else {
+					assertEquals(i, response.get("id").asInt());
+					assertEquals(i + 1.0, response.get("result").asDouble());
+				}
+			}
+		} finally {
+			pool.shutdown();
+			host.deleteAgent(TESTAGENT);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.almende.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.EmbeddedStateFactory;
+import com.almende.eve.state.State;
+import com.fasterxml.jackson.databind.JsonNode;
+
+public class TestEmbeddedState extends TestCase {
+	
+	@Test
+	public void testEmbeddedState() throws Exception {
+		File folder = new File(".testStates/store");
+		if (folder.exists()) {
+			for (File file : folder.listFiles()) {
+				file.delete();
+			}
+		}
+		// small pages, so records span several pages
+		EmbeddedStateFactory sf = new EmbeddedStateFactory(folder.getPath(),
+				2, 4096);
+		for (int i = 0; i < 10; i++) {
+			State state = sf.create("agent" + i);
+			for (int j = 0; j < 100; j++) {
+				state.put("counter", j);
+			}
+			state.put("name", "agent" + i);
+			state.put("obsolete", true);
+			state.remove("obsolete");
+		}
+		sf.delete("agent3");
+		assertFalse(sf.exists("agent3"));
+		assertNull(sf.get("agent3"));
+		assertEquals(2, sf.get("agent1").size());
+		sf.close();
+		
+		// the index is rebuilt, and the superseded records compacted
+		sf = new EmbeddedStateFactory(folder.getPath(), 2, 4096);
+		int count = 0;
+		for (Iterator<String> iter = sf.getAllAgentIds(); iter.hasNext(); iter
+				.next()) {
+			count++;
+		}
+		assertEquals(9, count);
+		assertFalse(sf.exists("agent3"));
+		State state = sf.get("agent7");
+		assertEquals(Integer.valueOf(99), state.get("counter", Integer.class));
+		assertEquals("agent7", state.get("name", String.class));
+		assertFalse(state.containsKey("obsolete"));
+		assertTrue(new File(folder, "shard-0.dat").length() <= 4096);
+		
+		// a put returns the value it replaces
+		JsonNode previous = (JsonNode) state.put("name",
+				JOM.getInstance().valueToTree("renamed"));
+		assertEquals("agent7", previous.asText());
+		sf.close();
+		
+		// the shard count and page size are fixed
+		try {
+			new EmbeddedStateFactory(folder.getPath(), 4, 4096);
+			fail("Expected an IOException");
+		} catch (IOException e) {
+		}
+		try {
+			new EmbeddedStateFactory(folder.getPath(), 2, 2048);
+			fail("Expected an IOException");
+		} catch (IOException e) {
+		}
+		sf = new EmbeddedStateFactory(folder.getPath(), 2, 4096);
+		assertEquals("renamed", sf.get("agent7").get("name", String.class));
+		sf.close();
+	}
+	
+	@Test
+	public void testCompaction() throws Exception {
+		File folder = new File(".testStates/store-compaction");
+		if (folder.exists()) {
+			for (File file : folder.listFiles()) {
+				file.delete();
+			}
+		}
+		EmbeddedStateFactory sf = new EmbeddedStateFactory(folder.getPath(),
+				1, 4096);
+		State state = sf.create("agent");
+		state.put("name", "agent");
+		// compacted in the background while the agent keeps changing
+		for (int j = 0; j < 2000; j++) {
+			state.put("counter", j);
+			assertEquals(Integer.valueOf(j), state.get("counter", Integer.class));
+		}
+		File shard = new File(folder, "shard-0.dat");
+		for (int i = 0; i < 100 && shard.length() > 4096; i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(shard.length() <= 4096);
+		assertEquals("agent", state.get("name", String.class));
+		sf.close();
+		
+		sf = new EmbeddedStateFactory(folder.getPath(), 1, 4096);
+		state = sf.get("agent");
+		assertEquals(Integer.valueOf(1999), state.get("counter", Integer.class));
+		assertEquals("agent", state.get("name", String.class));
+		sf.close();
+	}
+}
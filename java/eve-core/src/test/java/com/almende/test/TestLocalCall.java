@@ -0,0 +1,107 @@
+package com.almende.test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.CopyPolicy;
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
+import com.almende.eve.state.FileStateFactory;
+import com.almende.test.agents.Test2Agent;
+import com.almende.test.agents.entity.Person;
+import com.almende.util.TypeUtil;
+
+public class TestLocalCall extends TestCase {
+
+	@Test
+	public void testLocalCall() throws Exception {
+		AgentHost host = AgentHost.getInstance();
+		host.setStateFactory(new FileStateFactory(".eveagents"));
+		if (host.hasAgent("localCaller")) {
+			host.deleteAgent("localCaller");
+		}
+		if (host.hasAgent("localCallee")) {
+			host.deleteAgent("localCallee");
+		}
+		Test2Agent caller = host.createAgent(Test2Agent.class, "localCaller");
+		host.createAgent(Test2Agent.class, "localCallee");
+		URI callee = URI.create("local:localCallee");
+
+		CopyPolicy original = host.getCopyPolicy();
+		try {
+			for (CopyPolicy policy : CopyPolicy.values()) {
+				host.setCopyPolicy(policy);
+
+				Person person = new Person();
+				person.setName("Ludo");
+				person.getMarks().add(7.0);
+				person.getMarks().add(8.5);
+				Map<String, Object> params = new HashMap<String, Object>();
+				params.put("person", person);
+				assertEquals("Ludo",
+						caller.send(callee, "getName", params, String.class));
+				assertEquals(15.5, caller.send(callee, "getMarksAvg", params,
+						Double.class));
+
+				// values of another type are converted
+				params = new HashMap<String, Object>();
+				params.put("a", 2);
+				params.put("b", 3);
+				assertEquals(5.0,
+						caller.send(callee, "add", params, Double.class));
+
+				List<Double> values = new ArrayList<Double>();
+				values.add(1.0);
+				values.add(2.0);
+				params = new HashMap<String, Object>();
+				params.put("values", values);
+				assertEquals(3.0,
+						caller.send(callee, "sum", params, Double.class));
+
+				Map<String, List<Double>> result = caller.send(callee,
+						"complexResult",
+						new TypeUtil<Map<String, List<Double>>>() {
+						});
+				assertEquals(1.1, result.get("result").get(0));
+
+				// elements of another type are converted as well
+				List<Object> mixed = new ArrayList<Object>();
+				mixed.add("1.5");
+				mixed.add(2);
+				params = new HashMap<String, Object>();
+				params.put("values", mixed);
+				assertEquals(3.5,
+						caller.send(callee, "sum", params, Double.class));
+
+				// an explicit null is passed, a missing param is an error
+				params = new HashMap<String, Object>();
+				params.put("status", null);
+				assertNull(caller.send(callee, "testEnum", params,
+						String.class));
+				try {
+					caller.send(callee, "testEnum",
+							new HashMap<String, Object>(), String.class);
+					fail("Expected a JSONRPCException");
+				} catch (JSONRPCException e) {
+				}
+
+				try {
+					caller.send(callee, "throwJSONRPCException");
+					fail("Expected a JSONRPCException");
+				} catch (JSONRPCException e) {
+				}
+			}
+		} finally {
+			host.setCopyPolicy(original);
+			host.deleteAgent("localCaller");
+			host.deleteAgent("localCallee");
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.almende.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.state.LogState;
+import com.almende.eve.state.LogStateFactory;
+import com.almende.eve.state.State;
+
+public class TestLogState extends TestCase {
+	
+	@Test
+	public void testLogState() throws Exception {
+		LogStateFactory sf = new LogStateFactory(".testStates/log");
+		String agentId = "LogStateRun";
+		if (sf.exists(agentId)) sf.delete(agentId);
+		State state = sf.create(agentId);
+		state.put("test", "test");
+		state.put("test2", "test2");
+		state.put("test", "test1");
+		state.remove("test2");
+		assertEquals(1, state.size());
+		state.destroy();
+		
+		// rebuilt from the log, ignoring a torn record at the end
+		FileOutputStream out = new FileOutputStream(new File(
+				".testStates/log/" + agentId), true);
+		out.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+		out.close();
+		State reopened = new LogStateFactory(".testStates/log").get(agentId);
+		assertEquals("test1", reopened.get("test", String.class));
+		assertFalse(reopened.containsKey("test2"));
+		reopened.put("test3", "test3");
+		reopened.destroy();
+		sf.delete(agentId);
+	}
+	
+	@Test
+	public void testCompaction() throws Exception {
+		File file = new File(".testStates/log/LogStateCompaction");
+		file.getParentFile().mkdirs();
+		file.delete();
+		LogState state = new LogState("LogStateCompaction", file, null);
+		for (int i = 0; i < 1000; i++) {
+			state.put("counter", i);
+		}
+		state.put("name", "test");
+		long before = file.length();
+		state.compact();
+		assertTrue(file.length() < before / 100);
+		state.put("counter", 1000);
+		state.destroy();
+		
+		State reopened = new LogState("LogStateCompaction", file, null);
+		assertEquals(Integer.valueOf(1000),
+				reopened.get("counter", Integer.class));
+		assertEquals("test", reopened.get("name", String.class));
+		reopened.destroy();
+		file.delete();
+	}
+	
+	@Test
+	public void testCorruptRecord() throws Exception {
+		File file = new File(".testStates/log/LogStateCorrupt");
+		file.getParentFile().mkdirs();
+		file.delete();
+		LogState state = new LogState("LogStateCorrupt", file, null);
+		state.put("first", "first");
+		long corrupt = file.length() + 12;
+		state.put("second", "second");
+		state.put("third", "third");
+		state.destroy();
+		
+		// a corrupt record in the middle only loses that record
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(corrupt);
+		raf.write('X');
+		raf.close();
+		State reopened = new LogState("LogStateCorrupt", file, null);
+		assertEquals("first", reopened.get("first", String.class));
+		assertFalse(reopened.containsKey("second"));
+		assertEquals("third", reopened.get("third", String.class));
+		reopened.destroy();
+		file.delete();
+	}
+	
+	@Test
+	public void testDestroy() throws Exception {
+		LogStateFactory sf = new LogStateFactory(".testStates/log");
+		String agentId = "LogStateDestroy";
+		if (sf.exists(agentId)) sf.delete(agentId);
+		LogState state = (LogState) sf.create(agentId);
+		state.put("test", "test");
+		state.destroy();
+		
+		// the log is released, and not reopened by a compaction
+		state.compact();
+		LogState other = new LogState(agentId, new File(".testStates/log/"
+				+ agentId), null);
+		other.put("test", "other");
+		other.destroy();
+		
+		// while the destroyed state is around, it is the state of its agent
+		assertSame(state, sf.get(agentId));
+		
+		// a change reloads the log first
+		state.put("test2", "test2");
+		assertEquals("other", state.get("test", String.class));
+		assertSame(state, sf.get(agentId));
+		state.destroy();
+		sf.delete(agentId);
+	}
+}
@@ -0,0 +1,207 @@
+package com.almende.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.Agent;
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.agent.AgentSignal;
+import com.almende.eve.rpc.RequestParams;
+import com.almende.eve.rpc.annotation.Access;
+import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.jsonrpc.JSONRPCException;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.eve.state.FileStateFactory;
+import com.almende.test.agents.Test2Agent;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestMailbox extends TestCase {
+
+	@Test
+	public void testMailbox() throws Exception {
+		final String TESTAGENT = "mailboxTestAgent";
+
+		AgentHost host = AgentHost.getInstance();
+		FileStateFactory stateFactory = new FileStateFactory(".eveagents");
+		host.setStateFactory(stateFactory);
+		host.setMailboxMode(true);
+		try {
+			if (host.hasAgent(TESTAGENT)) {
+				host.deleteAgent(TESTAGENT);
+			}
+			host.createAgent(Test2Agent.class, TESTAGENT);
+
+			// concurrent increments are executed one at a time
+			List<Future<JSONResponse>> futures = new ArrayList<Future<JSONResponse>>();
+			for (int i = 0; i < 50; i++) {
+				futures.add(host.receiveAsync(TESTAGENT, new JSONRequest(
+						"increment", JOM.createObjectNode()),
+						new RequestParams()));
+			}
+			double max = 0;
+			for (Future<JSONResponse> future : futures) {
+				max = Math.max(max, future.get().getResult().asDouble());
+			}
+			assertEquals(50.0, max);
+
+			// a synchronous call back into the agent itself does not deadlock
+			Agent agent = host.getAgent(TESTAGENT);
+			ObjectNode params = JOM.createObjectNode();
+			params.put("message", "hi");
+			ObjectNode callParams = JOM.createObjectNode();
+			callParams.put("method", "ping");
+			callParams.put("params", params);
+			String result = agent.send(agent.getFirstUrl(), "callMyself",
+					callParams, String.class);
+			assertEquals("hi", result);
+
+			host.deleteAgent(TESTAGENT);
+		} finally {
+			host.setMailboxMode(false);
+		}
+	}
+
+	@Test
+	public void testSynchronousCalls() throws Exception {
+		final int COUNT = 6;
+
+		AgentHost host = AgentHost.getInstance();
+		FileStateFactory stateFactory = new FileStateFactory(".eveagents");
+		host.setStateFactory(stateFactory);
+		host.setMailboxMode(true);
+		// fewer threads than agents waiting for each other
+		host.setExecutorService(Executors.newFixedThreadPool(2));
+		try {
+			List<String> urls = new ArrayList<String>();
+			for (int i = 0; i < COUNT; i++) {
+				String id = "mailboxCallTestAgent" + i;
+				if (host.hasAgent(id)) {
+					host.deleteAgent(id);
+				}
+				urls.add(host.createAgent(Test2Agent.class, id).getFirstUrl()
+						.toString());
+			}
+
+			ObjectNode ping = JOM.createObjectNode();
+			ping.put("message", "hi");
+			List<Future<JSONResponse>> futures = new ArrayList<Future<JSONResponse>>();
+			for (int i = 0; i < COUNT; i++) {
+				// every agent calls the next one, which calls the agent
+				// after it, while that one is busy calling as well
+				ObjectNode inner = JOM.createObjectNode();
+				inner.put("url", urls.get((i + 2) % COUNT));
+				inner.put("method", "ping");
+				inner.put("params", ping);
+				ObjectNode params = JOM.createObjectNode();
+				params.put("url", urls.get((i + 1) % COUNT));
+				params.put("method", "callOtherAgent");
+				params.put("params", inner);
+				futures.add(host.receiveAsync("mailboxCallTestAgent" + i,
+						new JSONRequest("callOtherAgent", params),
+						new RequestParams()));
+			}
+			for (int i = 0; i < COUNT; i++) {
+				// two agents calling each other at the same time
+				ObjectNode inner = JOM.createObjectNode();
+				inner.put("url", urls.get(i));
+				inner.put("method", "ping");
+				inner.put("params", ping);
+				ObjectNode params = JOM.createObjectNode();
+				params.put("url", urls.get(i ^ 1));
+				params.put("method", "callOtherAgent");
+				params.put("params", inner);
+				futures.add(host.receiveAsync("mailboxCallTestAgent" + i,
+						new JSONRequest("callOtherAgent", params),
+						new RequestParams()));
+			}
+			for (Future<JSONResponse> future : futures) {
+				JSONResponse response = future.get(20, TimeUnit.SECONDS);
+				assertNull(response.getError());
+				assertEquals("hi", response.getResult().asText());
+			}
+
+			for (int i = 0; i < COUNT; i++) {
+				host.deleteAgent("mailboxCallTestAgent" + i);
+			}
+		} finally {
+			host.setMailboxMode(false);
+			host.setExecutorFactory(host.getExecutorFactory());
+		}
+	}
+
+	@Test
+	public void testSignals() throws Exception {
+		final String TESTAGENT = "mailboxSignalTestAgent";
+
+		AgentHost host = AgentHost.getInstance();
+		FileStateFactory stateFactory = new FileStateFactory(
+				".eveagents_mailboxSignals");
+		host.setStateFactory(stateFactory);
+		host.setMailboxMode(true);
+		try {
+			if (host.hasAgent(TESTAGENT)) {
+				host.deleteAgent(TESTAGENT);
+			}
+			host.createAgent(SerialAgent.class, TESTAGENT);
+			SerialAgent.overlaps.set(0);
+
+			// signals are queued with the calls, never run next to them
+			List<Future<JSONResponse>> futures = new ArrayList<Future<JSONResponse>>();
+			for (int i = 0; i < 20; i++) {
+				futures.add(host.receiveAsync(TESTAGENT, new JSONRequest(
+						"work", JOM.createObjectNode()), new RequestParams()));
+				host.signalAgents(new AgentSignal<Void>("work"));
+			}
+			for (Future<JSONResponse> future : futures) {
+				assertNull(future.get(20, TimeUnit.SECONDS).getError());
+			}
+			assertEquals(0, SerialAgent.overlaps.get());
+
+			host.deleteAgent(TESTAGENT);
+		} finally {
+			host.setMailboxMode(false);
+		}
+	}
+
+	/**
+	 * Counts the calls and signals which run at the same time as another
+	 */
+	@Access(AccessType.PUBLIC)
+	public static class SerialAgent extends Agent {
+		static final AtomicInteger	overlaps	= new AtomicInteger();
+		private final AtomicInteger	running		= new AtomicInteger();
+
+		public void work() throws InterruptedException {
+			if (running.incrementAndGet() > 1) {
+				overlaps.incrementAndGet();
+			}
+			Thread.sleep(2);
+			running.decrementAndGet();
+		}
+
+		@Override
+		public void signalAgent(AgentSignal<?> event)
+				throws JSONRPCException, IOException {
+			if ("work".equals(event.getEvent())) {
+				try {
+					work();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return;
+			}
+			super.signalAgent(event);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package com.almende.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.annotation.Namespace;
+import com.almende.eve.rpc.annotation.Access;
+import com.almende.eve.rpc.annotation.AccessType;
+import com.almende.eve.rpc.annotation.Name;
+import com.almende.eve.rpc.jsonrpc.JSONRPC;
+import com.almende.eve.rpc.jsonrpc.JSONRequest;
+import com.almende.eve.rpc.jsonrpc.JSONResponse;
+import com.almende.eve.rpc.jsonrpc.jackson.JOM;
+import com.almende.util.NamespaceUtil;
+import com.almende.util.NamespaceUtil.CallTuple;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+public class TestNamespace extends TestCase {
+
+	@Access(AccessType.PUBLIC)
+	public static class Leaf {
+		private final String	name;
+
+		public Leaf(String name) {
+			this.name = name;
+		}
+
+		public String hello(@Name("msg") String msg) {
+			return name + ": " + msg;
+		}
+	}
+
+	public static class OtherLeaf extends Leaf {
+		public OtherLeaf() {
+			super("other");
+		}
+	}
+
+	@Access(AccessType.PUBLIC)
+	public static class Branch {
+		private Leaf	leaf	= new Leaf("leaf");
+
+		@Namespace("leaf")
+		public Leaf getLeaf() {
+			return leaf;
+		}
+
+		public String hello(@Name("msg") String msg) {
+			return "branch: " + msg;
+		}
+	}
+
+	@Access(AccessType.PUBLIC)
+	public static class Root {
+		private Branch	branch	= new Branch();
+		private Branch	empty	= null;
+
+		@Namespace("branch")
+		public Branch getBranch() {
+			return branch;
+		}
+
+		@Namespace("empty")
+		public Branch getEmpty() {
+			return empty;
+		}
+	}
+
+	@Test
+	public void testNestedNamespaces() throws Exception {
+		Root root = new Root();
+		NamespaceUtil.prepare(root);
+
+		CallTuple tuple = NamespaceUtil.get(root, "branch.leaf.hello");
+		assertSame(root.branch.leaf, tuple.getDestination());
+		assertEquals("hello", tuple.getMethodName());
+
+		tuple = NamespaceUtil.get(root, "branch.hello");
+		assertSame(root.branch, tuple.getDestination());
+		assertEquals("hello", tuple.getMethodName());
+
+		tuple = NamespaceUtil.get(root, "hello");
+		assertSame(root, tuple.getDestination());
+
+		// resolved again on another instance, and on another class
+		Root other = new Root();
+		assertSame(other.branch.leaf,
+				NamespaceUtil.get(other, "branch.leaf.hello").getDestination());
+		other.branch.leaf = new OtherLeaf();
+		assertSame(other.branch.leaf,
+				NamespaceUtil.get(other, "branch.leaf.hello").getDestination());
+
+		try {
+			NamespaceUtil.get(root, "branch.twig.hello");
+			fail("Expected an IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+		try {
+			NamespaceUtil.get(root, "empty.leaf.hello");
+			fail("Expected an IllegalStateException");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	@Test
+	public void testNamespacedCall() throws Exception {
+		Root root = new Root();
+		ObjectNode params = JOM.createObjectNode();
+		params.put("msg", "hi");
+		JSONResponse response = JSONRPC.invoke(root, new JSONRequest(
+				"branch.leaf.hello", params), null);
+		assertNull(response.getError());
+		assertEquals("leaf: hi", response.getResult().asText());
+
+		response = JSONRPC.invoke(root, new JSONRequest("branch.hello",
+				params), null);
+		assertEquals("branch: hi", response.getResult().asText());
+	}
+
+	@Test
+	public void testDescription() throws Exception {
+		Root root = new Root();
+		List<String> methods = getMethodNames(JSONRPC.describe(root, null));
+		assertTrue(methods.contains("branch.leaf.hello"));
+		assertFalse(methods.contains("empty.hello"));
+
+		// not cached while a namespace is missing
+		root.empty = new Branch();
+		methods = getMethodNames(JSONRPC.describe(root, null));
+		assertTrue(methods.contains("empty.hello"));
+		assertTrue(methods.contains("empty.leaf.hello"));
+	}
+
+	private static List<String> getMethodNames(List<Object> description) {
+		List<String> names = new ArrayList<String>();
+		for (Object method : description) {
+			names.add((String) ((Map<?, ?>) method).get("method"));
+		}
+		return names;
+	}
+}
@@ -0,0 +1,40 @@
+package com.almende.test;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.util.ObjectCache;
+
+public class TestObjectCache extends TestCase {
+
+	@Test
+	public void testObjectCache() throws Exception {
+		long hits = ObjectCache.getHits();
+		long misses = ObjectCache.getMisses();
+		long evictions = ObjectCache.getEvictions();
+
+		ObjectCache.put("cacheTest_hot", "hot");
+		assertEquals("hot", ObjectCache.get("cacheTest_hot", String.class));
+		assertNull(ObjectCache.get("cacheTest_hot", Integer.class));
+		assertEquals(hits + 1, ObjectCache.getHits());
+		assertEquals(misses + 1, ObjectCache.getMisses());
+
+		// overflow the cache, keeping one entry in use
+		for (int i = 0; i < 3000; i++) {
+			ObjectCache.put("cacheTest_" + i, i);
+			ObjectCache.get("cacheTest_hot", String.class);
+		}
+		assertTrue(ObjectCache.size() <= 1000);
+		assertTrue(ObjectCache.getEvictions() > evictions);
+		assertEquals("hot", ObjectCache.get("cacheTest_hot", String.class));
+		assertEquals(Integer.valueOf(2999),
+				ObjectCache.get("cacheTest_2999", Integer.class));
+
+		ObjectCache.delete("cacheTest_hot");
+		assertNull(ObjectCache.get("cacheTest_hot", String.class));
+		for (int i = 0; i < 3000; i++) {
+			ObjectCache.delete("cacheTest_" + i);
+		}
+	}
+}
@@ -1,9 +1,13 @@
 package com.almende.test;
 
+import java.lang.ref.WeakReference;
 import java.net.URI;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -85,4 +89,99 @@ public class TestProxy extends TestCase {
 */		
 	}
 
+	@Test
+	public void testAsyncProxy() throws Exception {
+		AgentHost factory = AgentHost.getInstance();
+		FileStateFactory stateFactory = new FileStateFactory(".eveagents");
+		factory.setStateFactory(stateFactory);
+		if (!factory.hasAgent("TestAgent")) {
+			factory.createAgent(TestAgent.class, "TestAgent");
+		}
+		
+		// completion
+		AsyncProxy<TestInterface> aProxy = factory.createAsyncAgentProxy(null,
+				URI.create("local:TestAgent"), TestInterface.class);
+		Future<?> res = aProxy.call("helloWorld", "async");
+		assertEquals("Hello world, you said: async",
+				res.get(5, TimeUnit.SECONDS));
+		assertTrue(res.isDone());
+		assertFalse(res.cancel(false));
+		
+		// failure: the error of the receiver is the cause
+		AsyncProxy<TestInterface> missing = factory.createAsyncAgentProxy(
+				null, URI.create("local:NoSuchTestAgent"), TestInterface.class);
+		Future<?> failed = missing.call("helloWorld", "anyone?");
+		try {
+			failed.get(5, TimeUnit.SECONDS);
+			fail("Expected an ExecutionException");
+		} catch (ExecutionException e) {
+			assertNotNull(e.getCause());
+		}
+		assertTrue(failed.isDone());
+		assertFalse(failed.isCancelled());
+		
+		try {
+			aProxy.call("noSuchMethod");
+			fail("Expected a NoSuchMethodException");
+		} catch (NoSuchMethodException e) {
+		}
+		
+		// cancellation: a late result is ignored
+		Future<?> slow = aProxy.call("testSleep", 500);
+		assertTrue(slow.cancel(false));
+		assertTrue(slow.isCancelled());
+		assertTrue(slow.isDone());
+		try {
+			slow.get();
+			fail("Expected a CancellationException");
+		} catch (CancellationException e) {
+		}
+		Thread.sleep(700);
+		assertTrue(slow.isCancelled());
+		try {
+			slow.get();
+			fail("Expected a CancellationException");
+		} catch (CancellationException e) {
+		}
+	}
+	
+	@Test
+	public void testProxyReuse() throws Exception {
+		AgentHost factory = AgentHost.getInstance();
+		FileStateFactory stateFactory = new FileStateFactory(".eveagents");
+		factory.setStateFactory(stateFactory);
+		if (!factory.hasAgent("TestAgent")) {
+			factory.createAgent(TestAgent.class, "TestAgent");
+		}
+		if (factory.hasAgent("TestProxySender")) {
+			factory.deleteAgent("TestProxySender");
+		}
+		TestAgent sender = factory.createAgent(TestAgent.class,
+				"TestProxySender");
+		URI url = URI.create("local:TestAgent");
+		
+		TestInterface proxy = factory.createAgentProxy(sender, url,
+				TestInterface.class);
+		assertSame(proxy, factory.createAgentProxy(sender, url,
+				TestInterface.class));
+		assertNotSame(proxy, factory.createAgentProxy(sender,
+				URI.create("local:TestAgent2"), TestInterface.class));
+		assertNotSame(proxy,
+				factory.createAgentProxy(null, url, TestInterface.class));
+		assertSame(factory.createAgentProxy(null, url, TestInterface.class),
+				factory.createAgentProxy(null, url, TestInterface.class));
+		
+		// a cached proxy does not keep its sender alive
+		WeakReference<TestAgent> ref = new WeakReference<TestAgent>(sender);
+		sender = null;
+		for (int i = 0; i < 50 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertNull(ref.get());
+		assertEquals("Hello world, you said: still there?",
+				proxy.helloWorld("still there?"));
+		factory.deleteAgent("TestProxySender");
+	}
+	
 }
@@ -1,10 +1,14 @@
 package com.almende.test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import junit.framework.TestCase;
@@ -118,5 +122,142 @@ public class TestStateLocking extends TestCase {
 		State fc = sf.create(agentId);
 		testRun(fc);
 	}
+	@Test
+	public void testWriteBackFileState() throws Exception{
+		File dir = new File(".testStates");
+		if ((!dir.exists() && !dir.mkdir()) || !dir.isDirectory()) fail("Couldn't create .testStates folder");
+		// flushed explicitly only
+		FileStateFactory sf = new FileStateFactory(".testStates",true,3600000);
+		
+		String agentId = "WriteBackFileStateRun";
+		if (sf.exists(agentId)) sf.delete(agentId);
+		State fc = sf.create(agentId);
+		testRun(fc);
+		
+		// the changes are kept in memory until flushed
+		State other = new FileStateFactory(".testStates",true).get(agentId);
+		assertNull(other.get("test2",String.class));
+		fc.destroy();
+		assertEquals("test2",other.get("test2",String.class));
+		
+		// changes of another process are read again
+		other.put("test2", "changed");
+		assertEquals("changed",fc.get("test2",String.class));
+		sf.delete(agentId);
+	}
+	@Test
+	public void testParallelReads() throws Exception{
+		File dir = new File(".testStates");
+		if ((!dir.exists() && !dir.mkdir()) || !dir.isDirectory()) fail("Couldn't create .testStates folder");
+		FileStateFactory sf = new FileStateFactory(".testStates",true);
+		
+		String agentId = "ParallelReadsRun";
+		if (sf.exists(agentId)) sf.delete(agentId);
+		final State state = sf.create(agentId);
+		state.put("test", 0);
+		
+		// readers share the file lock, a writer takes it exclusively
+		final AtomicInteger failures = new AtomicInteger();
+		final long end = System.currentTimeMillis() + 500;
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		for (int i = 0; i < 8; i++) {
+			final boolean writer = i == 0;
+			pool.execute(new Runnable(){
+				@Override
+				public void run() {
+					int count = 0;
+					while (System.currentTimeMillis() < end) {
+						if (writer) {
+							state.put("test", ++count);
+						} else if (state.get("test",Integer.class) == null) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(0, failures.get());
+		sf.delete(agentId);
+	}
+	@Test
+	public void testParallelWriteBackReads() throws Exception{
+		File dir = new File(".testStates");
+		if ((!dir.exists() && !dir.mkdir()) || !dir.isDirectory()) fail("Couldn't create .testStates folder");
+		FileStateFactory sf = new FileStateFactory(".testStates",true,3600000);
+		
+		String agentId = "ParallelWriteBackReadsRun";
+		if (sf.exists(agentId)) sf.delete(agentId);
+		final State state = sf.create(agentId);
+		StringBuilder json = new StringBuilder("{\"test\":\"test\"");
+		for (int i = 0; i < 500; i++) {
+			json.append(",\"key" + i + "\":" + i);
+		}
+		final byte[][] versions = new byte[][]{
+				(json + "}").getBytes("UTF-8"),
+				(json + ",\"other\":1}").getBytes("UTF-8")};
+		
+		// another process replaces the file, so the readers reload it
+		final File file = new File(".testStates/" + agentId);
+		final File tmp = new File(".testStates/." + agentId + ".tmp");
+		FileOutputStream init = new FileOutputStream(tmp);
+		init.write(versions[0]);
+		init.close();
+		assertTrue(tmp.renameTo(file));
+		final AtomicInteger failures = new AtomicInteger();
+		final long end = System.currentTimeMillis() + 1000;
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		for (int i = 0; i < 8; i++) {
+			final boolean writer = i == 0;
+			pool.execute(new Runnable(){
+				@Override
+				public void run() {
+					int count = 0;
+					while (System.currentTimeMillis() < end) {
+						if (writer) {
+							try {
+								FileOutputStream out = new FileOutputStream(tmp);
+								out.write(versions[++count % 2]);
+								out.close();
+								tmp.renameTo(file);
+							} catch (IOException e) {
+								failures.incrementAndGet();
+							}
+						} else if (!"test".equals(state.get("test",String.class))
+								|| state.size() < 501) {
+							failures.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(0, failures.get());
+		sf.close();
+		sf.delete(agentId);
+	}
+	@Test
+	public void testMappedFileState() throws Exception{
+		File dir = new File(".testStates");
+		if ((!dir.exists() && !dir.mkdir()) || !dir.isDirectory()) fail("Couldn't create .testStates folder");
+		for (boolean json : new boolean[]{true, false}) {
+			FileStateFactory sf = new FileStateFactory(".testStates",json);
+			sf.setMapped(true);
+			
+			String agentId = "MappedFileStateRun" + json;
+			if (sf.exists(agentId)) sf.delete(agentId);
+			State fc = sf.create(agentId);
+			testRun(fc);
+			
+			// a write changing the file size is seen through a new mapping
+			fc.put("test2", "a longer value than before");
+			assertEquals("a longer value than before",fc.get("test2",String.class));
+			fc.put("test2", "short");
+			assertEquals("short",fc.get("test2",String.class));
+			sf.delete(agentId);
+		}
+	}
 
 }
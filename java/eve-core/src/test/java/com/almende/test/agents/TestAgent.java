@@ -22,6 +22,15 @@ public class TestAgent extends Agent implements TestInterface {
 		System.out.println("testVoid called!");
 	}
 
+	@Override
+	public void testSleep(int millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
 	@Override
 	public int testPrimitive(int num, Integer num2) {
 		return num+num2;
@@ -10,6 +10,7 @@ import com.almende.test.agents.entity.Person;
 public interface TestInterface extends AgentInterface {
 	public String helloWorld(@Name("msg") String msg);
 	public void testVoid();
+	public void testSleep(@Name("millis") int millis);
 	public int testPrimitive(@Name("num") int num,@Name("num2") Integer num2);
 	public HashMap<String, List<Person>> complexResult();
 }
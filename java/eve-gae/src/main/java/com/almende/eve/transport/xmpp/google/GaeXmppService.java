@@ -10,6 +10,7 @@ import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.JSONResponse;
 import com.almende.eve.transport.AsyncCallback;
+import com.almende.eve.transport.AsyncFuture;
 import com.almende.eve.transport.TransportService;
 import com.google.apphosting.api.ApiProxy;
 import com.google.apphosting.api.ApiProxy.Environment;
@@ -112,6 +113,34 @@ public class GaeXmppService implements TransportService {
 				"JSONRequest request, String callback) instead.");
 	}
 
+	@Override
+	public AsyncFuture<JSONResponse> sendAsync(String senderId,
+			String receiver, JSONRequest request)
+			throws UnsupportedOperationException {
+		throw new UnsupportedOperationException("AsyncFuture<JSONResponse> sendAsync(String senderId, " +
+				"String receiver, JSONRequest request) not supported by GaeXmppService. " +
+				"Use sendAsync(String senderId, String receiver, " +
+				"JSONRequest request, String callback) instead.");
+	}
+
+	@Override
+	public void sendNotification(String senderId, String receiver,
+			JSONRequest request) throws JSONRPCException {
+		throw new JSONRPCException("void sendNotification(String senderId, " +
+				"String receiver, JSONRequest request) not supported by GaeXmppService. " +
+				"Use sendAsync(String senderId, String receiver, " +
+				"JSONRequest request, String callback) instead.");
+	}
+
+	@Override
+	public List<JSONResponse> sendBatch(String senderId, String receiver,
+			List<JSONRequest> requests) throws JSONRPCException {
+		throw new JSONRPCException("List<JSONResponse> sendBatch(String senderId, " +
+				"String receiver, List<JSONRequest> requests) not supported by GaeXmppService. " +
+				"Use sendAsync(String senderId, String receiver, " +
+				"JSONRequest request, String callback) instead.");
+	}
+
 	@Override
 	public List<String> getProtocols() {
 		return protocols;
@@ -0,0 +1,56 @@
+package com.almende.eve.executor.loom;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.executor.ExecutorFactory;
+
+/**
+ * ExecutorFactory running all asynchronous work of the AgentHost on virtual
+ * threads (Java 21+). Every message gets its own virtual thread, so blocking
+ * agent calls (synchronous sends, file locks, HTTP fetches) only park their
+ * virtual thread instead of occupying a pool thread.
+ * 
+ * Configured in eve.yaml:
+ * 
+ * <pre>
+ * executor:
+ *   class: LoomExecutorFactory
+ * </pre>
+ */
+public class LoomExecutorFactory implements ExecutorFactory {
+	private final ThreadFactory	workers;
+	private final ThreadFactory	timers;
+	
+	/**
+	 * This constructor is called when constructed by the AgentHost
+	 * 
+	 * @param agentHost
+	 * @param params
+	 *            Available parameters: {String} name, the prefix of the
+	 *            thread names (default "eve-virtual-")
+	 */
+	public LoomExecutorFactory(AgentHost agentHost, Map<String, Object> params) {
+		String name = "eve-virtual-";
+		if (params != null && params.get("name") != null) {
+			name = (String) params.get("name");
+		}
+		workers = Thread.ofVirtual().name(name, 0).factory();
+		timers = Thread.ofVirtual().name(name + "timer-", 0).factory();
+	}
+	
+	@Override
+	public ExecutorService createExecutorService() {
+		return Executors.newThreadPerTaskExecutor(workers);
+	}
+	
+	@Override
+	public ScheduledExecutorService createScheduledExecutorService(
+			int poolSize) {
+		return Executors.newScheduledThreadPool(poolSize, timers);
+	}
+}
@@ -0,0 +1,95 @@
+package com.almende.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import com.almende.eve.agent.AgentHost;
+import com.almende.eve.executor.BoundedExecutorFactory;
+import com.almende.eve.executor.ExecutorFactory;
+import com.almende.eve.executor.loom.LoomExecutorFactory;
+
+public class TestLoomExecutor extends TestCase {
+	private static final Callable<String>	THREAD	= new Callable<String>() {
+														@Override
+														public String call() {
+															Thread thread = Thread
+																	.currentThread();
+															return thread
+																	.isVirtual() ? thread
+																	.getName()
+																	: null;
+														}
+													};
+
+	@Test
+	public void testVirtualThreads() throws Exception {
+		Map<String, Object> params = new HashMap<String, Object>();
+		params.put("name", "test-virtual-");
+		ExecutorFactory factory = new LoomExecutorFactory(
+				AgentHost.getInstance(), params);
+
+		ExecutorService executor = factory.createExecutorService();
+		try {
+			String name = executor.submit(THREAD).get();
+			assertNotNull(name);
+			assertTrue(name.startsWith("test-virtual-"));
+
+			// blocking tasks only park their virtual thread: far more of
+			// them run at once than a bounded pool has threads
+			final int count = 2000;
+			long start = System.currentTimeMillis();
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int i = 0; i < count; i++) {
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws InterruptedException {
+						Thread.sleep(200);
+						return null;
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+			long duration = System.currentTimeMillis() - start;
+			assertTrue("took " + duration + " ms", duration < 10000);
+		} finally {
+			executor.shutdown();
+		}
+
+		ScheduledExecutorService timer = factory
+				.createScheduledExecutorService(1);
+		try {
+			String name = timer.schedule(THREAD, 10, TimeUnit.MILLISECONDS)
+					.get(5, TimeUnit.SECONDS);
+			assertNotNull(name);
+			assertTrue(name.startsWith("test-virtual-timer-"));
+		} finally {
+			timer.shutdown();
+		}
+	}
+
+	@Test
+	public void testHostExecutor() throws Exception {
+		AgentHost host = AgentHost.getInstance();
+		host.setExecutorFactory(new LoomExecutorFactory(host, null));
+		try {
+			String name = host.getExecutorService().submit(THREAD).get();
+			assertNotNull(name);
+			assertTrue(name.startsWith("eve-virtual-"));
+		} finally {
+			host.setExecutorFactory(new BoundedExecutorFactory(host, null));
+		}
+	}
+}
@@ -74,6 +74,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.joda.time.DateTime;
@@ -98,6 +102,7 @@ import com.almende.eve.rpc.jsonrpc.JSONRPCException;
 import com.almende.eve.rpc.jsonrpc.JSONRequest;
 import com.almende.eve.rpc.jsonrpc.jackson.JOM;
 import com.almende.eve.state.State;
+import com.almende.eve.transport.AsyncFuture;
 import com.almende.eve.transport.TransportService;
 import com.almende.util.IntervalsUtil;
 import com.almende.util.TypeUtil;
@@ -117,6 +122,8 @@ public class MeetingAgent extends Agent {
 	private final Double WEIGHT_PREFERRED_INTERVAL = 0.1;
 	// private final Double WEIGHT_UNDESIRED_INTERVAL = -0.1;
 	private final Double WEIGHT_DELAY_PER_DAY = -0.1;
+	private static final long BUSY_TIMEOUT = 30000; // max time in milliseconds
+													// to wait for busy intervals
 
 	/**
 	 * Convenience method to quickly set a new activity. 
@@ -1106,18 +1113,29 @@ public class MeetingAgent extends Agent {
 	}
 
 	/**
-	 * Update the busy intervals of all attendees, and merge the results
+	 * Update the busy intervals of all attendees, and merge the results.
+	 * The busy intervals of all attendees are requested concurrently.
 	 */
 	private void updateBusyIntervals() {
 		Activity activity = getActivity();
 		if (activity != null) {
+			Map<String, AsyncFuture<ArrayNode>> requests = 
+					new HashMap<String, AsyncFuture<ArrayNode>>();
 			List<Attendee> attendees = activity.withConstraints().withAttendees();
 			for (Attendee attendee : attendees) {
 				String agent = attendee.getAgent();
-				if (attendee.getResponseStatus() != RESPONSE_STATUS.declined) {
-					updateBusyInterval(agent);
+				if (attendee.getResponseStatus() != RESPONSE_STATUS.declined
+						&& !requests.containsKey(agent)) {
+					AsyncFuture<ArrayNode> request = requestBusyInterval(agent);
+					if (request != null) {
+						requests.put(agent, request);
+					}
 				}
 			}
+			for (Map.Entry<String, AsyncFuture<ArrayNode>> entry : 
+					requests.entrySet()) {
+				updateBusyInterval(entry.getKey(), entry.getValue());
+			}
 		}
 		
 		mergeTimeConstraints();
@@ -1357,11 +1375,12 @@ public class MeetingAgent extends Agent {
 	}
 
 	/**
-	 * Retrieve the busy intervals of a calendar agent
+	 * Request the busy intervals of a calendar agent
 	 * 
 	 * @param agent
+	 * @return future busy intervals, or null if the request failed
 	 */
-	private void updateBusyInterval(@Name("agent") String agent) {
+	private AsyncFuture<ArrayNode> requestBusyInterval(String agent) {
 		try {
 			// create parameters with the boundaries of the interval to be
 			// retrieved
@@ -1379,8 +1398,42 @@ public class MeetingAgent extends Agent {
 				params.put("excludeEventIds", excludeEventIds);
 			}
 
+			// request the busy intervals from the agent
+			return sendAsync(URI.create(agent), "getBusy", params, 
+					ArrayNode.class);
+		} catch (JSONRPCException e) {
+			addIssue(TYPE.warning, Issue.JSONRPCEXCEPTION, e.getMessage());
+			logger.log(Level.WARNING, "Failed to request busy intervals of "
+					+ agent, e);
+		} catch (Exception e) {
+			addIssue(TYPE.warning, Issue.EXCEPTION, e.getMessage());
+			logger.log(Level.WARNING, "Failed to request busy intervals of "
+					+ agent, e);
+		}
+		return null;
+	}
+
+	/**
+	 * Wait for the busy intervals requested from an agent, and store them
+	 * @param agent
+	 * @param request
+	 */
+	private void updateBusyInterval(String agent, 
+			AsyncFuture<ArrayNode> request) {
+		try {
 			// get the busy intervals from the agent
-			ArrayNode array = send(URI.create(agent), "getBusy", params, ArrayNode.class);
+			ArrayNode array;
+			try {
+				array = request.get(BUSY_TIMEOUT, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception) {
+					throw (Exception) e.getCause();
+				}
+				throw e;
+			} catch (TimeoutException e) {
+				request.cancel(false);
+				throw e;
+			}
 
 			// convert from ArrayNode to List
 			List<Interval> busy = new ArrayList<Interval>();